@@ -36,6 +36,7 @@ public class ProgressLayout extends ConstraintLayout implements View.OnClickList
     public static final String DOWNLOAD_VERSION_LIST = "download_verlist";
     public static final String AUTHENTICATE_MICROSOFT = "authenticate_microsoft";
     public static final String INSTALL_MODPACK = "install_modpack";
+    public static final String EXTRACT_MODPACK_OVERRIDES = "extract_modpack_overrides";
     public static final String EXTRACT_COMPONENTS = "extract_components";
     public static final String EXTRACT_SINGLE_FILES = "extract_single_files";
 
@@ -0,0 +1,174 @@
+package net.kdt.pojavlaunch;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact form of an asset index. The index is read with a streaming parser, and the assets are
+ * stored as parallel arrays: the names, the SHA-1 hashes packed in a single byte array and the
+ * sizes. Modern indexes have thousands of assets, and this avoids keeping a map entry, an info
+ * object and a hash string around for each of them.
+ */
+public class JAssetIndex {
+    private static final String TAG = "JAssetIndex";
+    public static final int SHA1_LENGTH = 20;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /* Used by older versions of mc, when the files were named and under .minecraft/resources  */
+    public final boolean mapToResources;
+    /* Used by the legacy.json (~1.6.X) asset file, used for paths at the root of the .minecraft/assets folder */
+    public final boolean virtual;
+
+    private final int mCount;
+    private final String[] mNames;
+    private final byte[] mHashes;
+    private final long[] mSizes;
+
+    private JAssetIndex(boolean mapToResources, boolean virtual, AssetListBuilder assets) {
+        this.mapToResources = mapToResources;
+        this.virtual = virtual;
+        this.mCount = assets.count;
+        this.mNames = assets.names;
+        this.mHashes = assets.hashes;
+        this.mSizes = assets.sizes;
+    }
+
+    /**
+     * Read an asset index file
+     * @param indexFile the asset index JSON
+     * @return the parsed index
+     * @throws IOException if the file can't be read or isn't a valid asset index
+     */
+    public static JAssetIndex parse(File indexFile) throws IOException {
+        try (JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8)))) {
+            boolean mapToResources = false, virtual = false;
+            AssetListBuilder assets = new AssetListBuilder();
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if(reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "objects": readObjects(reader, assets); break;
+                    case "map_to_resources": mapToResources = reader.nextBoolean(); break;
+                    case "virtual": virtual = reader.nextBoolean(); break;
+                    default: reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return new JAssetIndex(mapToResources, virtual, assets);
+        }catch (IllegalStateException | NumberFormatException e) {
+            // Thrown by the reader when the JSON doesn't have the expected structure
+            throw new IOException("Malformed asset index "+indexFile.getName(), e);
+        }
+    }
+
+    private static void readObjects(JsonReader reader, AssetListBuilder assets) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String assetName = reader.nextName();
+            if(reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            String hash = null;
+            long size = 0;
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if(name.equals("hash") && reader.peek() == JsonToken.STRING) hash = reader.nextString();
+                else if(name.equals("size") && reader.peek() == JsonToken.NUMBER) size = reader.nextLong();
+                else reader.skipValue();
+            }
+            reader.endObject();
+            if(!assets.add(assetName, hash, size)) Log.w(TAG, "Skipping asset with an invalid hash: "+assetName);
+        }
+        reader.endObject();
+    }
+
+    /** @return the number of assets in the index */
+    public int getCount() {
+        return mCount;
+    }
+
+    public String getName(int asset) {
+        return mNames[asset];
+    }
+
+    public long getSize(int asset) {
+        return mSizes[asset];
+    }
+
+    /** @return the SHA-1 hash of an asset, as a lowercase hex string */
+    public String getHash(int asset) {
+        char[] hashChars = new char[SHA1_LENGTH * 2];
+        int hashOffset = getHashOffset(asset);
+        for(int i = 0; i < SHA1_LENGTH; i++) {
+            int hashByte = mHashes[hashOffset + i] & 0xFF;
+            hashChars[i * 2] = HEX_DIGITS[hashByte >>> 4];
+            hashChars[i * 2 + 1] = HEX_DIGITS[hashByte & 0x0F];
+        }
+        return new String(hashChars);
+    }
+
+    /**
+     * Get the array that holds all the hashes, so that they can be compared without decoding them.
+     * The hash of an asset starts at getHashOffset(). The array must not be modified.
+     */
+    public byte[] getHashArray() {
+        return mHashes;
+    }
+
+    public int getHashOffset(int asset) {
+        return asset * SHA1_LENGTH;
+    }
+
+    private static int hexDigitValue(char digit) {
+        if(digit >= '0' && digit <= '9') return digit - '0';
+        if(digit >= 'a' && digit <= 'f') return digit - 'a' + 10;
+        if(digit >= 'A' && digit <= 'F') return digit - 'A' + 10;
+        return -1;
+    }
+
+    private static class AssetListBuilder {
+        int count;
+        String[] names = new String[1024];
+        byte[] hashes = new byte[1024 * SHA1_LENGTH];
+        long[] sizes = new long[1024];
+
+        /** @return false if the hash is not a valid SHA-1 hash, in which case the asset isn't added */
+        boolean add(String name, String hash, long size) {
+            if(hash == null || hash.length() != SHA1_LENGTH * 2) return false;
+            if(count == names.length) {
+                int newCapacity = count * 2;
+                names = Arrays.copyOf(names, newCapacity);
+                hashes = Arrays.copyOf(hashes, newCapacity * SHA1_LENGTH);
+                sizes = Arrays.copyOf(sizes, newCapacity);
+            }
+            int hashOffset = count * SHA1_LENGTH;
+            for(int i = 0; i < SHA1_LENGTH; i++) {
+                int high = hexDigitValue(hash.charAt(i * 2));
+                int low = hexDigitValue(hash.charAt(i * 2 + 1));
+                if(high == -1 || low == -1) return false;
+                hashes[hashOffset + i] = (byte) ((high << 4) | low);
+            }
+            names[count] = name;
+            sizes[count] = size;
+            count++;
+            return true;
+        }
+    }
+}
@@ -1,10 +0,0 @@
-package net.kdt.pojavlaunch;
-
-import androidx.annotation.Keep;
-
-@Keep
-public class JAssetInfo
-{
-	public String hash;
-    public int size;
-}
@@ -0,0 +1,150 @@
+package net.kdt.pojavlaunch;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonParseException;
+
+import net.kdt.pojavlaunch.multirt.Runtime;
+import net.kdt.pojavlaunch.value.MinecraftAccount;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything a launch derives from the version files of a profile: the JVM arguments with the
+ * final classpath, the main class and the game arguments. The plan is saved when the profile gets
+ * launched, and the next launches reuse it as long as its inputs didn't change, which skips the
+ * version parsing, the library rules, the file lookups and the argument templating.
+ * Nothing tied to the account is saved: the game arguments are kept as templates, and the
+ * account values get inserted at each launch.
+ */
+public class LaunchPlan {
+    private static final String TAG = "LaunchPlan";
+    private static final int FORMAT_VERSION = 2;
+
+    /** Hash of the inputs that aren't version files */
+    public String fingerprint;
+    /** Version JSON files of the inheritance chain, with their state when the plan was made */
+    public String[] sourcePaths;
+    public long[] sourceModifiedTimes;
+    public long[] sourceLengths;
+    /** JVM arguments, up to and including the main class */
+    public List<String> javaArgs;
+    /** Game arguments, with the account values left as ${} templates */
+    public String[] gameArgTemplates;
+    /** Values of the game argument templates that don't depend on the account */
+    public Map<String, String> gameArgValues;
+    public String openGlVersion;
+
+    LaunchPlan() {}
+
+    LaunchPlan(String versionId, Runtime runtime, File gameDir, List<File> sourceFiles) {
+        this.fingerprint = computeFingerprint(versionId, runtime, gameDir);
+        int sourceCount = sourceFiles.size();
+        this.sourcePaths = new String[sourceCount];
+        this.sourceModifiedTimes = new long[sourceCount];
+        this.sourceLengths = new long[sourceCount];
+        for(int i = 0; i < sourceCount; i++) {
+            File sourceFile = sourceFiles.get(i);
+            sourcePaths[i] = sourceFile.getAbsolutePath();
+            sourceModifiedTimes[i] = sourceFile.lastModified();
+            sourceLengths[i] = sourceFile.length();
+        }
+    }
+
+    /**
+     * Load the plan of a profile, if it is still valid.
+     * @return the plan, or null if it has to be made again
+     */
+    static @Nullable LaunchPlan load(String versionId, Runtime runtime, File gameDir) {
+        File planFile = getPlanFile(versionId, gameDir);
+        if(!planFile.isFile()) return null;
+        LaunchPlan launchPlan;
+        try {
+            launchPlan = Tools.COMPACT_GSON.fromJson(Tools.read(planFile), LaunchPlan.class);
+        }catch (IOException | JsonParseException e) {
+            Log.w(TAG, "Failed to read the launch plan of "+versionId, e);
+            return null;
+        }
+        if(launchPlan == null || !launchPlan.isComplete()) return null;
+        if(!computeFingerprint(versionId, runtime, gameDir).equals(launchPlan.fingerprint)) return null;
+        for(int i = 0; i < launchPlan.sourcePaths.length; i++) {
+            File sourceFile = new File(launchPlan.sourcePaths[i]);
+            if(sourceFile.lastModified() != launchPlan.sourceModifiedTimes[i]
+                    || sourceFile.length() != launchPlan.sourceLengths[i]) return null;
+        }
+        return launchPlan;
+    }
+
+    void save(String versionId, File gameDir) {
+        try {
+            Tools.write(getPlanFile(versionId, gameDir).getAbsolutePath(), Tools.COMPACT_GSON.toJson(this));
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to save the launch plan of "+versionId, e);
+        }
+    }
+
+    /** Forget all the plans, after game files got downloaded or replaced */
+    public static void invalidateAll() {
+        File[] planFiles = getPlanDirectory().listFiles();
+        if(planFiles == null) return;
+        for(File planFile : planFiles) {
+            if(!planFile.delete()) Log.w(TAG, "Failed to delete "+planFile);
+        }
+    }
+
+    /**
+     * Build the final argument list for the JVM
+     * @param minecraftAccount the account to launch the game with
+     * @return the JVM arguments, followed by the main class and the game arguments
+     */
+    List<String> createJavaArgs(MinecraftAccount minecraftAccount) {
+        List<String> javaArgList = new ArrayList<>(javaArgs.size() + gameArgTemplates.length);
+        javaArgList.addAll(javaArgs);
+        for(String gameArg : Tools.getMinecraftClientArgs(minecraftAccount, gameArgTemplates, gameArgValues)) {
+            javaArgList.add(gameArg);
+        }
+        return javaArgList;
+    }
+
+    private boolean isComplete() {
+        return fingerprint != null && sourcePaths != null && sourceModifiedTimes != null && sourceLengths != null
+                && sourceModifiedTimes.length == sourcePaths.length && sourceLengths.length == sourcePaths.length
+                && javaArgs != null && gameArgTemplates != null && gameArgValues != null && openGlVersion != null;
+    }
+
+    /**
+     * Hash the inputs of a plan besides the version files: the launcher build, which decides the
+     * bundled components, the runtime, the directories and the component jars
+     */
+    private static String computeFingerprint(String versionId, Runtime runtime, File gameDir) {
+        String fingerprintSource = FORMAT_VERSION + "\n" +
+                BuildConfig.VERSION_CODE + "\n" +
+                versionId + "\n" +
+                runtime.name + "\n" +
+                runtime.javaVersion + "\n" +
+                gameDir.getAbsolutePath() + "\n" +
+                Tools.DIR_GAME_HOME + "\n" +
+                Tools.DIR_DATA + "\n" +
+                Tools.NATIVE_LIB_DIR + "\n" +
+                new File(Tools.DIR_GAME_HOME, "lwjgl3").lastModified() + "\n" +
+                new File(Tools.DIR_GAME_HOME, "caciocavallo").lastModified() + "\n" +
+                new File(Tools.DIR_GAME_HOME, "caciocavallo17").lastModified();
+        return DigestUtils.sha1Hex(fingerprintSource);
+    }
+
+    private static File getPlanDirectory() {
+        return new File(Tools.DIR_CACHE, "launch_plans");
+    }
+
+    private static File getPlanFile(String versionId, File gameDir) {
+        return new File(getPlanDirectory(), DigestUtils.sha1Hex(versionId + "\n" + gameDir.getAbsolutePath()) + ".json");
+    }
+}
@@ -29,6 +29,8 @@ public class PojavApplication extends Application {
 	
 	@Override
 	public void onCreate() {
+		// Before anything opens a connection
+		HttpUtils.configureConnectionPool();
 		ContextExecutor.setApplication(this);
 		Thread.setDefaultUncaughtExceptionHandler((thread, th) -> {
 			boolean storagePermAllowed = (Build.VERSION.SDK_INT < 23 || Build.VERSION.SDK_INT >= 29 ||
@@ -47,6 +47,8 @@ import androidx.fragment.app.FragmentActivity;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import net.kdt.pojavlaunch.extra.ExtraConstants;
+import net.kdt.pojavlaunch.extra.ExtraCore;
 import net.kdt.pojavlaunch.lifecycle.ContextExecutor;
 import net.kdt.pojavlaunch.lifecycle.ContextExecutorTask;
 import net.kdt.pojavlaunch.lifecycle.LifecycleAwareAlertDialog;
@@ -59,7 +61,10 @@ import net.kdt.pojavlaunch.utils.DownloadUtils;
 import net.kdt.pojavlaunch.utils.FileUtils;
 import net.kdt.pojavlaunch.utils.JREUtils;
 import net.kdt.pojavlaunch.utils.JSONUtils;
+import net.kdt.pojavlaunch.utils.LauncherDataTypeAdapterFactory;
+import net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory;
 import net.kdt.pojavlaunch.utils.OldVersionsUtils;
+import net.kdt.pojavlaunch.utils.ResolvedVersionCache;
 import net.kdt.pojavlaunch.value.DependentLibrary;
 import net.kdt.pojavlaunch.value.MinecraftAccount;
 import net.kdt.pojavlaunch.value.MinecraftLibraryArtifact;
@@ -82,9 +87,11 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -95,7 +102,9 @@ public final class Tools {
     public static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
     public static String APP_NAME = "PojavLauncher";
 
-    public static final Gson GLOBAL_GSON = new GsonBuilder().setPrettyPrinting().create();
+    public static final Gson GLOBAL_GSON = createGsonBuilder().setPrettyPrinting().create();
+    /** Same as GLOBAL_GSON without pretty printing, for the files that only the launcher reads */
+    public static final Gson COMPACT_GSON = createGsonBuilder().create();
 
     public static final String URL_HOME = "https://pojavlauncherteam.github.io";
     public static String NATIVE_LIB_DIR;
@@ -182,18 +191,48 @@ public final class Tools {
             }
         }
         Runtime runtime = MultiRTUtils.forceReread(Tools.pickRuntime(minecraftProfile, versionJavaRequirement));
-        JMinecraftVersionList.Version versionInfo = Tools.getVersionInfo(versionId);
         LauncherProfiles.load();
         File gamedir = Tools.getGameDirPath(minecraftProfile);
 
+        // Reuse what the previous launch derived from the version files, if they didn't change
+        LaunchPlan launchPlan = LaunchPlan.load(versionId, runtime, gamedir);
+        if(launchPlan == null) {
+            launchPlan = createLaunchPlan(versionId, runtime, gamedir);
+            launchPlan.save(versionId, gamedir);
+        }
 
         // Pre-process specific files
         disableSplash(gamedir);
-        String[] launchArgs = getMinecraftClientArgs(minecraftAccount, versionInfo, gamedir);
 
         // Select the appropriate openGL version
-        OldVersionsUtils.selectOpenGlVersion(versionInfo);
+        ExtraCore.setValue(ExtraConstants.OPEN_GL_VERSION, launchPlan.openGlVersion);
 
+        List<String> javaArgList = launchPlan.createJavaArgs(minecraftAccount);
+        // ctx.appendlnToLog("full args: "+javaArgList.toString());
+        String args = LauncherPreferences.PREF_CUSTOM_JAVA_ARGS;
+        if(Tools.isValidString(minecraftProfile.javaArgs)) args = minecraftProfile.javaArgs;
+        FFmpegPlugin.discover(activity);
+        JREUtils.launchJavaVM(activity, runtime, gamedir, javaArgList, args);
+        // If we returned, this means that the JVM exit dialog has been shown and we don't need to be active anymore.
+        // We never return otherwise. The process will be killed anyway, and thus we will become inactive
+    }
+
+    /**
+     * Derive everything a launch needs from the version files
+     * @param versionId the version to launch
+     * @param runtime the runtime the game runs on
+     * @param gamedir the game directory of the profile
+     * @return the launch plan
+     */
+    private static LaunchPlan createLaunchPlan(String versionId, Runtime runtime, File gamedir) {
+        JMinecraftVersionList.Version versionInfo = Tools.getVersionInfo(versionId);
+        List<File> sourceFiles = new ArrayList<>(2);
+        sourceFiles.add(new File(DIR_HOME_VERSION + "/" + versionId + "/" + versionId + ".json"));
+        String inheritsFrom = Tools.getVersionInfo(versionId, true).inheritsFrom;
+        if(inheritsFrom != null && !inheritsFrom.equals(versionId)) {
+            sourceFiles.add(new File(DIR_HOME_VERSION + "/" + inheritsFrom + "/" + inheritsFrom + ".json"));
+        }
+        LaunchPlan launchPlan = new LaunchPlan(versionId, runtime, gamedir, sourceFiles);
 
         String launchClassPath = generateLaunchClassPath(versionInfo, versionId);
 
@@ -213,14 +252,12 @@ public final class Tools {
         javaArgList.add(getLWJGL3ClassPath() + ":" + launchClassPath);
 
         javaArgList.add(versionInfo.mainClass);
-        javaArgList.addAll(Arrays.asList(launchArgs));
-        // ctx.appendlnToLog("full args: "+javaArgList.toString());
-        String args = LauncherPreferences.PREF_CUSTOM_JAVA_ARGS;
-        if(Tools.isValidString(minecraftProfile.javaArgs)) args = minecraftProfile.javaArgs;
-        FFmpegPlugin.discover(activity);
-        JREUtils.launchJavaVM(activity, runtime, gamedir, javaArgList, args);
-        // If we returned, this means that the JVM exit dialog has been shown and we don't need to be active anymore.
-        // We never return otherwise. The process will be killed anyway, and thus we will become inactive
+
+        launchPlan.javaArgs = javaArgList;
+        launchPlan.gameArgTemplates = getMinecraftClientArgTemplates(versionInfo);
+        launchPlan.gameArgValues = getMinecraftClientArgValues(versionInfo, gamedir);
+        launchPlan.openGlVersion = OldVersionsUtils.getOpenGlVersion(versionInfo);
+        return launchPlan;
     }
 
     public static File getGameDirPath(@NonNull MinecraftProfile minecraftProfile){
@@ -233,6 +270,11 @@ public final class Tools {
         return new File(Tools.DIR_GAME_NEW);
     }
 
+    private static GsonBuilder createGsonBuilder() {
+        return new GsonBuilder().registerTypeAdapterFactory(new MetadataTypeAdapterFactory())
+                .registerTypeAdapterFactory(new LauncherDataTypeAdapterFactory());
+    }
+
     public static void buildNotificationChannel(Context context){
         if(Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
         NotificationChannel channel = new NotificationChannel(
@@ -335,8 +377,45 @@ public final class Tools {
         return JSONUtils.insertJSONValueList(minecraftArgs.toArray(new String[0]), varArgMap);
     }
 
-    public static String[] getMinecraftClientArgs(MinecraftAccount profile, JMinecraftVersionList.Version versionInfo, File gameDir) {
-        String username = profile.username;
+    /**
+     * Insert the account values into the game arguments
+     * @param profile the account to launch the game with
+     * @param argTemplates the game arguments, from getMinecraftClientArgTemplates()
+     * @param versionArgValues the other values, from getMinecraftClientArgValues()
+     * @return the final game arguments
+     */
+    public static String[] getMinecraftClientArgs(MinecraftAccount profile, String[] argTemplates, Map<String, String> versionArgValues) {
+        Map<String, String> varArgMap = new ArrayMap<>();
+        varArgMap.putAll(versionArgValues);
+        varArgMap.put("auth_session", profile.accessToken); // For legacy versions of MC
+        varArgMap.put("auth_access_token", profile.accessToken);
+        varArgMap.put("auth_player_name", profile.username);
+        varArgMap.put("auth_uuid", profile.profileId.replace("-", ""));
+        varArgMap.put("auth_xuid", profile.xuid);
+
+        // The values are inserted in place, keep the templates intact
+        return JSONUtils.insertJSONValueList(argTemplates.clone(), varArgMap);
+    }
+
+    private static String[] getMinecraftClientArgTemplates(JMinecraftVersionList.Version versionInfo) {
+        List<String> minecraftArgs = new ArrayList<>();
+        if (versionInfo.arguments != null) {
+            // Support Minecraft 1.13+
+            for (Object arg : versionInfo.arguments.game) {
+                if (arg instanceof String) {
+                    minecraftArgs.add((String) arg);
+                } //TODO: implement else clause
+            }
+        }
+
+        return splitAndFilterEmpty(
+                versionInfo.minecraftArguments == null ?
+                        fromStringArray(minecraftArgs.toArray(new String[0])):
+                        versionInfo.minecraftArguments
+        );
+    }
+
+    private static Map<String, String> getMinecraftClientArgValues(JMinecraftVersionList.Version versionInfo, File gameDir) {
         String versionName = versionInfo.id;
         if (versionInfo.inheritsFrom != null) {
             versionName = versionInfo.inheritsFrom;
@@ -355,13 +434,7 @@ public final class Tools {
             Log.e("CheckForProfileKey", "Failed to determine profile creation date, using \"mojang\"", e);
         }
 
-
-        Map<String, String> varArgMap = new ArrayMap<>();
-        varArgMap.put("auth_session", profile.accessToken); // For legacy versions of MC
-        varArgMap.put("auth_access_token", profile.accessToken);
-        varArgMap.put("auth_player_name", username);
-        varArgMap.put("auth_uuid", profile.profileId.replace("-", ""));
-        varArgMap.put("auth_xuid", profile.xuid);
+        Map<String, String> varArgMap = new HashMap<>();
         varArgMap.put("assets_root", Tools.ASSETS_PATH);
         varArgMap.put("assets_index_name", versionInfo.assets);
         varArgMap.put("game_assets", Tools.ASSETS_PATH);
@@ -370,24 +443,12 @@ public final class Tools {
         varArgMap.put("user_type", userType);
         varArgMap.put("version_name", versionName);
         varArgMap.put("version_type", versionInfo.type);
-
-        List<String> minecraftArgs = new ArrayList<>();
-        if (versionInfo.arguments != null) {
-            // Support Minecraft 1.13+
-            for (Object arg : versionInfo.arguments.game) {
-                if (arg instanceof String) {
-                    minecraftArgs.add((String) arg);
-                } //TODO: implement else clause
-            }
+        // A missing value is inserted as an empty string. Store that string, since the values get
+        // saved in the launch plan, and Gson drops map entries that are null.
+        for(Map.Entry<String, String> varArg : varArgMap.entrySet()) {
+            if(varArg.getValue() == null) varArg.setValue("");
         }
-
-        return JSONUtils.insertJSONValueList(
-                splitAndFilterEmpty(
-                        versionInfo.minecraftArguments == null ?
-                                fromStringArray(minecraftArgs.toArray(new String[0])):
-                                versionInfo.minecraftArguments
-                ), varArgMap
-        );
+        return varArgMap;
     }
 
     public static String fromStringArray(String[] strArr) {
@@ -735,17 +796,43 @@ public final class Tools {
         return getVersionInfo(versionName, false);
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
+    /**
+     * Get the information of an installed version, merged with the version it inherits from.
+     * Resolved versions are cached until one of their JSON files changes, so the returned object
+     * is shared between the callers and must not be modified.
+     * @param versionName the version ID
+     * @param skipInheriting true to get the version without merging its parent into it
+     * @return the version information
+     */
     public static JMinecraftVersionList.Version getVersionInfo(String versionName, boolean skipInheriting) {
+        String cacheKey = (skipInheriting ? "self:" : "merged:") + versionName;
+        JMinecraftVersionList.Version cachedVersion = ResolvedVersionCache.get(cacheKey);
+        if(cachedVersion != null) return cachedVersion;
+        List<ResolvedVersionCache.SourceFile> sourceFiles = new ArrayList<>(2);
+        JMinecraftVersionList.Version resolvedVersion = resolveVersionInfo(versionName, skipInheriting, sourceFiles);
+        ResolvedVersionCache.put(cacheKey, resolvedVersion, sourceFiles);
+        return resolvedVersion;
+    }
+
+    private static JMinecraftVersionList.Version readVersionJson(String versionName, List<ResolvedVersionCache.SourceFile> sourceFiles) throws IOException {
+        File versionFile = new File(DIR_HOME_VERSION + "/" + versionName + "/" + versionName + ".json");
+        // Capture the state of the file before reading it, so that a concurrent change invalidates the cache
+        sourceFiles.add(new ResolvedVersionCache.SourceFile(versionFile));
+        return Tools.GLOBAL_GSON.fromJson(read(versionFile), JMinecraftVersionList.Version.class);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static JMinecraftVersionList.Version resolveVersionInfo(String versionName, boolean skipInheriting,
+                                                                    List<ResolvedVersionCache.SourceFile> sourceFiles) {
         try {
-            JMinecraftVersionList.Version customVer = Tools.GLOBAL_GSON.fromJson(read(DIR_HOME_VERSION + "/" + versionName + "/" + versionName + ".json"), JMinecraftVersionList.Version.class);
+            JMinecraftVersionList.Version customVer = readVersionJson(versionName, sourceFiles);
             if (skipInheriting || customVer.inheritsFrom == null || customVer.inheritsFrom.equals(customVer.id)) {
                 preProcessLibraries(customVer.libraries);
             } else {
                 JMinecraftVersionList.Version inheritsVer;
                 //If it won't download, just search for it
                 try{
-                    inheritsVer = Tools.GLOBAL_GSON.fromJson(read(DIR_HOME_VERSION + "/" + customVer.inheritsFrom + "/" + customVer.inheritsFrom + ".json"), JMinecraftVersionList.Version.class);
+                    inheritsVer = readVersionJson(customVer.inheritsFrom, sourceFiles);
                 }catch(IOException e) {
                     throw new RuntimeException("Can't find the source version for "+ versionName +" (req version="+customVer.inheritsFrom+")");
                 }
@@ -756,31 +843,8 @@ public final class Tools {
                         "releaseTime", "time", "type"
                 );
 
-                // Go through the libraries, remove the ones overridden by the custom version
-                List<DependentLibrary> inheritLibraryList = new ArrayList<>(Arrays.asList(inheritsVer.libraries));
-                outer_loop:
-                for(DependentLibrary library : customVer.libraries){
-                    // Clean libraries overridden by the custom version
-                    String libName = library.name.substring(0, library.name.lastIndexOf(":"));
-
-                    for(DependentLibrary inheritLibrary : inheritLibraryList) {
-                        String inheritLibName = inheritLibrary.name.substring(0, inheritLibrary.name.lastIndexOf(":"));
-
-                        if(libName.equals(inheritLibName)){
-                            Log.d(APP_NAME, "Library " + libName + ": Replaced version " +
-                                    libName.substring(libName.lastIndexOf(":") + 1) + " with " +
-                                    inheritLibName.substring(inheritLibName.lastIndexOf(":") + 1));
-
-                            // Remove the library , superseded by the overriding libs
-                            inheritLibraryList.remove(inheritLibrary);
-                            continue outer_loop;
-                        }
-                    }
-                }
-
-                // Fuse libraries
-                inheritLibraryList.addAll(Arrays.asList(customVer.libraries));
-                inheritsVer.libraries = inheritLibraryList.toArray(new DependentLibrary[0]);
+                // Fuse libraries, without the ones overridden by the custom version
+                inheritsVer.libraries = mergeLibraries(inheritsVer.libraries, customVer.libraries).toArray(new DependentLibrary[0]);
                 preProcessLibraries(inheritsVer.libraries);
 
 
@@ -832,6 +896,41 @@ public final class Tools {
         }
     }
 
+    /**
+     * Fuse the libraries of a version with the ones of its parent. The libraries of the parent
+     * that the version overrides (same name, other version) are removed.
+     * @return the libraries of the parent followed by the ones of the version
+     */
+    private static List<DependentLibrary> mergeLibraries(DependentLibrary[] inheritLibraries, DependentLibrary[] customLibraries) {
+        // Index the parent libraries by name without the version, so that each lookup is direct
+        Map<String, ArrayDeque<Integer>> inheritLibraryIndex = new HashMap<>(inheritLibraries.length * 2);
+        for(int i = 0; i < inheritLibraries.length; i++) {
+            String inheritLibName = getLibraryNameWithoutVersion(inheritLibraries[i]);
+            ArrayDeque<Integer> indices = inheritLibraryIndex.get(inheritLibName);
+            if(indices == null) inheritLibraryIndex.put(inheritLibName, indices = new ArrayDeque<>(1));
+            indices.add(i);
+        }
+        boolean[] replaced = new boolean[inheritLibraries.length];
+        for(DependentLibrary library : customLibraries) {
+            ArrayDeque<Integer> indices = inheritLibraryIndex.get(getLibraryNameWithoutVersion(library));
+            if(indices == null || indices.isEmpty()) continue;
+            int replacedIndex = indices.poll();
+            Log.d(APP_NAME, "Library " + inheritLibraries[replacedIndex].name + ": Replaced with " + library.name);
+            replaced[replacedIndex] = true;
+        }
+
+        List<DependentLibrary> libraryList = new ArrayList<>(inheritLibraries.length + customLibraries.length);
+        for(int i = 0; i < inheritLibraries.length; i++) {
+            if(!replaced[i]) libraryList.add(inheritLibraries[i]);
+        }
+        libraryList.addAll(Arrays.asList(customLibraries));
+        return libraryList;
+    }
+
+    private static String getLibraryNameWithoutVersion(DependentLibrary library) {
+        return library.name.substring(0, library.name.lastIndexOf(":"));
+    }
+
     // Prevent NullPointerException
     private static void insertSafety(JMinecraftVersionList.Version targetVer, JMinecraftVersionList.Version fromVer, String... keyArr) {
         for (String key : keyArr) {
@@ -1,6 +1,5 @@
 package net.kdt.pojavlaunch.mirrors;
 
-import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -8,63 +7,138 @@ import androidx.annotation.Nullable;
 import net.kdt.pojavlaunch.Tools;
 import net.kdt.pojavlaunch.prefs.LauncherPreferences;
 import net.kdt.pojavlaunch.utils.DownloadUtils;
+import net.kdt.pojavlaunch.utils.HttpUtils;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class DownloadMirror {
     public static final int DOWNLOAD_CLASS_LIBRARIES = 0;
     public static final int DOWNLOAD_CLASS_METADATA = 1;
     public static final int DOWNLOAD_CLASS_ASSETS = 2;
 
+    private static final String TAG = "DownloadMirror";
     private static final String URL_PROTOCOL_TAIL = "://";
     private static final String[] MIRROR_BMCLAPI = {
             "https://bmclapi2.bangbang93.com/maven",
             "https://bmclapi2.bangbang93.com",
             "https://bmclapi2.bangbang93.com/assets"
     };
+    /** Files at least this large get their first bytes raced across the sources */
+    private static final long RACE_THRESHOLD = 4 * 1024 * 1024;
+    private static final long RACE_TIMEOUT_MILLIS = 5000;
+
+    private static final MirrorHealth sMirrorHealth = new MirrorHealth();
+    private static final ThreadPoolExecutor sRaceExecutor = new ThreadPoolExecutor(0, 4,
+            10, TimeUnit.SECONDS, new SynchronousQueue<>());
 
     /**
-     * Download a file with the current mirror. If the file is missing on the mirror,
-     * fall back to the official source.
-     * @param context The application context
+     * Download a file from the best available source: the official one, or the selected mirror.
+     * The sources are ordered by their measured health. If the file is missing on a source, the
+     * source fails, or sends data that doesn't match the hash, fall back to the next one.
      * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
      *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
      * @param urlInput The original (Mojang) URL for the download
      * @param outputFile The output file for the download
      * @param buffer The shared buffer, or null if not used
      * @param monitor The download monitor, or null if not used
-     * @return True if the download was successful, false otherwise
+     * @param sha1 The expected SHA-1 hash, checked while downloading, or null if not used
+     * @param expectedSize The expected size of the file, or -1 if unknown
+     * @throws DownloadUtils.SHA1VerificationException if the downloaded file doesn't match the hash
      */
-    public static boolean downloadFileMirrored(Context context, int downloadClass, String urlInput, File outputFile,
-                                              @Nullable byte[] buffer, @Nullable Tools.DownloaderFeedback monitor) {
-        if (outputFile.exists() && outputFile.canWrite()) {
-            return true;
+    public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile,
+                                            @Nullable byte[] buffer, @Nullable Tools.DownloaderFeedback monitor,
+                                            @Nullable String sha1, long expectedSize) throws IOException {
+        Map<String, String> sources = getSources(downloadClass, urlInput);
+        List<String> rankedSources = sMirrorHealth.rank(new ArrayList<>(sources.keySet()), expectedSize);
+        if(rankedSources.size() > 1 && expectedSize >= RACE_THRESHOLD && LauncherPreferences.PREF_DOWNLOAD_RACE_MIRRORS) {
+            rankedSources = raceFirstBytes(rankedSources, sources);
         }
-
-        try {
-            return downloadFileMirroredInternal(context, downloadClass, urlInput, outputFile, buffer, monitor);
-        } catch (IOException e) {
-            Log.e("DownloadMirror", "Failed to download file", e);
-            return false;
+        IOException lastException = null;
+        for(String source : rankedSources) {
+            String url = sources.get(source);
+            long startTime = System.nanoTime();
+            try {
+                DownloadUtils.downloadFileMonitored(url, outputFile, buffer, monitor, sha1);
+                sMirrorHealth.recordSuccess(source, outputFile.length(), System.nanoTime() - startTime);
+                return;
+            }catch (DownloadUtils.SHA1VerificationException e) {
+                Log.w(TAG, "Hash mismatch on "+url);
+                sMirrorHealth.recordFailure(source, true);
+                lastException = e;
+            }catch (HttpUtils.HttpException e) {
+                // Mirrors also answer with 403 or 429 when they rate limit, and another source
+                // may have the file anyway. The last source's error is the one that gets thrown.
+                sMirrorHealth.recordFailure(source, false);
+                lastException = e;
+            }catch (IOException e) {
+                // Cancelled, trying another source would only delay the cancellation
+                if(Thread.currentThread().isInterrupted()) throw e;
+                sMirrorHealth.recordFailure(source, false);
+                lastException = e;
+            }
+            Log.w(TAG, "Falling back from "+source, lastException);
         }
+        throw lastException;
+    }
+
+    /**
+     * Download a file from the best available source: the official one, or the selected mirror.
+     * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
+     *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
+     * @param urlInput The original (Mojang) URL for the download
+     * @param outputFile The output file for the download
+     * @param buffer The shared buffer, or null if not used
+     * @param monitor The download monitor, or null if not used
+     * @param sha1 The expected SHA-1 hash, checked while downloading, or null if not used
+     * @throws DownloadUtils.SHA1VerificationException if the downloaded file doesn't match the hash
+     */
+    public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile,
+                                            @Nullable byte[] buffer, @Nullable Tools.DownloaderFeedback monitor,
+                                            @Nullable String sha1) throws IOException {
+        downloadFileMirrored(downloadClass, urlInput, outputFile, buffer, monitor, sha1, -1);
+    }
+
+    /**
+     * Download a file with the current mirror. If the file is missing on the mirror,
+     * fall back to the official source.
+     * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
+     *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
+     * @param urlInput The original (Mojang) URL for the download
+     * @param outputFile The output file for the download
+     * @param buffer The shared buffer, or null if not used
+     * @param monitor The download monitor, or null if not used
+     */
+    public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile,
+                                            @Nullable byte[] buffer, @Nullable Tools.DownloaderFeedback monitor) throws IOException {
+        downloadFileMirrored(downloadClass, urlInput, outputFile, buffer, monitor, null);
     }
 
     /**
      * Download a file with the current mirror. If the file is missing on the mirror,
      * fall back to the official source.
-     * @param context The application context
      * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
      *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
      * @param urlInput The original (Mojang) URL for the download
      * @param outputFile The output file for the download
-     * @return True if the download was successful, false otherwise
      */
-    public static boolean downloadFileMirrored(Context context, int downloadClass, String urlInput, File outputFile) {
-        return downloadFileMirrored(context, downloadClass, urlInput, outputFile, null, null);
+    public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile) throws IOException {
+        downloadFileMirrored(downloadClass, urlInput, outputFile, null, null, null);
     }
 
     /**
@@ -75,26 +149,6 @@ public class DownloadMirror {
         return !LauncherPreferences.PREF_DOWNLOAD_SOURCE.equals("default");
     }
 
-    private static boolean downloadFileMirroredInternal(Context context, int downloadClass, String urlInput, File outputFile,
-                                                         @Nullable byte[] buffer, @Nullable Tools.DownloaderFeedback monitor) throws IOException {
-        String mirrorUrl = getMirrorMapping(downloadClass, urlInput);
-        if (mirrorUrl == null) {
-            throw new IOException("Invalid mirror URL");
-        }
-
-        if (buffer != null) {
-            DownloadUtils.downloadFileMonitored(mirrorUrl, outputFile, buffer, monitor);
-        } else {
-            DownloadUtils.downloadFileMonitored(mirrorUrl, outputFile, monitor);
-        }
-
-        if (outputFile.exists() && outputFile.length() > 0) {
-            return true;
-        } else {
-            throw new FileNotFoundException("Failed to download file from mirror");
-        }
-    }
-
     private static String[] getMirrorSettings() {
         switch (LauncherPreferences.PREF_DOWNLOAD_SOURCE) {
             case "bmclapi": return MIRROR_BMCLAPI;
@@ -104,41 +158,108 @@ public class DownloadMirror {
         }
     }
 
-    private static String getMirrorMapping(int downloadClass, String mojangUrl) {
-        String[] mirrorSettings = getMirrorSettings();
-        if (mirrorSettings == null) {
-            return mojangUrl;
-        }
+    /** @return the health statistics shared by all the mirrored downloads */
+    public static MirrorHealth getMirrorHealth() {
+        return sMirrorHealth;
+    }
 
-        try {
-            URL mojangUrlObj = new URL(mojangUrl);
-            int urlTail = getBaseUrlTail(mojangUrlObj);
-            String baseUrl = mojangUrlObj.getProtocol() + ":" + URL_PROTOCOL_TAIL + mojangUrlObj.getHost();
-            String path = mojangUrl.substring(urlTail);
+    /**
+     * Get all the sources a file can be downloaded from.
+     * @param downloadClass Class of the download
+     * @param mojangUrl The original (Mojang) URL for the download
+     * @return a map of source base URLs to the URL of the file on that source. The selected
+     *         mirror comes first, so that it wins when the sources are equally healthy.
+     * @throws MalformedURLException if the original URL is invalid
+     */
+    private static Map<String, String> getSources(int downloadClass, String mojangUrl) throws MalformedURLException {
+        Map<String, String> sources = new LinkedHashMap<>(4);
+        URL mojangUrlObj = new URL(mojangUrl);
+        int urlTail = getBaseUrlTail(mojangUrlObj);
+        String baseUrl = mojangUrlObj.getProtocol() + ":" + URL_PROTOCOL_TAIL + mojangUrlObj.getHost();
+        String path = mojangUrl.substring(urlTail);
 
+        String[] mirrorSettings = getMirrorSettings();
+        if (mirrorSettings != null) {
             switch (downloadClass) {
                 case DOWNLOAD_CLASS_ASSETS:
                 case DOWNLOAD_CLASS_METADATA:
-                    baseUrl = mirrorSettings[downloadClass];
+                    sources.put(mirrorSettings[downloadClass], mirrorSettings[downloadClass] + path);
                     break;
                 case DOWNLOAD_CLASS_LIBRARIES:
-                    if (!baseUrl.endsWith("libraries.minecraft.net")) {
-                        break;
+                    if (baseUrl.endsWith("libraries.minecraft.net")) {
+                        sources.put(mirrorSettings[downloadClass], mirrorSettings[downloadClass] + path);
                     }
-                    baseUrl = mirrorSettings[downloadClass];
                     break;
                 default:
                     break;
             }
+        }
+        sources.put(baseUrl, mojangUrl);
+        return sources;
+    }
 
-            return baseUrl + path;
-        } catch (MalformedURLException e) {
-            Log.e("DownloadMirror", "Failed to parse URL", e);
-            return null;
+    /**
+     * Request the first bytes of a file from the two best sources at the same time, and put the
+     * one that answered first in front. Both answers are recorded as latency samples.
+     * @param rankedSources the sources, ordered by health
+     * @param sources the map of sources to file URLs
+     * @return the new source order
+     */
+    private static List<String> raceFirstBytes(List<String> rankedSources, Map<String, String> sources) {
+        ExecutorCompletionService<String> completionService = new ExecutorCompletionService<>(sRaceExecutor);
+        int racers = 0;
+        try {
+            for(int i = 0; i < 2; i++) {
+                String source = rankedSources.get(i);
+                String url = sources.get(source);
+                completionService.submit(() -> probeFirstBytes(source, url));
+                racers++;
+            }
+        }catch (RejectedExecutionException e) {
+            // Too many races going on already, the ranking is good enough
+        }
+        try {
+            for(int i = 0; i < racers; i++) {
+                Future<String> result = completionService.poll(RACE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if(result == null) break;
+                String winner;
+                try {
+                    winner = result.get();
+                }catch (ExecutionException e) {
+                    continue;
+                }
+                List<String> newOrder = new ArrayList<>(rankedSources);
+                newOrder.remove(winner);
+                newOrder.add(0, winner);
+                return newOrder;
+            }
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return rankedSources;
+    }
+
+    private static String probeFirstBytes(String source, String url) throws IOException {
+        long startTime = System.nanoTime();
+        HttpURLConnection connection = HttpUtils.open(url);
+        connection.setRequestProperty("Range", "bytes=0-1023");
+        try {
+            HttpUtils.checkResponse(connection);
+            InputStream inputStream = connection.getInputStream();
+            if(inputStream.read() == -1) throw new IOException("Empty response");
+            sMirrorHealth.recordLatency(source, System.nanoTime() - startTime);
+            // If the server ignored the range, don't read the whole file just to reuse the connection
+            if(connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) HttpUtils.release(connection);
+            else connection.disconnect();
+            return source;
+        }catch (IOException e) {
+            sMirrorHealth.recordFailure(source, false);
+            connection.disconnect();
+            throw e;
         }
     }
 
-    private static int getBaseUrlTail(URL url) {
+    private static int getBaseUrlTail(URL url) throws MalformedURLException {
         int protocolNameEnd = url.toString().indexOf(URL_PROTOCOL_TAIL);
         if (protocolNameEnd == -1) {
             throw new MalformedURLException("No protocol, or non path-based URL");
@@ -0,0 +1,171 @@
+package net.kdt.pojavlaunch.mirrors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps latency, throughput and error statistics for download sources, and ranks them.
+ * A source is identified by its base URL, so the same host serving several download classes
+ * from different endpoints gets separate statistics for each of them.
+ * This class doesn't perform any network access by itself: it only scores what the downloads
+ * report, which means it works the same with the real mirrors and with local test servers.
+ */
+public class MirrorHealth {
+    /** Weight of a new sample in the moving averages */
+    private static final double SAMPLE_WEIGHT = 0.3;
+    /** Transfers smaller than this are dominated by latency, and are only used to measure it */
+    private static final long LATENCY_SAMPLE_THRESHOLD = 64 * 1024;
+    /** The file size used to compare sources, about the size of an average library */
+    private static final long REFERENCE_SIZE = 256 * 1024;
+    /** Defaults for sources that were never measured, when there is no measured source to compare with */
+    private static final double DEFAULT_LATENCY_MILLIS = 150;
+    private static final double DEFAULT_BYTES_PER_MILLI = 2048;
+    /** After this many failures in a row, a source is skipped for a while */
+    private static final int FAILURE_STREAK_LIMIT = 3;
+    private static final long FAILURE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+    /** A source that served corrupted data is not trusted for much longer */
+    private static final long TAMPER_COOLDOWN_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final Map<String, SourceStatistics> mStatistics = new HashMap<>();
+
+    /**
+     * Record a successful transfer.
+     * @param source the base URL of the source
+     * @param bytes the amount of bytes transferred
+     * @param durationNanos the time the whole transfer took, connection included
+     */
+    public synchronized void recordSuccess(String source, long bytes, long durationNanos) {
+        SourceStatistics statistics = getStatistics(source);
+        double durationMillis = Math.max(1, durationNanos / 1e6);
+        if(bytes < LATENCY_SAMPLE_THRESHOLD) {
+            statistics.latencyMillis = average(statistics.latencyMillis, durationMillis);
+        } else {
+            // Take out the latency part so that it doesn't get counted twice
+            double transferMillis = Math.max(1, durationMillis - statistics.latencyMillis);
+            statistics.bytesPerMilli = average(statistics.bytesPerMilli, bytes / transferMillis);
+        }
+        statistics.errorRate = average(statistics.errorRate, 0);
+        statistics.failureStreak = 0;
+    }
+
+    /**
+     * Record the time it took a source to send the first bytes of a response.
+     * @param source the base URL of the source
+     * @param latencyNanos the time between the request and the first bytes
+     */
+    public synchronized void recordLatency(String source, long latencyNanos) {
+        SourceStatistics statistics = getStatistics(source);
+        statistics.latencyMillis = average(statistics.latencyMillis, Math.max(1, latencyNanos / 1e6));
+    }
+
+    /**
+     * Record a failed transfer.
+     * @param source the base URL of the source
+     * @param corrupted true if the source sent data that didn't match the expected hash
+     */
+    public synchronized void recordFailure(String source, boolean corrupted) {
+        SourceStatistics statistics = getStatistics(source);
+        statistics.errorRate = average(statistics.errorRate, 1);
+        statistics.failureStreak++;
+        if(corrupted) {
+            statistics.cooldownEnd = now() + TAMPER_COOLDOWN_NANOS;
+            statistics.coolingDown = true;
+        } else if(statistics.failureStreak >= FAILURE_STREAK_LIMIT) {
+            statistics.cooldownEnd = now() + FAILURE_COOLDOWN_NANOS;
+            statistics.coolingDown = true;
+        }
+    }
+
+    /**
+     * Estimate the cost of downloading a file from a source. Lower is better.
+     * @param source the base URL of the source
+     * @param size the size of the file, or a negative value if unknown
+     * @return the estimated cost, in milliseconds
+     */
+    public synchronized double getCost(String source, long size) {
+        SourceStatistics statistics = mStatistics.get(source);
+        if(size < 0) size = REFERENCE_SIZE;
+        if(statistics == null) return DEFAULT_LATENCY_MILLIS + size / DEFAULT_BYTES_PER_MILLI;
+        double cost = statistics.latencyMillis + size / statistics.bytesPerMilli;
+        // A failed attempt costs at least the attempt itself, and then a retry elsewhere
+        cost *= 1 + 4 * statistics.errorRate;
+        if(statistics.coolingDown) {
+            if(statistics.cooldownEnd - now() > 0) cost += 1e9;
+            else statistics.coolingDown = false;
+        }
+        return cost;
+    }
+
+    /**
+     * Sort sources from the best to the worst for a file.
+     * @param sources the base URLs of the sources
+     * @param size the size of the file, or a negative value if unknown
+     * @return a new list with the sources in the order they should be tried
+     */
+    public List<String> rank(List<String> sources, long size) {
+        List<String> rankedSources = new ArrayList<>(sources);
+        Map<String, Double> costs = new HashMap<>(sources.size());
+        List<Double> measuredCosts = new ArrayList<>(sources.size());
+        synchronized (this) {
+            for(String source : sources) {
+                if(!mStatistics.containsKey(source)) continue;
+                double cost = getCost(source, size);
+                costs.put(source, cost);
+                measuredCosts.add(cost);
+            }
+        }
+        // Sources that were never measured rank with the median of the measured ones. They still
+        // get tried before the bad sources, but don't get ahead of the ones with a good record.
+        double unmeasuredCost;
+        if(measuredCosts.isEmpty()) {
+            unmeasuredCost = getCost(null, size);
+        } else {
+            Collections.sort(measuredCosts);
+            int middle = measuredCosts.size() / 2;
+            unmeasuredCost = measuredCosts.size() % 2 == 1 ? measuredCosts.get(middle)
+                    : (measuredCosts.get(middle - 1) + measuredCosts.get(middle)) / 2;
+        }
+        for(String source : sources) {
+            if(!costs.containsKey(source)) costs.put(source, unmeasuredCost);
+        }
+        //noinspection ConstantConditions
+        Collections.sort(rankedSources, (a, b) -> Double.compare(costs.get(a), costs.get(b)));
+        return rankedSources;
+    }
+
+    /** Forget everything that was measured */
+    public synchronized void reset() {
+        mStatistics.clear();
+    }
+
+    /** @return the current time, in nanoseconds. Overridable for tests. */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    private SourceStatistics getStatistics(String source) {
+        SourceStatistics statistics = mStatistics.get(source);
+        if(statistics == null) {
+            statistics = new SourceStatistics();
+            mStatistics.put(source, statistics);
+        }
+        return statistics;
+    }
+
+    private static double average(double current, double sample) {
+        return current + (sample - current) * SAMPLE_WEIGHT;
+    }
+
+    private static class SourceStatistics {
+        double latencyMillis = DEFAULT_LATENCY_MILLIS;
+        double bytesPerMilli = DEFAULT_BYTES_PER_MILLI;
+        double errorRate;
+        int failureStreak;
+        long cooldownEnd;
+        boolean coolingDown;
+    }
+}
@@ -25,22 +25,21 @@ import com.kdt.SimpleArrayAdapter;
 import net.kdt.pojavlaunch.PojavApplication;
 import net.kdt.pojavlaunch.Tools;
 import net.kdt.pojavlaunch.modloaders.modpacks.api.ModpackApi;
+import net.kdt.pojavlaunch.modloaders.modpacks.api.StreamingSearch;
 import net.kdt.pojavlaunch.modloaders.modpacks.imagecache.ImageReceiver;
 import net.kdt.pojavlaunch.modloaders.modpacks.imagecache.ModIconCache;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.Constants;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.ModDetail;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.ModItem;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchFilters;
-import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchResult;
 import net.kdt.pojavlaunch.progresskeeper.TaskCountListener;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -48,16 +47,17 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class ModItemAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> implements TaskCountListener {
     private static final int VIEW_TYPE_MOD_ITEM = 0;
     private static final int VIEW_TYPE_LOADING = 1;
+    /** How close to the end of the list the next page starts loading */
+    private static final int PREFETCH_DISTANCE = 10;
 
-    private List<ModItem> mModItems = Collections.emptyList();
+    private final List<ModItem> mModItems = new ArrayList<>();
     private final ModpackApi mModpackApi;
     private final ModIconCache mIconCache;
     private final SearchResultCallback mSearchResultCallback;
     private final ExecutorService mExecutorService = PojavApplication.sExecutorService;
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private final AtomicBoolean mTasksRunning = new AtomicBoolean(false);
-    private SearchFilters mSearchFilters;
-    private SearchResult mCurrentResult;
+    private StreamingSearch mSearch;
     private boolean mLastPage;
 
     public ModItemAdapter() {
@@ -71,15 +71,14 @@ public class ModItemAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         this.mCornerDimensionCache = resources.getDimension(R.dimen._1sdp) / 250;
     }
 
+    @SuppressLint("NotifyDataSetChanged")
     public void performSearchQuery(SearchFilters searchFilters) {
-        if (mTaskInProgress != null) {
-            mTaskInProgress.cancel(true);
-            mTaskInProgress = null;
-        }
-        this.mSearchFilters = searchFilters;
-        this.mLastPage = false;
-        mTaskInProgress = new SelfReferencingFuture<>(this::new SearchApiTask)
-                .execute(mExecutorService);
+        // The user typed something else, the results of the previous query are useless now
+        if (mSearch != null) mSearch.cancel();
+        mModItems.clear();
+        mLastPage = false;
+        notifyDataSetChanged();
+        mSearch = mModpackApi.startSearch(searchFilters, new SearchListener());
     }
 
     @NonNull
@@ -106,6 +105,8 @@ public class ModItemAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         switch (getItemViewType(position)) {
             case VIEW_TYPE_MOD_ITEM:
                 ((ViewHolder) holder).setStateLimited(mModItems.get(position));
+                // Start loading the next page before the user reaches the end of the list
+                if (position >= mModItems.size() - PREFETCH_DISTANCE) loadMoreResults();
                 break;
             case VIEW_TYPE_LOADING:
                 loadMoreResults();
@@ -121,9 +122,7 @@ public class ModItemAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     }
 
     private void loadMoreResults() {
-        if (mTaskInProgress != null) return;
-        mTaskInProgress = new SelfReferencingFuture<>(this::new SearchApiTask)
-                .execute(mExecutorService);
+        if (mSearch != null) mSearch.loadMore();
     }
 
     @Override
@@ -225,8 +224,9 @@ public class ModItemAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         public void setStateLimited(ModItem item) {
             mModDetail = null;
             if (mThumbnailBitmap != null) {
+                // The bitmap is shared through the icon cache, so it must not be recycled here
                 mIconView.setImageBitmap(null);
-                mThumbnailBitmap.recycle();
+                mThumbnailBitmap = null;
             }
             if (mImageReceiver != null) {
                 mIconCache.cancelImage(mImageReceiver);
@@ -337,52 +337,28 @@ public class ModItemAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         }
     }
 
-    private class SearchApiTask implements Callable<SearchResult> {
-        private final SearchFilters mSearchFilters;
-        private final SearchResult mPreviousResult;
-
-        private SearchApiTask(SearchFilters searchFilters, SearchResult previousResult) {
-            this.mSearchFilters = searchFilters;
-            this.mPreviousResult = previousResult;
-        }
-
+    /**
+     * Appends the results of the current search as they arrive from each provider
+     */
+    private class SearchListener implements StreamingSearch.Listener {
         @Override
-        public SearchResult call() throws Exception {
-            SearchResult result = mModpackApi.searchMod(mSearchFilters, mPreviousResult);
-            Optional.ofNullable(result)
-                    .map(SearchResult::getResults)
-                    .ifPresent(this::updateModItems);
-            return result;
+        public void onItemsAvailable(List<ModItem> modItems) {
+            boolean firstItems = mModItems.isEmpty();
+            int insertPosition = mModItems.size();
+            mModItems.addAll(modItems);
+            notifyItemRangeInserted(insertPosition, modItems.size());
+            if (firstItems) mSearchResultCallback.onSearchFinished();
         }
 
-        private void updateModItems(List<ModItem> modItems) {
-            List<ModItem> newModItems = mPreviousResult != null ? new ArrayList<>(mPreviousResult.getResults()) : new ArrayList<>();
-            newModItems.addAll(modItems);
-            mHandler.post(() -> {
-                if (mTaskInProgress != null && mTaskInProgress.isCancelled()) return;
-                mTaskInProgress = null;
-                if (modItems == null || modItems.isEmpty()) {
-                    if (mPreviousResult != null) {
-                        mLastPage = true;
-                        notifyItemChanged(mModItems.size());
-                        mSearchResultCallback.onSearchFinished();
-                        return;
-                    }
-                    mSearchResultCallback.onSearchError(SearchResultCallback.ERROR_NO_RESULTS);
-                } else {
-                    mSearchResultCallback.onSearchFinished();
-                }
-                mCurrentResult = mPreviousResult != null ? new SearchResult(newModItems) : result;
-                if (mPreviousResult == null) {
-                    mModItems = newModItems;
-                    notifyDataSetChanged();
-                    return;
-                }
-                int prevLength = mModItems.size();
-                mModItems = newModItems;
-                notifyItemChanged(prevLength);
-                notifyItemRangeInserted(prevLength + 1, mModItems.size());
-            });
+        @Override
+        public void onSearchEnded(int itemCount, boolean hadErrors) {
+            mLastPage = true;
+            // Remove the loading indicator
+            notifyItemRemoved(mModItems.size());
+            if (itemCount == 0) {
+                mSearchResultCallback.onSearchError(hadErrors ?
+                        SearchResultCallback.ERROR_INTERNAL : SearchResultCallback.ERROR_NO_RESULTS);
+            }
         }
     }
 
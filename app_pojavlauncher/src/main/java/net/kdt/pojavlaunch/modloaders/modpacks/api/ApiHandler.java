@@ -5,16 +5,17 @@ import android.util.Log;
 
 import com.google.gson.Gson;
 
+import net.kdt.pojavlaunch.utils.HttpUtils;
+
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 public class ApiHandler<T> {
     public final String baseUrl;
@@ -38,6 +39,18 @@ public class ApiHandler<T> {
         return getFullUrl(additionalHeaders, baseUrl + "/" + endpoint, query, tClass);
     }
 
+    /**
+     * Same as get(), but may return an outdated response from the cache while it gets refreshed
+     * in the background. Meant for pages that rarely change, like mod details.
+     */
+    public T getAllowStale(String endpoint, Class<T> tClass) throws IOException {
+        return parseCached(additionalHeaders, baseUrl + "/" + endpoint, true, tClass);
+    }
+
+    public T getAllowStale(String endpoint, HashMap<String, Object> query, Class<T> tClass) throws IOException {
+        return parseCached(additionalHeaders, baseUrl + "/" + endpoint + parseQueries(query), true, tClass);
+    }
+
     public T post(String endpoint, T body, Class<T> tClass) throws IOException {
         return postFullUrl(additionalHeaders, baseUrl + "/" + endpoint, body, tClass);
     }
@@ -54,13 +67,9 @@ public class ApiHandler<T> {
     public static String getRaw(Map<String, String> headers, String url) throws IOException {
         Log.d("ApiHandler", url);
         try {
-            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-            addHeaders(conn, headers);
-            InputStream inputStream = conn.getInputStream();
-            String data = Tools.read(inputStream);
+            HttpURLConnection conn = HttpUtils.openJson(url, headers);
+            String data = HttpUtils.readString(conn);
             Log.d(ApiHandler.class.toString(), data);
-            inputStream.close();
-            conn.disconnect();
             return data;
         } catch (IOException e) {
             e.printStackTrace();
@@ -74,37 +83,24 @@ public class ApiHandler<T> {
 
     public static String postRaw(Map<String, String> headers, String url, String body) throws IOException {
         try {
-            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            HttpURLConnection conn = HttpUtils.openJson(url, headers);
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            addHeaders(conn, headers);
             conn.setDoOutput(true);
 
-            OutputStream outputStream = conn.getOutputStream();
             byte[] input = body.getBytes(StandardCharsets.UTF_8);
-            outputStream.write(input, 0, input.length);
-            outputStream.close();
-
-            InputStream inputStream = conn.getInputStream();
-            String data = Tools.read(inputStream);
-            inputStream.close();
+            conn.setFixedLengthStreamingMode(input.length);
+            try (OutputStream outputStream = conn.getOutputStream()) {
+                outputStream.write(input, 0, input.length);
+            }
 
-            conn.disconnect();
-            return data;
+            return HttpUtils.readString(conn);
         } catch (IOException e) {
             e.printStackTrace();
             throw e;
         }
     }
 
-    private static void addHeaders(HttpURLConnection connection, Map<String, String> headers) {
-        if(headers != null) {
-            for(String key : headers.keySet())
-                connection.addRequestProperty(key, headers.get(key));
-        }
-    }
-
     private static String parseQueries(HashMap<String, Object> query) {
         StringBuilder params = new StringBuilder("?");
         for (String param : query.keySet()) {
@@ -134,7 +130,12 @@ public class ApiHandler<T> {
     }
 
     public T getFullUrl(Map<String, String> headers, String url, Class<T> tClass) throws IOException {
-        return new Gson().fromJson(getRaw(headers, url), tClass);
+        return parseCached(headers, url, false, tClass);
+    }
+
+    private T parseCached(Map<String, String> headers, String url, boolean allowStale, Class<T> tClass) throws IOException {
+        Log.d("ApiHandler", url);
+        return new Gson().fromJson(ApiResponseCache.getInstance().get(headers, url, allowStale), tClass);
     }
 
     public T getFullUrl(Map<String, String> headers, String url, HashMap<String, Object> query, Class<T> tClass) throws IOException {
@@ -0,0 +1,363 @@
+package net.kdt.pojavlaunch.modloaders.modpacks.api;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.utils.HttpUtils;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for the responses of the mod APIs, kept in memory and on disk.
+ * Responses are fresh for as long as their Cache-Control header allows (or for a few minutes if
+ * the server doesn't say), and get revalidated with their ETag once they expire, which costs a
+ * 304 instead of a whole response. Callers that can live with outdated data (mod details) get
+ * stale responses right away while they get refreshed in the background, and every caller gets
+ * a stale response rather than an error when the network is unavailable.
+ */
+class ApiResponseCache {
+    private static final String TAG = "ApiResponseCache";
+    private static final int ENTRY_MAGIC = 0x50564143; // "PVAC"
+    private static final int ENTRY_VERSION = 1;
+    /** Memory budget, in characters of response bodies */
+    private static final long MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final long DISK_CACHE_SIZE = 32 * 1024 * 1024;
+    /** How often the disk cache gets trimmed, in stored responses */
+    private static final int DISK_TRIM_INTERVAL = 32;
+    /** Freshness of responses without a Cache-Control header */
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /** How long a stale response can be served while it gets refreshed, if the server doesn't say */
+    private static final long DEFAULT_STALE_WHILE_REVALIDATE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /** How old a response can be to be served when the network is unavailable */
+    private static final long MAX_STALE_ON_ERROR_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static ApiResponseCache sInstance;
+
+    private final File mCacheDirectory;
+    private final LinkedHashMap<String, CachedResponse> mMemoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> mPendingRevalidations = Collections.synchronizedSet(new HashSet<>());
+    private final ThreadPoolExecutor mRevalidationExecutor = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mRevalidationCount = new AtomicLong();
+    private final AtomicLong mStaleCount = new AtomicLong();
+    private long mMemoryCacheSize;
+    private int mStoresSinceTrim = DISK_TRIM_INTERVAL;
+
+    static synchronized ApiResponseCache getInstance() {
+        if(sInstance == null) {
+            sInstance = new ApiResponseCache(new File(Tools.DIR_CACHE, "api_responses"));
+        }
+        return sInstance;
+    }
+
+    private ApiResponseCache(File cacheDirectory) {
+        this.mCacheDirectory = cacheDirectory;
+        mRevalidationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the body of a GET request, from the cache if possible.
+     * @param headers the request headers, or null
+     * @param url the request URL
+     * @param allowStale true to accept an outdated response while it gets refreshed in the background
+     * @return the response body
+     * @throws IOException if the request failed and there is no usable cached response
+     */
+    String get(@Nullable Map<String, String> headers, String url, boolean allowStale) throws IOException {
+        CachedResponse cachedResponse = getCachedResponse(url);
+        long now = System.currentTimeMillis();
+        if(cachedResponse != null) {
+            if(cachedResponse.isFresh(now)) {
+                mHitCount.incrementAndGet();
+                return cachedResponse.body;
+            }
+            if(allowStale && cachedResponse.canServeStale(now)) {
+                mStaleCount.incrementAndGet();
+                revalidateInBackground(headers, url, cachedResponse);
+                return cachedResponse.body;
+            }
+        }
+        mMissCount.incrementAndGet();
+        try {
+            return fetch(headers, url, cachedResponse).body;
+        }catch (IOException e) {
+            // Client errors are real answers, server errors and network failures are not
+            boolean clientError = e instanceof HttpUtils.HttpException && ((HttpUtils.HttpException) e).responseCode < 500;
+            if(clientError || cachedResponse == null
+                    || now - cachedResponse.storedAt > MAX_STALE_ON_ERROR_MILLIS) throw e;
+            Log.w(TAG, "Request failed, using a stale response for "+url, e);
+            mStaleCount.incrementAndGet();
+            return cachedResponse.body;
+        }
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /** @return the amount of expired responses that the server confirmed to be unchanged */
+    long getRevalidationCount() {
+        return mRevalidationCount.get();
+    }
+
+    /** @return the amount of stale responses served, while revalidating or because of network errors */
+    long getStaleCount() {
+        return mStaleCount.get();
+    }
+
+    /**
+     * Request the URL, conditionally if a cached response has an ETag, and cache the result.
+     * @return the new or revalidated response
+     */
+    private CachedResponse fetch(@Nullable Map<String, String> headers, String url,
+                                 @Nullable CachedResponse cachedResponse) throws IOException {
+        HttpURLConnection connection = HttpUtils.openJson(url, headers);
+        if(cachedResponse != null && cachedResponse.etag != null) {
+            connection.setRequestProperty("If-None-Match", cachedResponse.etag);
+        }
+        CacheControl cacheControl;
+        if(connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cachedResponse != null) {
+            cacheControl = CacheControl.parse(connection.getHeaderField("Cache-Control"));
+            HttpUtils.release(connection);
+            mRevalidationCount.incrementAndGet();
+            CachedResponse revalidatedResponse = new CachedResponse(cachedResponse.body, cachedResponse.etag,
+                    System.currentTimeMillis(), cacheControl.maxAgeMillis, cacheControl.staleWhileRevalidateMillis);
+            store(url, revalidatedResponse);
+            return revalidatedResponse;
+        }
+        String body = HttpUtils.readString(connection);
+        cacheControl = CacheControl.parse(connection.getHeaderField("Cache-Control"));
+        CachedResponse newResponse = new CachedResponse(body, connection.getHeaderField("ETag"),
+                System.currentTimeMillis(), cacheControl.maxAgeMillis, cacheControl.staleWhileRevalidateMillis);
+        if(cacheControl.noStore) {
+            remove(url);
+        }else {
+            store(url, newResponse);
+        }
+        return newResponse;
+    }
+
+    private void revalidateInBackground(@Nullable Map<String, String> headers, String url, CachedResponse cachedResponse) {
+        if(!mPendingRevalidations.add(url)) return;
+        mRevalidationExecutor.execute(() -> {
+            try {
+                fetch(headers, url, cachedResponse);
+            }catch (IOException e) {
+                Log.w(TAG, "Background revalidation failed for "+url, e);
+            }finally {
+                mPendingRevalidations.remove(url);
+            }
+        });
+    }
+
+    private @Nullable CachedResponse getCachedResponse(String url) {
+        synchronized (mMemoryCache) {
+            CachedResponse cachedResponse = mMemoryCache.get(url);
+            if(cachedResponse != null) return cachedResponse;
+        }
+        CachedResponse cachedResponse = readFromDisk(getCacheFile(url));
+        if(cachedResponse != null) putInMemory(url, cachedResponse);
+        return cachedResponse;
+    }
+
+    private void store(String url, CachedResponse cachedResponse) {
+        putInMemory(url, cachedResponse);
+        writeToDisk(getCacheFile(url), cachedResponse);
+    }
+
+    private void remove(String url) {
+        synchronized (mMemoryCache) {
+            CachedResponse removedResponse = mMemoryCache.remove(url);
+            if(removedResponse != null) mMemoryCacheSize -= removedResponse.body.length();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        getCacheFile(url).delete();
+    }
+
+    private void putInMemory(String url, CachedResponse cachedResponse) {
+        synchronized (mMemoryCache) {
+            CachedResponse previousResponse = mMemoryCache.put(url, cachedResponse);
+            if(previousResponse != null) mMemoryCacheSize -= previousResponse.body.length();
+            mMemoryCacheSize += cachedResponse.body.length();
+            Iterator<CachedResponse> iterator = mMemoryCache.values().iterator();
+            // Drop the least recently used responses, but always keep the newest one
+            while(mMemoryCacheSize > MEMORY_CACHE_SIZE && mMemoryCache.size() > 1) {
+                mMemoryCacheSize -= iterator.next().body.length();
+                iterator.remove();
+            }
+        }
+    }
+
+    private File getCacheFile(String url) {
+        return new File(mCacheDirectory, DigestUtils.sha1Hex(url));
+    }
+
+    private static @Nullable CachedResponse readFromDisk(File cacheFile) {
+        if(!cacheFile.isFile()) return null;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if(inputStream.readInt() != ENTRY_MAGIC || inputStream.readInt() != ENTRY_VERSION) return null;
+            long storedAt = inputStream.readLong();
+            long maxAgeMillis = inputStream.readLong();
+            long staleWhileRevalidateMillis = inputStream.readLong();
+            String etag = inputStream.readBoolean() ? inputStream.readUTF() : null;
+            byte[] body = new byte[inputStream.readInt()];
+            inputStream.readFully(body);
+            return new CachedResponse(new String(body, StandardCharsets.UTF_8), etag,
+                    storedAt, maxAgeMillis, staleWhileRevalidateMillis);
+        }catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache entry "+cacheFile.getName(), e);
+            //noinspection ResultOfMethodCallIgnored
+            cacheFile.delete();
+            return null;
+        }
+    }
+
+    private void writeToDisk(File cacheFile, CachedResponse cachedResponse) {
+        if(!mCacheDirectory.isDirectory() && !mCacheDirectory.mkdirs()) return;
+        File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp" + Thread.currentThread().getId());
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            outputStream.writeInt(ENTRY_MAGIC);
+            outputStream.writeInt(ENTRY_VERSION);
+            outputStream.writeLong(cachedResponse.storedAt);
+            outputStream.writeLong(cachedResponse.maxAgeMillis);
+            outputStream.writeLong(cachedResponse.staleWhileRevalidateMillis);
+            outputStream.writeBoolean(cachedResponse.etag != null);
+            if(cachedResponse.etag != null) outputStream.writeUTF(cachedResponse.etag);
+            byte[] body = cachedResponse.body.getBytes(StandardCharsets.UTF_8);
+            outputStream.writeInt(body.length);
+            outputStream.write(body);
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to write cache entry "+cacheFile.getName(), e);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if(!tempFile.renameTo(cacheFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        trimDiskCache();
+    }
+
+    /** Delete the least recently stored responses once the disk cache goes over its budget */
+    private void trimDiskCache() {
+        synchronized (mCacheDirectory) {
+            if(++mStoresSinceTrim < DISK_TRIM_INTERVAL) return;
+            mStoresSinceTrim = 0;
+            File[] cacheFiles = mCacheDirectory.listFiles();
+            if(cacheFiles == null) return;
+            long totalSize = 0;
+            long[] lastModified = new long[cacheFiles.length];
+            Integer[] order = new Integer[cacheFiles.length];
+            for(int i = 0; i < cacheFiles.length; i++) {
+                totalSize += cacheFiles[i].length();
+                lastModified[i] = cacheFiles[i].lastModified();
+                order[i] = i;
+            }
+            if(totalSize <= DISK_CACHE_SIZE) return;
+            Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+            for(Integer index : order) {
+                if(totalSize <= DISK_CACHE_SIZE) break;
+                File cacheFile = cacheFiles[index];
+                long length = cacheFile.length();
+                if(cacheFile.delete()) totalSize -= length;
+            }
+        }
+    }
+
+    private static class CachedResponse {
+        final String body;
+        final String etag;
+        final long storedAt;
+        final long maxAgeMillis;
+        final long staleWhileRevalidateMillis;
+
+        CachedResponse(String body, @Nullable String etag, long storedAt,
+                       long maxAgeMillis, long staleWhileRevalidateMillis) {
+            this.body = body;
+            this.etag = etag;
+            this.storedAt = storedAt;
+            this.maxAgeMillis = maxAgeMillis;
+            this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+        }
+
+        boolean isFresh(long now) {
+            // A clock that went backwards makes the response stale
+            long age = now - storedAt;
+            return age >= 0 && age < maxAgeMillis;
+        }
+
+        boolean canServeStale(long now) {
+            long age = now - storedAt;
+            return age >= 0 && age < maxAgeMillis + staleWhileRevalidateMillis;
+        }
+    }
+
+    /** The parts of the Cache-Control header that matter for a private client cache */
+    private static class CacheControl {
+        long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+        long staleWhileRevalidateMillis = DEFAULT_STALE_WHILE_REVALIDATE_MILLIS;
+        boolean noStore;
+
+        static CacheControl parse(@Nullable String header) {
+            CacheControl cacheControl = new CacheControl();
+            if(header == null) return cacheControl;
+            boolean noCache = false;
+            for(String directive : header.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if(directive.equals("no-store")) {
+                    cacheControl.noStore = true;
+                }else if(directive.equals("no-cache")) {
+                    noCache = true;
+                }else if(directive.startsWith("max-age=")) {
+                    cacheControl.maxAgeMillis = parseSeconds(directive.substring(8), cacheControl.maxAgeMillis);
+                }else if(directive.startsWith("stale-while-revalidate=")) {
+                    cacheControl.staleWhileRevalidateMillis = parseSeconds(directive.substring(23),
+                            cacheControl.staleWhileRevalidateMillis);
+                }
+            }
+            // Stored, but revalidated before each use
+            if(noCache) cacheControl.maxAgeMillis = 0;
+            return cacheControl;
+        }
+
+        private static long parseSeconds(String value, long defaultMillis) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(value.replace("\"", "")));
+            }catch (NumberFormatException e) {
+                return defaultMillis;
+            }
+        }
+    }
+}
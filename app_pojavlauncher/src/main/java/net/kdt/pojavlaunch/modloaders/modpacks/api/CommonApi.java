@@ -101,6 +101,12 @@ public class CommonApi implements ModpackApi {
         return commonApiSearchResult;
     }
 
+    /** Search every API, showing the results of each of them as soon as they arrive */
+    @Override
+    public StreamingSearch startSearch(SearchFilters searchFilters, StreamingSearch.Listener listener) {
+        return new StreamingSearch(mModpackApis, searchFilters, listener);
+    }
+
     @Override
     public ModDetail getModDetails(ModItem item) {
         Log.i("CommonApi", "Invoking getModDetails on item.apiSource="+item.apiSource +" item.title="+item.title);
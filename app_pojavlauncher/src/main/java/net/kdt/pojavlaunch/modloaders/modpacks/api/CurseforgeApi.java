@@ -19,7 +19,6 @@ import net.kdt.pojavlaunch.modloaders.modpacks.models.ModItem;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchFilters;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchResult;
 import net.kdt.pojavlaunch.progresskeeper.ProgressKeeper;
-import net.kdt.pojavlaunch.utils.FileUtils;
 import net.kdt.pojavlaunch.utils.GsonJsonUtils;
 import net.kdt.pojavlaunch.utils.ZipUtils;
 
@@ -27,12 +26,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.zip.ZipFile;
 
 public class CurseforgeApi implements ModpackApi{
     private static final Pattern sMcVersionPattern = Pattern.compile("([0-9]+)\\.([0-9]+)\\.?([0-9]+)?");
-    private static final int ALGO_SHA_1 = 1;
     // Stolen from
     // https://github.com/AnzhiZhang/CurseForgeModpackDownloader/blob/6cb3f428459f0cc8f444d16e54aea4cd1186fd7b/utils/requester.py#L93
     private static final int CURSEFORGE_MINECRAFT_GAME_ID = 432;
@@ -41,12 +42,16 @@ public class CurseforgeApi implements ModpackApi{
     private static final int CURSEFORGE_MOD_CLASS_ID = 6;
     private static final int CURSEFORGE_SORT_RELEVANCY = 1;
     private static final int CURSEFORGE_PAGINATION_SIZE = 50;
-    private static final int CURSEFORGE_PAGINATION_END_REACHED = -1;
-    private static final int CURSEFORGE_PAGINATION_ERROR = -2;
 
-    private final ApiHandler mApiHandler;
+    private final ApiHandler<JsonObject> mApiHandler;
+    private final CurseforgeFileResolver mFileResolver;
     public CurseforgeApi(String apiKey) {
-        mApiHandler = new ApiHandler("https://api.curseforge.com/v1", apiKey);
+        this("https://api.curseforge.com/v1", apiKey);
+    }
+
+    CurseforgeApi(String baseUrl, String apiKey) {
+        mApiHandler = new ApiHandler<>(baseUrl, apiKey);
+        mFileResolver = new CurseforgeFileResolver(mApiHandler);
     }
 
     @Override
@@ -97,13 +102,14 @@ public class CurseforgeApi implements ModpackApi{
 
     @Override
     public ModDetail getModDetails(ModItem item) {
-        ArrayList<JsonObject> allModDetails = new ArrayList<>();
-        int index = 0;
-        while(index != CURSEFORGE_PAGINATION_END_REACHED &&
-                index != CURSEFORGE_PAGINATION_ERROR) {
-            index = getPaginatedDetails(allModDetails, index, item.id);
+        List<JsonObject> allModDetails;
+        try {
+            allModDetails = ParallelPaginator.fetchAll(CURSEFORGE_PAGINATION_SIZE,
+                    (index, pageSize) -> getPaginatedDetails(index, pageSize, item.id));
+        }catch (IOException e) {
+            Log.w("CurseforgeApi", "Failed to get the files of "+item.id, e);
+            return null;
         }
-        if(index == CURSEFORGE_PAGINATION_ERROR) return null;
         int length = allModDetails.size();
         String[] versionNames = new String[length];
         String[] mcVersionNames = new String[length];
@@ -138,24 +144,26 @@ public class CurseforgeApi implements ModpackApi{
     }
 
 
-    private int getPaginatedDetails(ArrayList<JsonObject> objectList, int index, String modId) {
+    private ParallelPaginator.Page<JsonObject> getPaginatedDetails(int index, int pageSize, String modId) throws IOException {
         HashMap<String, Object> params = new HashMap<>();
         params.put("index", index);
-        params.put("pageSize", CURSEFORGE_PAGINATION_SIZE);
+        params.put("pageSize", pageSize);
 
+        // The pages are fetched independently, stale ones could have shifted offsets compared to
+        // the fresh ones and duplicate or skip files
         JsonObject response = mApiHandler.get("mods/"+modId+"/files", params, JsonObject.class);
         JsonArray data = GsonJsonUtils.getJsonArraySafe(response, "data");
-        if(data == null) return CURSEFORGE_PAGINATION_ERROR;
+        if(data == null) throw new IOException("No file list in the response for "+modId);
+        JsonObject pagination = GsonJsonUtils.getJsonObjectSafe(response, "pagination");
+        int totalCount = GsonJsonUtils.getIntSafe(pagination, "totalCount", -1);
 
+        ArrayList<JsonObject> objectList = new ArrayList<>(data.size());
         for(int i = 0; i < data.size(); i++) {
             JsonObject fileInfo = data.get(i).getAsJsonObject();
             if(fileInfo.get("isServerPack").getAsBoolean()) continue;
             objectList.add(fileInfo);
         }
-        if(data.size() < CURSEFORGE_PAGINATION_SIZE) {
-            return CURSEFORGE_PAGINATION_END_REACHED; // we read the remainder! yay!
-        }
-        return index + data.size();
+        return new ParallelPaginator.Page<>(objectList, data.size(), totalCount);
     }
 
     private ModLoader installCurseforgeZip(File zipFile, File instanceDestination) throws IOException {
@@ -167,24 +175,60 @@ public class CurseforgeApi implements ModpackApi{
                 Log.i("CurseforgeApi","manifest verification failed");
                 return null;
             }
+            // Only download the files that changed since the last install of the modpack
+            ModpackState modpackState = ModpackState.begin(instanceDestination);
+            ArrayList<CurseManifest.CurseFile> changedFiles = new ArrayList<>(curseManifest.files.length);
+            for(CurseManifest.CurseFile curseFile : curseManifest.files) {
+                String identity = getFileIdentity(curseFile);
+                String previousPath = modpackState.findPreviousPath(identity);
+                if(previousPath != null && modpackState.isUnchanged(instanceDestination, previousPath, identity)) {
+                    modpackState.addFile(previousPath, identity);
+                    continue;
+                }
+                changedFiles.add(curseFile);
+            }
+            CurseManifest.CurseFile[] filesToDownload = changedFiles.toArray(new CurseManifest.CurseFile[0]);
+            // Resolve all the files in a few batch requests before the downloads start
+            mFileResolver.resolveAll(filesToDownload, (c, m)->
+                    ProgressKeeper.submitProgress(ProgressLayout.INSTALL_MODPACK, (int) Math.max((float)c/m*100,0), R.string.modpack_download_resolving_files, c, m)
+            );
             ModDownloader modDownloader = new ModDownloader(new File(instanceDestination,"mods"), true);
-            int fileCount = curseManifest.files.length;
-            for(int i = 0; i < fileCount; i++) {
-                final CurseManifest.CurseFile curseFile = curseManifest.files[i];
+            Set<String> downloadedPaths = new HashSet<>();
+            boolean allFilesResolved = true;
+            for(final CurseManifest.CurseFile curseFile : filesToDownload) {
+                CurseforgeFileResolver.ResolvedFile batchResolvedFile = mFileResolver.get(curseFile.projectID, curseFile.fileID);
+                if(batchResolvedFile != null) downloadedPaths.add("mods/" + batchResolvedFile.fileName);
+                else allFilesResolved = false;
                 modDownloader.submitDownload(()->{
-                    String url = getDownloadUrl(curseFile.projectID, curseFile.fileID);
-                    if(url == null && curseFile.required)
+                    CurseforgeFileResolver.ResolvedFile resolvedFile = getResolvedFile(curseFile.projectID, curseFile.fileID);
+                    if(resolvedFile == null && curseFile.required)
                         throw new IOException("Failed to obtain download URL for "+curseFile.projectID+" "+curseFile.fileID);
-                    else if(url == null) return null;
-                    return new ModDownloader.FileInfo(url, FileUtils.getFileName(url), getDownloadSha1(curseFile.projectID, curseFile.fileID));
+                    else if(resolvedFile == null) return null;
+                    modpackState.addFile("mods/" + resolvedFile.fileName, getFileIdentity(curseFile));
+                    return new ModDownloader.FileInfo(0, resolvedFile.fileName, resolvedFile.sha1, resolvedFile.url);
                 });
             }
-            modDownloader.awaitFinish((c,m)->
-                    ProgressKeeper.submitProgress(ProgressLayout.INSTALL_MODPACK, (int) Math.max((float)c/m*100,0), R.string.modpack_download_downloading_mods_fc, c, m)
-            );
+
+            // Apply the overrides while the mods download, except the ones that may replace a mod.
+            // The names of the files that the batch lookup missed are unknown until they get downloaded.
             String overridesDir = "overrides";
             if(curseManifest.overrides != null) overridesDir = curseManifest.overrides;
-            ZipUtils.zipExtract(modpackZipFile, overridesDir, instanceDestination);
+            final boolean namesKnown = allFilesResolved;
+            OverridesExtractor overridesExtractor = new OverridesExtractor(modpackZipFile, instanceDestination, modpackState,
+                    (path) -> namesKnown ? downloadedPaths.contains(path) : path.startsWith("mods/"),
+                    overridesDir);
+            overridesExtractor.start();
+            try {
+                modDownloader.awaitFinish((c,m)->
+                        ProgressKeeper.submitProgress(ProgressLayout.INSTALL_MODPACK, (int) Math.max((float)c/m*100,0), R.string.modpack_download_downloading_mods_fc, c, m)
+                );
+            }catch (IOException e) {
+                overridesExtractor.cancel();
+                throw e;
+            }
+            overridesExtractor.finish();
+            modpackState.deleteRemovedFiles(instanceDestination);
+            modpackState.save(instanceDestination);
             return createInfo(curseManifest.minecraft);
         }
     }
@@ -218,45 +262,31 @@ public class CurseforgeApi implements ModpackApi{
         return new ModLoader(modLoaderTypeInt, modLoaderVersion, minecraft.version);
     }
 
-    private String getDownloadUrl(long projectID, long fileID) {
-        // First try the official api endpoint
-        JsonObject response = mApiHandler.get("mods/"+projectID+"/files/"+fileID+"/download-url", JsonObject.class);
-        if (response != null && !response.get("data").isJsonNull())
-            return response.get("data").getAsString();
-
-        // Otherwise, fallback to building an edge link
-        JsonObject fallbackResponse = mApiHandler.get(String.format("mods/%s/files/%s", projectID, fileID), JsonObject.class);
-        if (fallbackResponse != null && !fallbackResponse.get("data").isJsonNull()){
-            JsonObject modData = fallbackResponse.get("data").getAsJsonObject();
-            int id = modData.get("id").getAsInt();
-            return String.format("https://edge.forgecdn.net/files/%s/%s/%s", id/1000, id % 1000, modData.get("fileName").getAsString());
-        }
-
-        return null;
-    }
+    /**
+     * Get the download information of a file, from the batch resolution results if possible.
+     * Files missing from them are looked up individually.
+     * @return the file information, or null if the file doesn't exist anymore
+     * @throws IOException if the individual lookup fails
+     */
+    private @Nullable CurseforgeFileResolver.ResolvedFile getResolvedFile(long projectID, long fileID) throws IOException {
+        CurseforgeFileResolver.ResolvedFile resolvedFile = mFileResolver.get(projectID, fileID);
+        if(resolvedFile != null) return resolvedFile;
 
-    private @Nullable String getDownloadSha1(long projectID, long fileID) {
-        // Try the api endpoint, die in the other case
         JsonObject response = mApiHandler.get("mods/"+projectID+"/files/"+fileID, JsonObject.class);
         JsonObject data = GsonJsonUtils.getJsonObjectSafe(response, "data");
         if(data == null) return null;
-        return getSha1FromModData(data);
+        resolvedFile = CurseforgeFileResolver.fromFileData(data);
+        if(resolvedFile != null) mFileResolver.put(projectID, fileID, resolvedFile);
+        return resolvedFile;
+    }
+
+    /** The manifest doesn't give hashes, but a project/file ID pair always designates the same file */
+    private static String getFileIdentity(CurseManifest.CurseFile curseFile) {
+        return "curseforge:" + curseFile.projectID + ":" + curseFile.fileID;
     }
 
     private String getSha1FromModData(@NonNull JsonObject object) {
-        JsonArray hashes = GsonJsonUtils.getJsonArraySafe(object, "hashes");
-        if(hashes == null) return null;
-        for (JsonElement jsonElement : hashes) {
-            // The sha1 = 1; md5 = 2;
-            JsonObject jsonObject = GsonJsonUtils.getJsonObjectSafe(jsonElement);
-            if(GsonJsonUtils.getIntSafe(
-                    jsonObject,
-                    "algo",
-                    -1) == ALGO_SHA_1) {
-                return GsonJsonUtils.getStringSafe(jsonObject, "value");
-            }
-        }
-        return null;
+        return CurseforgeFileResolver.getSha1FromFileData(object);
     }
 
     private boolean verifyManifest(CurseManifest manifest) {
@@ -0,0 +1,142 @@
+package net.kdt.pojavlaunch.modloaders.modpacks.api;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import net.kdt.pojavlaunch.modloaders.modpacks.models.CurseManifest;
+import net.kdt.pojavlaunch.utils.GsonJsonUtils;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the download URL, file name and hash of CurseForge files in bulk, using the batch
+ * files endpoint instead of several requests per file.
+ * Resolved files are cached for the lifetime of the process, keyed by project and file ID.
+ */
+class CurseforgeFileResolver {
+    private static final String TAG = "CurseforgeFileResolver";
+    private static final int BATCH_SIZE = 100;
+    private static final int ALGO_SHA_1 = 1;
+    private static final Map<String, ResolvedFile> sResolvedFiles = new ConcurrentHashMap<>();
+
+    private final ApiHandler<JsonObject> mApiHandler;
+
+    CurseforgeFileResolver(ApiHandler<JsonObject> apiHandler) {
+        this.mApiHandler = apiHandler;
+    }
+
+    /**
+     * Resolve all the files that aren't cached yet, in chunks. Files the batch endpoint doesn't
+     * return (or all of them, if the endpoint fails) are left for the individual lookups.
+     * @param files the files of a modpack manifest
+     * @param progressListener the listener receiving the amount of files resolved so far, or null
+     */
+    void resolveAll(CurseManifest.CurseFile[] files, @Nullable ProgressListener progressListener) {
+        JsonArray pendingIds = new JsonArray();
+        int processedCount = 0;
+        for(CurseManifest.CurseFile file : files) {
+            processedCount++;
+            if(sResolvedFiles.containsKey(getKey(file.projectID, file.fileID))) continue;
+            pendingIds.add(file.fileID);
+            if(pendingIds.size() < BATCH_SIZE) continue;
+            resolveBatch(pendingIds);
+            pendingIds = new JsonArray();
+            if(progressListener != null) progressListener.onProgress(processedCount, files.length);
+        }
+        if(pendingIds.size() > 0) resolveBatch(pendingIds);
+        if(progressListener != null) progressListener.onProgress(files.length, files.length);
+    }
+
+    /**
+     * Get a file resolved by resolveAll().
+     * @return the resolved file, or null if it has to be looked up individually
+     */
+    @Nullable ResolvedFile get(long projectID, long fileID) {
+        return sResolvedFiles.get(getKey(projectID, fileID));
+    }
+
+    /** Add a file that got resolved by an individual lookup */
+    void put(long projectID, long fileID, ResolvedFile resolvedFile) {
+        sResolvedFiles.put(getKey(projectID, fileID), resolvedFile);
+    }
+
+    private void resolveBatch(JsonArray fileIds) {
+        JsonObject requestBody = new JsonObject();
+        requestBody.add("fileIds", fileIds);
+        JsonObject response;
+        try {
+            response = mApiHandler.post("mods/files", requestBody, JsonObject.class);
+        }catch (IOException e) {
+            Log.w(TAG, "Batch file lookup failed, falling back to individual lookups", e);
+            return;
+        }
+        JsonArray data = GsonJsonUtils.getJsonArraySafe(response, "data");
+        if(data == null) return;
+        for(JsonElement element : data) {
+            JsonObject fileData = GsonJsonUtils.getJsonObjectSafe(element);
+            if(fileData == null) continue;
+            ResolvedFile resolvedFile = fromFileData(fileData);
+            if(resolvedFile == null) continue;
+            long projectID = fileData.get("modId").getAsLong();
+            long fileID = fileData.get("id").getAsLong();
+            sResolvedFiles.put(getKey(projectID, fileID), resolvedFile);
+        }
+    }
+
+    /**
+     * Build a resolved file from a CurseForge file object.
+     * @param fileData the file object, as returned by the files endpoints
+     * @return the resolved file, or null if the object is incomplete
+     */
+    static @Nullable ResolvedFile fromFileData(JsonObject fileData) {
+        String fileName = GsonJsonUtils.getStringSafe(fileData, "fileName");
+        int fileId = GsonJsonUtils.getIntSafe(fileData, "id", -1);
+        if(fileName == null || fileId == -1 || !fileData.has("modId")) return null;
+        String url = GsonJsonUtils.getStringSafe(fileData, "downloadUrl");
+        if(url == null) {
+            // The author disabled third-party distribution, build an edge link instead
+            url = String.format("https://edge.forgecdn.net/files/%s/%s/%s", fileId / 1000, fileId % 1000, fileName);
+        }
+        return new ResolvedFile(url, fileName, getSha1FromFileData(fileData));
+    }
+
+    static @Nullable String getSha1FromFileData(JsonObject fileData) {
+        JsonArray hashes = GsonJsonUtils.getJsonArraySafe(fileData, "hashes");
+        if(hashes == null) return null;
+        for (JsonElement jsonElement : hashes) {
+            // The sha1 = 1; md5 = 2;
+            JsonObject jsonObject = GsonJsonUtils.getJsonObjectSafe(jsonElement);
+            if(GsonJsonUtils.getIntSafe(jsonObject, "algo", -1) == ALGO_SHA_1) {
+                return GsonJsonUtils.getStringSafe(jsonObject, "value");
+            }
+        }
+        return null;
+    }
+
+    private static String getKey(long projectID, long fileID) {
+        return projectID + ":" + fileID;
+    }
+
+    static class ResolvedFile {
+        final String url;
+        final String fileName;
+        final String sha1;
+
+        ResolvedFile(String url, String fileName, @Nullable String sha1) {
+            this.url = url;
+            this.fileName = fileName;
+            this.sha1 = sha1;
+        }
+    }
+
+    interface ProgressListener {
+        void onProgress(int resolvedCount, int totalCount);
+    }
+}
@@ -2,15 +2,20 @@ package net.kdt.pojavlaunch.modloaders.modpacks.api;
 
 import androidx.annotation.Nullable;
 
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.mirrors.MirrorHealth;
+import net.kdt.pojavlaunch.utils.DownloadConcurrencyController;
+import net.kdt.pojavlaunch.utils.DownloadScheduler;
+import net.kdt.pojavlaunch.utils.DownloadUtils;
+import net.kdt.pojavlaunch.utils.FileVerificationIndex;
+
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -20,8 +25,10 @@ import java.util.concurrent.atomic.AtomicLong;
 public class ModDownloader {
     private static final int DOWNLOAD_RETRY_COUNT = 5;
     private static final int DOWNLOAD_RETRY_DELAY_MILLIS = 1000;
+    /** Statistics of the hosts files were downloaded from, used to pick the URL to try first */
+    private static final MirrorHealth sHostHealth = new MirrorHealth();
 
-    private final ExecutorService mDownloadPool;
+    private final DownloadConcurrencyController mDownloadPool;
     private final AtomicBoolean mTerminator;
     private final AtomicLong mDownloadSize;
     private final File mDestinationDirectory;
@@ -45,7 +52,8 @@ public class ModDownloader {
      * @param useFileCount         whether to use file count mode or not
      */
     public ModDownloader(File destinationDirectory, boolean useFileCount) {
-        this.mDownloadPool = Executors.newFixedThreadPool(4);
+        // Downloads get submitted while others are already running, so let the pool queue order them
+        this.mDownloadPool = DownloadConcurrencyController.createPrioritized(4);
         this.mTerminator = new AtomicBoolean(false);
         this.mDownloadSize = new AtomicLong(0);
         this.mDestinationDirectory = destinationDirectory;
@@ -63,7 +71,8 @@ public class ModDownloader {
      * @param fileSize      the size of the file to be downloaded
      * @param relativePath  the relative path of the file in the destination directory
      * @param downloadHash  the SHA-1 hash of the file to be downloaded
-     * @param downloadUrls  the URLs of the file to be downloaded
+     * @param downloadUrls  the URLs of the file to be downloaded. They are alternatives: the file
+     *                      is downloaded once, from the first URL that works.
      */
     public void submitDownload(int fileSize, String relativePath, @Nullable String downloadHash, String... downloadUrls) {
         if (mUseFileCount) {
@@ -71,9 +80,8 @@ public class ModDownloader {
         } else {
             mTotalSize += fileSize;
         }
-        for (String downloadUrl : downloadUrls) {
-            mDownloadPool.submit(() -> downloadFile(fileSize, relativePath, downloadHash, downloadUrl));
-        }
+        mDownloadPool.execute(new ModDownloadTask(fileSize,
+                () -> downloadFile(fileSize, relativePath, downloadHash, downloadUrls)));
     }
 
     /**
@@ -86,7 +94,8 @@ public class ModDownloader {
             throw new RuntimeException("This method can only be used in a file-counting ModDownloader");
         }
         mTotalSize += 1;
-        mDownloadPool.submit(() -> {
+        // The size is not known until the provider is called
+        mDownloadPool.execute(new ModDownloadTask(0, () -> {
             try {
                 FileInfo fileInfo = infoProvider.getFileInfo();
                 if (fileInfo == null) {
@@ -96,7 +105,7 @@ public class ModDownloader {
             } catch (IOException e) {
                 downloadFailed(e);
             }
-        });
+        }));
     }
 
     /**
@@ -106,43 +115,41 @@ public class ModDownloader {
      * @throws IOException if any download task fails
      */
     public void awaitFinish(Tools.DownloaderFeedback feedback) throws IOException {
+        mDownloadPool.shutdown();
         try {
-            for (Future<?> future : mDownloadPool.shutdownNow()) {
-                future.get();
+            while (!mTerminator.get() && !mDownloadPool.awaitTermination(20, TimeUnit.MILLISECONDS)) {
+                feedback.updateProgress((int) mDownloadSize.get(), (int) mTotalSize);
             }
-            mDownloadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
             if (mTerminator.get()) {
+                mDownloadPool.shutdownNow();
                 throw mFirstIOException;
             }
         } catch (InterruptedException e) {
+            mDownloadPool.shutdownNow();
             Thread.currentThread().interrupt();
             throw new IOException(e);
-        } catch (ExecutionException | TimeoutException e) {
-            throw new IOException(e.getCause());
+        } finally {
+            FileVerificationIndex.getInstance().flush();
         }
     }
 
     /**
-     * Downloads the file from the given URL and saves it to the destination directory.
+     * Downloads the file from one of the given URLs and saves it to the destination directory.
      *
      * @param fileSize      the size of the file to be downloaded
      * @param relativePath  the relative path of the file in the destination directory
      * @param downloadHash  the SHA-1 hash of the file to be downloaded
-     * @param downloadUrl   the URL of the file to be downloaded
+     * @param downloadUrls  the URLs the file can be downloaded from
      */
-    private void downloadFile(int fileSize, String relativePath, @Nullable String downloadHash, String downloadUrl) {
+    private void downloadFile(int fileSize, String relativePath, @Nullable String downloadHash, String... downloadUrls) {
         for (int i = 0; i < DOWNLOAD_RETRY_COUNT; i++) {
             try {
                 File destinationFile = new File(mDestinationDirectory, relativePath);
-                if (mUseFileCount) {
-                    DownloadUtils.downloadFile(downloadUrl, destinationFile);
-                } else {
-                    DownloadUtils.downloadFile(downloadUrl, destinationFile, fileSize);
-                }
-                if (downloadHash != null) {
-                    DownloadUtils.ensureSha1(destinationFile, downloadHash);
-                }
-                mDownloadSize.addAndGet(fileSize);
+                // ensureSha1 checks the shared verification index first, so files that are
+                // already present and verified are not downloaded again
+                DownloadUtils.ensureSha1(destinationFile, downloadHash,
+                        (String sha1) -> downloadFromAnyUrl(destinationFile, fileSize, sha1, downloadUrls));
+                mDownloadSize.addAndGet(mUseFileCount ? 1 : fileSize);
                 return;
             } catch (IOException e) {
                 if (i == DOWNLOAD_RETRY_COUNT - 1) {
@@ -157,6 +164,50 @@ public class ModDownloader {
         }
     }
 
+    /**
+     * Downloads the file from the first URL that works, starting with the URL whose host
+     * performed best so far. The file is written to a temporary file and moved into place only
+     * once it is complete and verified.
+     *
+     * @param destinationFile the destination file
+     * @param fileSize        the size of the file to be downloaded
+     * @param sha1            the SHA-1 hash to verify while downloading, or null
+     * @param downloadUrls    the URLs the file can be downloaded from
+     * @throws IOException the failure of the last URL, if all of them failed
+     */
+    private void downloadFromAnyUrl(File destinationFile, int fileSize, @Nullable String sha1,
+                                    String[] downloadUrls) throws IOException {
+        IOException lastException = new IOException("No download URL for " + destinationFile.getName());
+        List<String> rankedUrls = sHostHealth.rank(Arrays.asList(downloadUrls), fileSize);
+        for (String downloadUrl : rankedUrls) {
+            String host = getHost(downloadUrl);
+            long startTime = System.nanoTime();
+            try {
+                DownloadUtils.downloadFileMonitored(downloadUrl, destinationFile, null, null, sha1);
+            } catch (IOException e) {
+                mDownloadPool.recordFailure();
+                sHostHealth.recordFailure(host, e instanceof DownloadUtils.SHA1VerificationException);
+                if (Thread.currentThread().isInterrupted()) throw e;
+                lastException = e;
+                continue;
+            }
+            long duration = System.nanoTime() - startTime;
+            mDownloadPool.recordSuccess(destinationFile.length(), duration);
+            sHostHealth.recordSuccess(host, destinationFile.length(), duration);
+            return;
+        }
+        throw lastException;
+    }
+
+    private static String getHost(String downloadUrl) {
+        try {
+            URL url = new URL(downloadUrl);
+            return url.getProtocol() + "://" + url.getHost();
+        } catch (MalformedURLException e) {
+            return downloadUrl;
+        }
+    }
+
     /**
      * Sets the first IO exception that occurred during download.
      *
@@ -171,6 +222,34 @@ public class ModDownloader {
         mTerminator.set(true);
     }
 
+    /**
+     * A download task that the pool queue orders by size, largest first.
+     */
+    private static class ModDownloadTask implements DownloadScheduler.Task {
+        private final long mSize;
+        private final Runnable mRunnable;
+
+        ModDownloadTask(long size, Runnable runnable) {
+            this.mSize = size;
+            this.mRunnable = runnable;
+        }
+
+        @Override
+        public int getPriority() {
+            return DownloadScheduler.PRIORITY_LIBRARY;
+        }
+
+        @Override
+        public long getSize() {
+            return mSize;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+    }
+
     /**
      * A class representing the file information needed for downloading.
      */
@@ -35,6 +35,16 @@ public interface ModpackApi {
         return searchMod(searchFilters, null);
     }
 
+    /**
+     * Start a search that delivers its results as they arrive
+     * @param searchFilters Filters
+     * @param listener The listener receiving the results, on the main thread
+     * @return The running search
+     */
+    default StreamingSearch startSearch(SearchFilters searchFilters, StreamingSearch.Listener listener) {
+        return new StreamingSearch(new ModpackApi[]{this}, searchFilters, listener);
+    }
+
     /**
      * Fetch the mod details
      * @param item The moditem that was selected
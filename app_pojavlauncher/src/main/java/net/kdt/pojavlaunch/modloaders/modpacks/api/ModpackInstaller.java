@@ -14,7 +14,6 @@ import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftProfile;
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
-import java.util.concurrent.Callable;
 
 public class ModpackInstaller {
 
@@ -30,12 +29,11 @@ public class ModpackInstaller {
         ModLoader modLoaderInfo;
         try {
             byte[] downloadBuffer = new byte[8192];
-            DownloadUtils.ensureSha1(modpackFile, versionHash, (Callable<Void>) () -> {
+            DownloadUtils.ensureSha1(modpackFile, versionHash, (String sha1) ->
                 DownloadUtils.downloadFileMonitored(versionUrl, modpackFile, downloadBuffer,
                         new DownloaderProgressWrapper(R.string.modpack_download_downloading_metadata,
-                                ProgressLayout.INSTALL_MODPACK));
-                return null;
-            });
+                                ProgressLayout.INSTALL_MODPACK), sha1)
+            );
 
             // Install the modpack
             modLoaderInfo = installFunction.installModpack(modpackFile, new File(Tools.DIR_GAME_HOME, "custom_instances/"+modpackName));
@@ -0,0 +1,159 @@
+package net.kdt.pojavlaunch.modloaders.modpacks.api;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonParseException;
+
+import net.kdt.pojavlaunch.Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * What a modpack installed into an instance: the downloaded files with the identity of their
+ * version (a hash, or the CurseForge project/file IDs), and the overrides with their CRC.
+ * When the same pack gets installed again, the new index is compared against this state, so that
+ * only added and changed files get downloaded/extracted, and removed files get deleted.
+ */
+class ModpackState {
+    private static final String TAG = "ModpackState";
+    private static final String STATE_FILE_NAME = ".modpack_state.json";
+
+    /** Downloaded files: path relative to the instance -> identity of the file version */
+    public Map<String, String> files = new HashMap<>();
+    /** Extracted overrides: path relative to the instance -> CRC32 of the archive entry */
+    public Map<String, Long> overrides = new HashMap<>();
+
+    private transient ModpackState mPreviousState;
+    private transient Map<String, String> mPreviousPaths;
+    private transient Set<String> mExtractedOverrides;
+
+    /**
+     * Start tracking the state of a new install into an instance.
+     * @param instanceDestination the instance directory
+     * @return the new, empty, state. It knows the state of the previous install, if there was one.
+     */
+    static ModpackState begin(File instanceDestination) {
+        ModpackState modpackState = new ModpackState();
+        modpackState.mPreviousState = load(instanceDestination);
+        modpackState.mPreviousPaths = new HashMap<>();
+        modpackState.mExtractedOverrides = new HashSet<>();
+        if(modpackState.mPreviousState != null) {
+            for(Map.Entry<String, String> file : modpackState.mPreviousState.files.entrySet()) {
+                modpackState.mPreviousPaths.put(file.getValue(), file.getKey());
+            }
+        }
+        return modpackState;
+    }
+
+    private static @Nullable ModpackState load(File instanceDestination) {
+        File stateFile = new File(instanceDestination, STATE_FILE_NAME);
+        if(!stateFile.isFile()) return null;
+        try {
+            ModpackState modpackState = Tools.COMPACT_GSON.fromJson(Tools.read(stateFile), ModpackState.class);
+            if(modpackState == null || modpackState.files == null || modpackState.overrides == null) return null;
+            return modpackState;
+        }catch (IOException | JsonParseException e) {
+            Log.w(TAG, "Failed to read the previous modpack state, installing everything", e);
+            return null;
+        }
+    }
+
+    /** Save the state, once the install completed */
+    void save(File instanceDestination) throws IOException {
+        Tools.write(new File(instanceDestination, STATE_FILE_NAME).getAbsolutePath(), Tools.COMPACT_GSON.toJson(this));
+    }
+
+    /**
+     * Record a downloaded file of the new install.
+     * @param path the path of the file, relative to the instance directory
+     * @param identity the identity of the file version
+     */
+    synchronized void addFile(String path, String identity) {
+        files.put(path, identity);
+    }
+
+    /**
+     * Check if the previous install already has a file in the same version.
+     * @param instanceDestination the instance directory
+     * @param path the path of the file, relative to the instance directory
+     * @param identity the identity of the file version
+     * @return true if the file doesn't need to be downloaded again
+     */
+    boolean isUnchanged(File instanceDestination, String path, @Nullable String identity) {
+        if(mPreviousState == null || identity == null) return false;
+        return identity.equals(mPreviousState.files.get(path)) && new File(instanceDestination, path).isFile();
+    }
+
+    /**
+     * Find the path of a file version in the previous install.
+     * @param identity the identity of the file version
+     * @return the path relative to the instance directory, or null if the previous install didn't have it
+     */
+    @Nullable String findPreviousPath(String identity) {
+        return mPreviousPaths.get(identity);
+    }
+
+    /**
+     * Decide if an override has to be extracted, and record it in the new state.
+     * @param instanceDestination the instance directory
+     * @param path the path of the override, relative to the instance directory
+     * @param entry the archive entry of the override
+     * @return false if the previous install extracted the same override, and it's still there
+     */
+    synchronized boolean shouldExtractOverride(File instanceDestination, String path, ZipEntry entry) {
+        long crc = entry.getCrc();
+        overrides.put(path, crc);
+        // Another override directory already replaced this file during this install
+        if(mExtractedOverrides.contains(path)) return true;
+        Long previousCrc = mPreviousState != null ? mPreviousState.overrides.get(path) : null;
+        if(crc != -1 && previousCrc != null && previousCrc == crc && new File(instanceDestination, path).isFile()) {
+            return false;
+        }
+        mExtractedOverrides.add(path);
+        return true;
+    }
+
+    /**
+     * Delete the files and overrides of the previous install that the new one doesn't have anymore.
+     * Call this once all the new files are in place.
+     * @param instanceDestination the instance directory
+     */
+    void deleteRemovedFiles(File instanceDestination) {
+        if(mPreviousState == null) return;
+        Set<String> removedPaths = new HashSet<>(mPreviousState.files.keySet());
+        removedPaths.addAll(mPreviousState.overrides.keySet());
+        removedPaths.removeAll(files.keySet());
+        removedPaths.removeAll(overrides.keySet());
+        for(String removedPath : removedPaths) {
+            File removedFile = resolveInside(instanceDestination, removedPath);
+            if(removedFile == null) continue;
+            if(removedFile.isFile() && !removedFile.delete()) Log.w(TAG, "Failed to delete "+removedFile);
+        }
+    }
+
+    /**
+     * Resolve a path from a modpack index, refusing paths that point outside of the instance.
+     * @return the file, or null if the path is unsafe
+     */
+    static @Nullable File resolveInside(File instanceDestination, String path) {
+        try {
+            File file = new File(instanceDestination, path);
+            String instancePath = instanceDestination.getCanonicalPath() + File.separator;
+            if(!file.getCanonicalPath().startsWith(instancePath)) {
+                Log.w(TAG, "Refusing path outside of the instance: "+path);
+                return null;
+            }
+            return file;
+        }catch (IOException e) {
+            return null;
+        }
+    }
+}
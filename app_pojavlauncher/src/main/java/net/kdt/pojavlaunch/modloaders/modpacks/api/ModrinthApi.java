@@ -1,36 +1,38 @@
 package net.kdt.pojavlaunch.modloaders.modpacks.api;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.stream.JsonReader;
+import com.kdt.mcgui.ProgressLayout;
+
+import net.kdt.pojavlaunch.R;
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.Constants;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.ModDetail;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.ModItem;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.ModrinthIndex;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchFilters;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchResult;
+import net.kdt.pojavlaunch.progresskeeper.DownloaderProgressWrapper;
+import net.kdt.pojavlaunch.utils.GsonJsonUtils;
+import net.kdt.pojavlaunch.utils.ZipUtils;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 public class ModrinthApi implements ModpackApi {
 
     private static final String BASE_URL = "https://api.modrinth.com/v2";
-    private static final Gson GSON = new Gson();
 
-    private final ApiHandler mApiHandler;
+    private final ApiHandler<JsonElement> mApiHandler;
 
     public ModrinthApi() {
-        mApiHandler = new ApiHandler(BASE_URL);
+        mApiHandler = new ApiHandler<>(BASE_URL);
     }
 
     @Override
@@ -53,7 +55,7 @@ public class ModrinthApi implements ModpackApi {
             params.put("offset", modrinthSearchResult.previousOffset);
 
         try {
-            JsonObject response = mApiHandler.get("search", params, JsonObject.class);
+            JsonObject response = GsonJsonUtils.getJsonObjectSafe(mApiHandler.get("search", params, JsonElement.class));
             if (response == null) return null;
             JsonArray responseHits = response.getAsJsonArray("hits");
             if (responseHits == null) return null;
@@ -84,8 +86,10 @@ public class ModrinthApi implements ModpackApi {
     @Override
     public ModDetail getModDetails(ModItem item) {
         try {
-            JsonArray response = mApiHandler.get(String.format("project/%s/version", item.id), JsonArray.class);
-            if (response == null) return null;
+            // Version lists rarely change, an outdated one is fine while it gets refreshed
+            JsonElement responseElement = mApiHandler.getAllowStale(String.format("project/%s/version", item.id), JsonElement.class);
+            if (responseElement == null || !responseElement.isJsonArray()) return null;
+            JsonArray response = responseElement.getAsJsonArray();
 
             String[] names = new String[response.size()];
             String[] mcNames = new String[response.size()];
@@ -142,46 +146,40 @@ public class ModrinthApi implements ModpackApi {
 
     private ModLoader installMrpack(File mrpackFile, File instanceDestination) throws IOException {
         try (ZipFile modpackZipFile = new ZipFile(mrpackFile)) {
-            ModrinthIndex modrinthIndex = GSON.fromJson(new JsonReader(new FileReader(modpackZipFile.getEntry("modrinth.index.json").getFile())), ModrinthIndex.class);
+            ModrinthIndex modrinthIndex = Tools.GLOBAL_GSON.fromJson(
+                    Tools.read(ZipUtils.getEntryStream(modpackZipFile, "modrinth.index.json")),
+                    ModrinthIndex.class);
 
+            // Only download the files that changed since the last install of the modpack
+            ModpackState modpackState = ModpackState.begin(instanceDestination);
             ModDownloader modDownloader = new ModDownloader(instanceDestination);
             Set<String> downloadedFiles = new HashSet<>();
+            Set<String> changedFiles = new HashSet<>();
             for (ModrinthIndex.ModrinthIndexFile indexFile : modrinthIndex.files) {
                 if (downloadedFiles.contains(indexFile.path)) continue;
                 downloadedFiles.add(indexFile.path);
-                modDownloader.submitDownload(indexFile.fileSize, indexFile.path, indexFile.hashes.sha1, indexFile.downloads);
+                String sha1 = indexFile.hashes != null ? indexFile.hashes.sha1 : null;
+                if (sha1 != null) modpackState.addFile(indexFile.path, sha1);
+                if (modpackState.isUnchanged(instanceDestination, indexFile.path, sha1)) continue;
+                changedFiles.add(indexFile.path);
+                modDownloader.submitDownload(indexFile.fileSize, indexFile.path, sha1, indexFile.downloads);
             }
-            modDownloader.awaitFinish(new DownloaderProgressWrapper(R.string.modpack_download_downloading_mods, ProgressLayout.INSTALL_MODPACK));
-
-            ProgressLayout.setProgress(ProgressLayout.INSTALL_MODPACK, 0, R.string.modpack_download_applying_overrides, 1, 2);
-            unzipEntry(modpackZipFile, "overrides/", instanceDestination);
-            ProgressLayout.setProgress(ProgressLayout.INSTALL_MODPACK, 50, R.string.modpack_download_applying_overrides, 2, 2);
-            unzipEntry(modpackZipFile, "client-overrides/", instanceDestination);
-            return createInfo(modrinthIndex);
-        }
-    }
 
-    private void unzipEntry(ZipFile zipFile, String path, File destination) throws IOException {
-        Enumeration<? extends ZipEntry> entries = zipFile.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry entry = entries.nextElement();
-            if (!entry.getName().startsWith(path)) continue;
-
-            File entryDestination = new File(destination, entry.getName().substring(path.length()));
-            if (!entry.isDirectory()) {
-                entryDestination.getParentFile().mkdirs();
-                try (InputStream in = zipFile.getInputStream(entry);
-                     FileOutputStream out = new FileOutputStream(entryDestination)) {
-
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = in.read(buffer)) > 0) {
-                        out.write(buffer, 0, len);
-                    }
-                }
-            } else {
-                entryDestination.mkdirs();
+            // Apply the overrides while the mods download, except the ones replacing a mod
+            OverridesExtractor overridesExtractor = new OverridesExtractor(modpackZipFile, instanceDestination,
+                    modpackState, changedFiles::contains, "overrides/", "client-overrides/");
+            overridesExtractor.start();
+            try {
+                modDownloader.awaitFinish(new DownloaderProgressWrapper(R.string.modpack_download_downloading_mods, ProgressLayout.INSTALL_MODPACK));
+            } catch (IOException e) {
+                overridesExtractor.cancel();
+                throw e;
             }
+            overridesExtractor.finish();
+
+            modpackState.deleteRemovedFiles(instanceDestination);
+            modpackState.save(instanceDestination);
+            return createInfo(modrinthIndex);
         }
     }
 
@@ -0,0 +1,117 @@
+package net.kdt.pojavlaunch.modloaders.modpacks.api;
+
+import com.kdt.mcgui.ProgressLayout;
+
+import net.kdt.pojavlaunch.R;
+import net.kdt.pojavlaunch.progresskeeper.ProgressKeeper;
+import net.kdt.pojavlaunch.utils.ZipExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts the overrides of a modpack on its own thread, while the mods get downloaded.
+ * Overrides that land on a path the downloads also write to are held back until the downloads
+ * are done, so that they still replace the downloaded files like they did when the stages
+ * ran one after the other.
+ */
+class OverridesExtractor {
+    private final ZipFile mZipFile;
+    private final File mInstanceDestination;
+    private final ModpackState mModpackState;
+    private final String[] mDirectories;
+    private final DeferPolicy mDeferPolicy;
+    private Thread mWorker;
+    private volatile IOException mException;
+
+    /**
+     * @param zipFile the modpack archive
+     * @param instanceDestination the instance directory
+     * @param modpackState the state of the install, deciding which overrides changed
+     * @param deferPolicy decides which overrides have to wait for the downloads
+     * @param directories the override directories of the archive, in the order they are applied
+     */
+    OverridesExtractor(ZipFile zipFile, File instanceDestination, ModpackState modpackState,
+                       DeferPolicy deferPolicy, String... directories) {
+        this.mZipFile = zipFile;
+        this.mInstanceDestination = instanceDestination;
+        this.mModpackState = modpackState;
+        this.mDeferPolicy = deferPolicy;
+        this.mDirectories = directories;
+    }
+
+    /** Start extracting the overrides that don't depend on the downloads */
+    void start() {
+        mWorker = new Thread(() -> {
+            try {
+                extract(false);
+            }catch (IOException e) {
+                mException = e;
+            }
+        }, "OverridesExtractor");
+        mWorker.start();
+    }
+
+    /**
+     * Wait for the extraction started by start(), then extract the overrides that were held back.
+     * Call this once the downloads are done.
+     * @throws IOException if the extraction failed
+     */
+    void finish() throws IOException {
+        try {
+            mWorker.join();
+        }catch (InterruptedException e) {
+            mWorker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting the overrides");
+        }
+        if(mException != null) throw mException;
+        try {
+            extract(true);
+        }finally {
+            ProgressLayout.clearProgress(ProgressLayout.EXTRACT_MODPACK_OVERRIDES);
+        }
+    }
+
+    /** Stop the extraction after a failed download */
+    void cancel() {
+        if(mWorker == null) return;
+        mWorker.interrupt();
+        try {
+            mWorker.join();
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ProgressLayout.clearProgress(ProgressLayout.EXTRACT_MODPACK_OVERRIDES);
+    }
+
+    private void extract(boolean deferredPass) throws IOException {
+        for(String directory : mDirectories) {
+            ZipExtractor.extract(mZipFile, directory, mInstanceDestination, (entry, path) -> {
+                if(Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Override extraction cancelled");
+                boolean deferred = mDeferPolicy.mustWaitForDownloads(path);
+                if(deferred != deferredPass) return false;
+                // A held back override replaces a freshly downloaded file, so it is always extracted
+                boolean shouldExtract = mModpackState.shouldExtractOverride(mInstanceDestination, path, entry);
+                return deferredPass || shouldExtract;
+            }, OverridesExtractor::reportProgress);
+        }
+    }
+
+    private static void reportProgress(int extractedCount, int totalCount) {
+        if(extractedCount % 16 != 0 && extractedCount != totalCount) return;
+        ProgressKeeper.submitProgress(ProgressLayout.EXTRACT_MODPACK_OVERRIDES,
+                (int) Math.max((float)extractedCount/totalCount*100, 0),
+                R.string.modpack_download_applying_overrides, extractedCount, totalCount);
+    }
+
+    interface DeferPolicy {
+        /**
+         * @param path the path of an override, relative to the instance directory
+         * @return true if the downloads may write to the same path
+         */
+        boolean mustWaitForDownloads(String path);
+    }
+}
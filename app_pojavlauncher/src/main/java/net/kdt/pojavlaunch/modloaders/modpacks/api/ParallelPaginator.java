@@ -0,0 +1,125 @@
+package net.kdt.pojavlaunch.modloaders.modpacks.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches every page of a paginated API endpoint. The first page tells how many items there are,
+ * then the remaining pages are requested concurrently, a few at a time, and put back in order.
+ * Endpoints that don't report their total fall back to requesting the pages one after the other.
+ */
+class ParallelPaginator {
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+    // Separate from the shared executor: the callers usually run on it, and would wait on
+    // their own pages if all of its threads were busy fetching details
+    private static final ThreadPoolExecutor sPageExecutor = new ThreadPoolExecutor(MAX_PARALLEL_REQUESTS, MAX_PARALLEL_REQUESTS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        sPageExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private ParallelPaginator() {}
+
+    /**
+     * Fetch all the items of an endpoint.
+     * @param pageSize the amount of items per page
+     * @param pageFetcher the function requesting one page
+     * @return the items of all the pages, in the order of the endpoint
+     * @throws IOException if any page failed to load
+     */
+    static <T> List<T> fetchAll(int pageSize, PageFetcher<T> pageFetcher) throws IOException {
+        Page<T> lastPage = pageFetcher.fetchPage(0, pageSize);
+        List<T> items = new ArrayList<>(Math.max(lastPage.totalCount, lastPage.items.size()));
+        items.addAll(lastPage.items);
+        int nextIndex = pageSize;
+        int totalCount = lastPage.totalCount;
+        if(totalCount > pageSize && lastPage.hasMore(nextIndex, pageSize)) {
+            lastPage = fetchConcurrently(pageSize, totalCount, pageFetcher, items);
+            nextIndex = (totalCount + pageSize - 1) / pageSize * pageSize;
+        }
+        // Walk the rest one page at a time: either the total is unknown,
+        // or items got added since the first page was fetched
+        while(lastPage.hasMore(nextIndex, pageSize)) {
+            lastPage = pageFetcher.fetchPage(nextIndex, pageSize);
+            items.addAll(lastPage.items);
+            nextIndex += pageSize;
+        }
+        return items;
+    }
+
+    /**
+     * Fetch the pages after the first one, up to the known total.
+     * @return the last page fetched
+     */
+    private static <T> Page<T> fetchConcurrently(int pageSize, int totalCount, PageFetcher<T> pageFetcher,
+                                                 List<T> items) throws IOException {
+        List<Future<Page<T>>> pages = new ArrayList<>();
+        for(int index = pageSize; index < totalCount; index += pageSize) {
+            final int pageIndex = index;
+            pages.add(sPageExecutor.submit(() -> pageFetcher.fetchPage(pageIndex, pageSize)));
+        }
+        Page<T> page = null;
+        try {
+            for(Future<Page<T>> pageFuture : pages) {
+                page = pageFuture.get();
+                items.addAll(page.items);
+            }
+            return page;
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching pages");
+        }catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }finally {
+            // No-op for the pages that completed, stops the rest after a failure
+            for(Future<Page<T>> pageFuture : pages) pageFuture.cancel(true);
+        }
+    }
+
+    static class Page<T> {
+        final List<T> items;
+        final int returnedCount;
+        final int totalCount;
+
+        /**
+         * @param items the items of the page that should be kept
+         * @param returnedCount the amount of items the endpoint returned, including the ones
+         *                      that were filtered out of the item list
+         * @param totalCount the total amount of items of the endpoint, or -1 if it's unknown
+         */
+        Page(List<T> items, int returnedCount, int totalCount) {
+            this.items = items;
+            this.returnedCount = returnedCount;
+            this.totalCount = totalCount;
+        }
+
+        /**
+         * @param nextIndex the index of the page that would come next
+         * @param pageSize the amount of items per page
+         * @return true if there may be items past this page
+         */
+        boolean hasMore(int nextIndex, int pageSize) {
+            if(returnedCount < pageSize) return false;
+            return totalCount < 0 || totalCount > nextIndex;
+        }
+    }
+
+    interface PageFetcher<T> {
+        /**
+         * Fetch one page. Called from several threads at once.
+         * @param index the index of the first item of the page
+         * @param pageSize the amount of items per page
+         * @return the page
+         * @throws IOException if the page failed to load
+         */
+        Page<T> fetchPage(int index, int pageSize) throws IOException;
+    }
+}
@@ -0,0 +1,200 @@
+package net.kdt.pojavlaunch.modloaders.modpacks.api;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.PojavApplication;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.ModItem;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchFilters;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.SearchResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A search across several providers, where each provider's pages are delivered as soon as they
+ * arrive instead of waiting for the slowest provider.
+ * Items are merged round-robin, so that a fast provider doesn't push the other ones out of view:
+ * it only gets a small head start, and the rest of its items wait until the others answer,
+ * time out or run out of results.
+ * All the methods must be called on the main thread, and the listener is called on it too.
+ */
+public class StreamingSearch {
+    private static final String TAG = "StreamingSearch";
+    private static final long PROVIDER_TIMEOUT_MILLIS = 15000;
+    /** How many items a provider can show ahead of a provider that is still loading */
+    private static final int MAX_LEAD = 10;
+
+    private final SearchFilters mSearchFilters;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Provider[] mProviders;
+    private boolean mCancelled;
+    private boolean mEnded;
+    private int mPublishedCount;
+
+    /**
+     * Start a search, loading the first page of every provider.
+     * @param providers the providers to search
+     * @param searchFilters the search filters. They must not change during the search.
+     * @param listener the listener receiving the results
+     */
+    public StreamingSearch(ModpackApi[] providers, SearchFilters searchFilters, Listener listener) {
+        this.mSearchFilters = searchFilters;
+        this.mListener = listener;
+        this.mProviders = new Provider[providers.length];
+        for(int i = 0; i < providers.length; i++) mProviders[i] = new Provider(providers[i]);
+        loadMore();
+    }
+
+    /**
+     * Request the next page of the providers whose already received items are running low.
+     * Call this when the user gets close to the end of the list.
+     */
+    public void loadMore() {
+        if(mCancelled) return;
+        for(Provider provider : mProviders) {
+            if(provider.isDone() || provider.request != null || provider.buffer.size() >= MAX_LEAD) continue;
+            requestPage(provider);
+        }
+    }
+
+    /** @return true if all the results were delivered */
+    public boolean hasEnded() {
+        return mEnded;
+    }
+
+    /** Stop the search. The listener won't be called anymore. */
+    public void cancel() {
+        mCancelled = true;
+        for(Provider provider : mProviders) {
+            if(provider.request != null) provider.request.cancel(true);
+            mHandler.removeCallbacks(provider.timeout);
+        }
+    }
+
+    private void requestPage(Provider provider) {
+        SearchResult previousResult = provider.previousResult;
+        provider.request = PojavApplication.sExecutorService.submit(() -> {
+            SearchResult searchResult;
+            try {
+                searchResult = provider.api.searchMod(mSearchFilters, previousResult);
+            }catch (RuntimeException e) {
+                // Unexpected response shapes, report a failed page instead of waiting for the timeout
+                Log.w(TAG, "Search provider failed: "+provider.api.getClass().getSimpleName(), e);
+                searchResult = null;
+            }
+            SearchResult receivedResult = searchResult;
+            mHandler.post(() -> onPageReceived(provider, receivedResult));
+        });
+        mHandler.postDelayed(provider.timeout, PROVIDER_TIMEOUT_MILLIS);
+    }
+
+    private void onPageReceived(Provider provider, @Nullable SearchResult searchResult) {
+        // Late answer from a page that timed out, or from a cancelled search
+        if(mCancelled || provider.request == null) return;
+        provider.request = null;
+        mHandler.removeCallbacks(provider.timeout);
+        if(searchResult == null) {
+            // Pagination relies on the previous page, so a failed provider can't continue
+            provider.failed = true;
+        }else {
+            provider.previousResult = searchResult;
+            if(searchResult.results == null || searchResult.results.length == 0) provider.exhausted = true;
+            else for(ModItem modItem : searchResult.results) provider.buffer.add(modItem);
+        }
+        publish();
+    }
+
+    private void onTimeout(Provider provider) {
+        if(mCancelled || provider.request == null) return;
+        Log.w(TAG, "Search provider timed out: "+provider.api.getClass().getSimpleName());
+        provider.request.cancel(true);
+        provider.request = null;
+        provider.failed = true;
+        publish();
+    }
+
+    /** Hand the items that can be shown to the listener, taking turns between the providers */
+    private void publish() {
+        List<ModItem> newItems = new ArrayList<>();
+        boolean progress = true;
+        while(progress) {
+            progress = false;
+            for(Provider provider : mProviders) {
+                if(provider.buffer.isEmpty() || !canPublish(provider)) continue;
+                newItems.add(provider.buffer.poll());
+                provider.publishedCount++;
+                progress = true;
+            }
+        }
+        mPublishedCount += newItems.size();
+        if(!newItems.isEmpty()) mListener.onItemsAvailable(newItems);
+        // Held back items wait for a provider that may not be loading yet
+        else loadMore();
+
+        boolean ended = true;
+        boolean failed = false;
+        for(Provider provider : mProviders) {
+            if(!provider.isDone() || !provider.buffer.isEmpty()) ended = false;
+            if(provider.failed) failed = true;
+        }
+        if(ended && !mEnded) {
+            mEnded = true;
+            ApiResponseCache responseCache = ApiResponseCache.getInstance();
+            Log.i(TAG, "Search ended with "+mPublishedCount+" items. API cache: "
+                    + responseCache.getHitCount() + " hits, " + responseCache.getMissCount() + " misses, "
+                    + responseCache.getRevalidationCount() + " revalidations, "
+                    + responseCache.getStaleCount() + " stale responses");
+            mListener.onSearchEnded(mPublishedCount, failed);
+        }
+    }
+
+    private boolean canPublish(Provider provider) {
+        for(Provider otherProvider : mProviders) {
+            if(otherProvider == provider || !otherProvider.buffer.isEmpty() || otherProvider.isDone()) continue;
+            // The other provider is still loading, don't let this one get too far ahead
+            if(provider.publishedCount >= otherProvider.publishedCount + MAX_LEAD) return false;
+        }
+        return true;
+    }
+
+    private class Provider {
+        final ModpackApi api;
+        final ArrayDeque<ModItem> buffer = new ArrayDeque<>();
+        final Runnable timeout = () -> onTimeout(this);
+        SearchResult previousResult;
+        Future<?> request;
+        int publishedCount;
+        boolean exhausted;
+        boolean failed;
+
+        Provider(ModpackApi api) {
+            this.api = api;
+        }
+
+        boolean isDone() {
+            return exhausted || failed;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called when new items can be appended to the results.
+         * @param modItems the new items, in display order
+         */
+        void onItemsAvailable(List<ModItem> modItems);
+
+        /**
+         * Called once every provider ran out of results, failed or timed out.
+         * @param itemCount the total amount of items delivered during the search
+         * @param hadErrors true if at least one provider failed or timed out
+         */
+        void onSearchEnded(int itemCount, boolean hadErrors);
+    }
+}
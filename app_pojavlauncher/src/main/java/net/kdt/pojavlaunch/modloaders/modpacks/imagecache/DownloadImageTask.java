@@ -2,14 +2,16 @@ package net.kdt.pojavlaunch.modloaders.modpacks.imagecache;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 
 import net.kdt.pojavlaunch.utils.DownloadUtils;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
 class DownloadImageTask implements Runnable {
-    private static final float BITMAP_FINAL_DIMENSION = 256f;
+    private static final int BITMAP_FINAL_DIMENSION = 256;
     private final ReadFromDiskTask mParentTask;
     private int mRetryCount;
     DownloadImageTask(ReadFromDiskTask parentTask) {
@@ -23,39 +25,67 @@ class DownloadImageTask implements Runnable {
         while(mRetryCount < 5 && !(wasSuccessful = runCatching())) {
             mRetryCount++;
         }
+        if(!wasSuccessful) {
+            mParentTask.iconCache.onImageFailed(mParentTask.cacheTag);
+            return;
+        }
+        IconCacheJanitor.recordWrite(mParentTask.cacheFile);
         // restart the parent task to read the image and send it to the receiver
         // if it wasn't cancelled. If it was, then we just die here
-        if(wasSuccessful && !mParentTask.taskCancelled())
+        if(!mParentTask.taskCancelled())
             mParentTask.iconCache.cacheLoaderPool.execute(mParentTask);
     }
 
     public boolean runCatching() {
+        File cacheFile = mParentTask.cacheFile;
+        File downloadFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".dl");
+        File thumbnailFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
         try {
-            IconCacheJanitor.waitForJanitorToFinish();
-            DownloadUtils.downloadFile(mParentTask.imageUrl, mParentTask.cacheFile);
-            Bitmap bitmap = BitmapFactory.decodeFile(mParentTask.cacheFile.getAbsolutePath());
-            if(bitmap == null) return false;
-            int bitmapWidth = bitmap.getWidth(), bitmapHeight = bitmap.getHeight();
-            if(bitmapWidth <= BITMAP_FINAL_DIMENSION && bitmapHeight <= BITMAP_FINAL_DIMENSION) {
-                bitmap.recycle();
-                return true;
-            }
-            float imageRescaleRatio = Math.min(BITMAP_FINAL_DIMENSION/bitmapWidth, BITMAP_FINAL_DIMENSION/bitmapHeight);
-            Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap,
-                    (int)(bitmapWidth * imageRescaleRatio),
-                    (int)(bitmapHeight * imageRescaleRatio),
-                    true);
-            bitmap.recycle();
-            if(resizedBitmap == bitmap) return true;
-            try (FileOutputStream fileOutputStream = new FileOutputStream(mParentTask.cacheFile)) {
-                resizedBitmap.compress(Bitmap.CompressFormat.JPEG, 80, fileOutputStream);
+            DownloadUtils.downloadFile(mParentTask.imageUrl, downloadFile);
+            // Only read the dimensions first, the full image is never decoded
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(downloadFile.getAbsolutePath(), options);
+            int bitmapWidth = options.outWidth, bitmapHeight = options.outHeight;
+            if(bitmapWidth <= 0 || bitmapHeight <= 0) return false;
+            // Small enough already, keep the original file as is
+            if(bitmapWidth <= BITMAP_FINAL_DIMENSION && bitmapHeight <= BITMAP_FINAL_DIMENSION)
+                return downloadFile.renameTo(cacheFile);
+
+            // Subsample while decoding to get close to the target size, and let the decoder
+            // scale the rest of the way, so that only the final thumbnail gets allocated
+            int largestDimension = Math.max(bitmapWidth, bitmapHeight);
+            int sampleSize = 1;
+            while(largestDimension / (sampleSize * 2) >= BITMAP_FINAL_DIMENSION) sampleSize *= 2;
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inScaled = true;
+            options.inDensity = largestDimension / sampleSize;
+            options.inTargetDensity = BITMAP_FINAL_DIMENSION;
+            Bitmap thumbnail = BitmapFactory.decodeFile(downloadFile.getAbsolutePath(), options);
+            if(thumbnail == null) return false;
+            try (FileOutputStream fileOutputStream = new FileOutputStream(thumbnailFile)) {
+                if(!thumbnail.compress(getThumbnailFormat(), 80, fileOutputStream)) return false;
             } finally {
-                resizedBitmap.recycle();
+                thumbnail.recycle();
             }
-            return true;
+            // Replace the cached icon only once the thumbnail is complete
+            return thumbnailFile.renameTo(cacheFile);
         }catch (IOException e) {
             e.printStackTrace();
             return false;
+        }finally {
+            //noinspection ResultOfMethodCallIgnored
+            downloadFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            thumbnailFile.delete();
         }
     }
+
+    /** WebP is smaller than JPEG for these icons, and keeps transparency */
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getThumbnailFormat() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) return Bitmap.CompressFormat.WEBP_LOSSY;
+        return Bitmap.CompressFormat.WEBP;
+    }
 }
@@ -1,120 +1,233 @@
 package net.kdt.pojavlaunch.modloaders.modpacks.imagecache;
 
+import android.util.Log;
+
+import net.kdt.pojavlaunch.PojavApplication;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicLong;
-
-public class IconCacheJanitor implements Runnable {
-
-    // Constants
+import java.util.Map;
+
+/**
+ * Keeps the icon cache directory under its size budget.
+ * The janitor maintains an index of the cached icons with their sizes, in least recently used
+ * order, which gets updated whenever an icon is read or written. Eviction takes the oldest entries
+ * of the index, so it only touches the files it deletes, and nobody has to wait for it.
+ * The index is saved next to the icons, and rebuilt from a single directory scan if it got lost.
+ */
+public class IconCacheJanitor {
+    private static final String TAG = "IconCacheJanitor";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String ICON_SUFFIX = ".ca";
     private static final long CACHE_SIZE_LIMIT = 100 * 1024 * 1024; // 100 MB
     private static final long CACHE_BRINGDOWN = 50 * 1024 * 1024; // 50 MB
-    private static final int MIN_FILES_TO_CLEAN = 10; // Minimum number of files to clean up
+    private static final int CHANGES_BEFORE_SAVE = 32;
 
-    // Singleton instance
-    private static IconCacheJanitor instance;
+    /** Icon file name -> file size, least recently used first */
+    private static final LinkedHashMap<String, Long> sEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long sTotalSize;
+    private static boolean sIndexLoaded;
+    private static boolean sJanitorStarted;
+    private static boolean sSavePending;
+    private static int sUnsavedChanges;
 
-    // Private constructor
-    private IconCacheJanitor() {
-    }
+    private IconCacheJanitor() {}
 
-    // Get the singleton instance
-    public static IconCacheJanitor getInstance() {
-        if (instance == null) {
-            instance = new IconCacheJanitor();
+    /**
+     * Load the index and bring the cache under its budget, unless that was done already.
+     * The work happens in the background.
+     */
+    public static void runJanitor() {
+        synchronized (sEntries) {
+            if(sJanitorStarted) return;
+            sJanitorStarted = true;
         }
-        return instance;
+        PojavApplication.sExecutorService.execute(()->{
+            loadIndex();
+            trimToBudget();
+            saveIndex();
+        });
     }
 
-    @Override
-    public void run() {
-        Path modIconCachePath = ModIconCache.getImageCachePath();
-        if (!Files.isDirectory(modIconCachePath) || !Files.isReadable(modIconCachePath)) {
-            return;
+    /**
+     * Record that an icon was read from the disk
+     * @param iconFile the icon file
+     */
+    static void recordAccess(File iconFile) {
+        synchronized (sEntries) {
+            // get() moves the entry to the most recently used end
+            if(sEntries.get(iconFile.getName()) == null) putEntry(iconFile.getName(), iconFile.length());
+            sUnsavedChanges++;
         }
+        scheduleSaveIfNeeded();
+    }
 
-        List<Path> modIconFiles = new ArrayList<>();
-        AtomicLong directoryFileSize = new AtomicLong(0);
-
-        try {
-            Files.list(modIconCachePath).forEach(path -> {
-                if (!Files.isRegularFile(path) || !Files.isReadable(path) || !Files.isWritable(path)) {
-                    return;
-                }
-                directoryFileSize.addAndGet(Files.size(path));
-                modIconFiles.add(path);
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
+    /**
+     * Record that an icon was written to the disk, and evict old icons if the cache got too big
+     * @param iconFile the icon file
+     */
+    static void recordWrite(File iconFile) {
+        boolean overBudget;
+        synchronized (sEntries) {
+            putEntry(iconFile.getName(), iconFile.length());
+            sUnsavedChanges++;
+            overBudget = sIndexLoaded && sTotalSize > CACHE_SIZE_LIMIT;
         }
+        if(overBudget) trimToBudget();
+        scheduleSaveIfNeeded();
+    }
 
-        if (directoryFileSize.get() < CACHE_SIZE_LIMIT) {
-            System.out.println("Skipping cleanup because there's not enough to clean up");
-            return;
-        }
+    private static void putEntry(String name, long size) {
+        Long previousSize = sEntries.put(name, size);
+        if(previousSize != null) sTotalSize -= previousSize;
+        sTotalSize += size;
+    }
 
-        modIconFiles.sort((x, y) -> {
-            try {
-                return Files.getLastModifiedTime(y).compareTo(Files.getLastModifiedTime(x));
-            } catch (IOException e) {
-                e.printStackTrace();
-                return 0;
+    /** Delete the least recently used icons until the cache is back under its budget */
+    private static void trimToBudget() {
+        List<String> evictedNames = new ArrayList<>();
+        synchronized (sEntries) {
+            if(sTotalSize <= CACHE_SIZE_LIMIT) return;
+            Iterator<Map.Entry<String, Long>> iterator = sEntries.entrySet().iterator();
+            while(sTotalSize > CACHE_BRINGDOWN && iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                sTotalSize -= entry.getValue();
+                evictedNames.add(entry.getKey());
+                iterator.remove();
             }
-        });
+            sUnsavedChanges += evictedNames.size();
+        }
+        File cachePath = ModIconCache.getImageCachePath();
+        for(String evictedName : evictedNames) {
+            synchronized (sEntries) {
+                // The icon might have been downloaded again in the meantime
+                if(sEntries.containsKey(evictedName)) continue;
+                File evictedFile = new File(cachePath, evictedName);
+                if(!evictedFile.delete() && evictedFile.exists()) Log.w(TAG, "Failed to delete "+evictedName);
+            }
+        }
+        Log.i(TAG, "Evicted "+evictedNames.size()+" icons");
+    }
 
-        int filesCleanedUp = 0;
-        for (Path modFile : modIconFiles) {
-            if (directoryFileSize.get() < CACHE_BRINGDOWN) {
-                break;
+    private static void loadIndex() {
+        File cachePath = ModIconCache.getImageCachePath();
+        LinkedHashMap<String, Long> loadedEntries = readIndex(new File(cachePath, INDEX_FILE_NAME));
+        if(loadedEntries == null) loadedEntries = scanDirectory(cachePath);
+        else loadedEntries = reconcileIndex(cachePath, loadedEntries);
+        synchronized (sEntries) {
+            // Icons used while the index was loading are the most recent ones
+            for(Map.Entry<String, Long> liveEntry : sEntries.entrySet()) {
+                loadedEntries.remove(liveEntry.getKey());
+                loadedEntries.put(liveEntry.getKey(), liveEntry.getValue());
             }
-            try {
-                if (Files.deleteIfExists(modFile)) {
-                    directoryFileSize.addAndGet(-Files.size(modFile));
-                    filesCleanedUp++;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+            sEntries.clear();
+            sTotalSize = 0;
+            for(Map.Entry<String, Long> entry : loadedEntries.entrySet()) putEntry(entry.getKey(), entry.getValue());
+            sIndexLoaded = true;
+        }
+    }
+
+    private static LinkedHashMap<String, Long> readIndex(File indexFile) {
+        if(!indexFile.isFile()) return null;
+        LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int separator = line.lastIndexOf(' ');
+                if(separator == -1) return null;
+                entries.put(line.substring(0, separator), Long.parseLong(line.substring(separator + 1)));
             }
+            return entries;
+        }catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read the icon index, rebuilding it", e);
+            return null;
         }
+    }
 
-        System.out.println("Cleaned up " + filesCleanedUp + " files");
+    /** Build the index from the files, oldest first. Each file is only looked at once. */
+    private static LinkedHashMap<String, Long> scanDirectory(File cachePath) {
+        LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+        File[] iconFiles = cachePath.listFiles((dir, name) -> name.endsWith(ICON_SUFFIX));
+        if(iconFiles == null) return entries;
+        ScannedIcon[] scannedIcons = new ScannedIcon[iconFiles.length];
+        for(int i = 0; i < iconFiles.length; i++) scannedIcons[i] = new ScannedIcon(iconFiles[i]);
+        Arrays.sort(scannedIcons, (a, b) -> Long.compare(a.lastModified, b.lastModified));
+        for(ScannedIcon scannedIcon : scannedIcons) entries.put(scannedIcon.name, scannedIcon.size);
+        return entries;
     }
 
     /**
-     * Runs the janitor task, unless there was one running already or one has ran already
+     * Make the saved index match the directory. The index is only saved every few changes, so
+     * icons written at the end of the last session may be missing from it. These go to the least
+     * recently used end, and only their sizes have to be read. Icons that are gone get dropped.
      */
-    public void runJanitor() {
-        if (sJanitorFuture != null || sJanitorRan) {
-            return;
+    private static LinkedHashMap<String, Long> reconcileIndex(File cachePath, LinkedHashMap<String, Long> indexEntries) {
+        String[] iconNames = cachePath.list((dir, name) -> name.endsWith(ICON_SUFFIX));
+        if(iconNames == null) return indexEntries;
+        LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+        HashSet<String> existingNames = new HashSet<>(Arrays.asList(iconNames));
+        for(String iconName : iconNames) {
+            if(!indexEntries.containsKey(iconName)) entries.put(iconName, new File(cachePath, iconName).length());
+        }
+        for(Map.Entry<String, Long> indexEntry : indexEntries.entrySet()) {
+            if(existingNames.contains(indexEntry.getKey())) entries.put(indexEntry.getKey(), indexEntry.getValue());
         }
+        return entries;
+    }
 
-        sJanitorFuture = PojavApplication.sExecutorService.submit(() -> {
-            getInstance().run();
-            sJanitorFuture = null;
-            sJanitorRan = true;
-        });
+    private static void scheduleSaveIfNeeded() {
+        synchronized (sEntries) {
+            if(!sIndexLoaded || sSavePending || sUnsavedChanges < CHANGES_BEFORE_SAVE) return;
+            sSavePending = true;
+        }
+        PojavApplication.sExecutorService.execute(IconCacheJanitor::saveIndex);
     }
 
-    /**
-     * Waits for the janitor task to finish, if there is one running already
-     * Note that the thread waiting must not be interrupted.
-     */
-    public void waitForJanitorToFinish() {
-        if (sJanitorFuture == null) {
+    private static void saveIndex() {
+        LinkedHashMap<String, Long> snapshot;
+        synchronized (sEntries) {
+            sSavePending = false;
+            if(!sIndexLoaded) return;
+            sUnsavedChanges = 0;
+            snapshot = new LinkedHashMap<>(sEntries);
+        }
+        File cachePath = ModIconCache.getImageCachePath();
+        if(!cachePath.isDirectory()) return;
+        File indexFile = new File(cachePath, INDEX_FILE_NAME);
+        File tempFile = new File(cachePath, INDEX_FILE_NAME + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+            for(Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write(' ');
+                writer.write(Long.toString(entry.getValue()));
+                writer.write('\n');
+            }
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to save the icon index", e);
             return;
         }
+        if(!tempFile.renameTo(indexFile)) Log.w(TAG, "Failed to replace the icon index");
+    }
+
+    private static class ScannedIcon {
+        final String name;
+        final long size;
+        final long lastModified;
 
-        try {
-            sJanitorFuture.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException("Should not happen!", e);
+        ScannedIcon(File file) {
+            this.name = file.getName();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
         }
     }
 }
@@ -1,7 +1,9 @@
 package net.kdt.pojavlaunch.modloaders.modpacks.imagecache;
 
+import android.graphics.Bitmap;
 import android.util.Base64;
 import android.util.Log;
+import android.util.LruCache;
 
 import net.kdt.pojavlaunch.Tools;
 
@@ -10,22 +12,36 @@ import org.apache.commons.io.IOUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Two-level cache for mod icons. Decoded icons are kept in memory, in an LRU cache bounded by
+ * their size in bytes and shared by all the instances, in front of the files on disk.
+ * Requests for an icon that is already loading wait for that load instead of starting another one.
+ */
 public class ModIconCache {
+    private static final LruCache<String, Bitmap> sMemoryCache = new LruCache<String, Bitmap>(getMemoryCacheSize()) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+    };
+    private static final AtomicInteger sDedupedRequestCount = new AtomicInteger();
     ThreadPoolExecutor cacheLoaderPool = new ThreadPoolExecutor(10,
             10,
             1000,
             TimeUnit.MILLISECONDS,
             new LinkedBlockingQueue<>());
     File cachePath;
-    private final List<WeakReference<ImageReceiver>> mCancelledReceivers = new ArrayList<>();
+    /** Tags of the icons being loaded -> receivers waiting for them */
+    private final Map<String, List<ImageReceiver>> mPendingRequests = new HashMap<>();
     public ModIconCache() {
         cachePath = getImageCachePath();
         if(!cachePath.exists() && !cachePath.isFile() && Tools.DIR_CACHE.canWrite()) {
@@ -38,14 +54,36 @@ public class ModIconCache {
         return new File(Tools.DIR_CACHE, "mod_icons");
     }
 
+    private static int getMemoryCacheSize() {
+        // About 128 full-size (256x256) icons, less on devices with a small heap
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 32 * 1024 * 1024);
+    }
+
     /**
-     * Get an image for a mod with the associated tag and URL to download it in case if its not cached
+     * Get an image for a mod with the associated tag and URL to download it in case if its not cached.
+     * Must be called on the UI thread. Icons that are in memory are given to the receiver right away.
      * @param imageReceiver the receiver interface that would get called when the image loads
      * @param imageTag the tag of the image to keep track of it
      * @param imageUrl the URL of the image in case if it's not cached
      */
     public void getImage(ImageReceiver imageReceiver, String imageTag, String imageUrl) {
-        cacheLoaderPool.execute(new ReadFromDiskTask(this, imageReceiver, imageTag, imageUrl));
+        Bitmap cachedBitmap = sMemoryCache.get(imageTag);
+        if(cachedBitmap != null) {
+            imageReceiver.onImageAvailable(cachedBitmap);
+            return;
+        }
+        synchronized (mPendingRequests) {
+            List<ImageReceiver> receivers = mPendingRequests.get(imageTag);
+            if(receivers != null) {
+                receivers.add(imageReceiver);
+                sDedupedRequestCount.incrementAndGet();
+                return;
+            }
+            receivers = new ArrayList<>(1);
+            receivers.add(imageReceiver);
+            mPendingRequests.put(imageTag, receivers);
+        }
+        cacheLoaderPool.execute(new ReadFromDiskTask(this, imageTag, imageUrl));
     }
 
     /**
@@ -55,28 +93,69 @@ public class ModIconCache {
      * @param imageReceiver the receiver to cancel
      */
     public void cancelImage(ImageReceiver imageReceiver) {
-        synchronized (mCancelledReceivers) {
-            mCancelledReceivers.add(new WeakReference<>(imageReceiver));
+        synchronized (mPendingRequests) {
+            for(List<ImageReceiver> receivers : mPendingRequests.values()) {
+                if(receivers.remove(imageReceiver)) break;
+            }
+        }
+    }
+
+    /**
+     * Check if anyone still waits for an image. If nobody does, the request is forgotten, and
+     * the loading task should stop.
+     * @param imageTag the tag of the image
+     * @return true if the image isn't needed anymore
+     */
+    boolean checkCancelled(String imageTag) {
+        synchronized (mPendingRequests) {
+            List<ImageReceiver> receivers = mPendingRequests.get(imageTag);
+            if(receivers != null && !receivers.isEmpty()) return false;
+            mPendingRequests.remove(imageTag);
         }
+        Log.i("IconCache", "checkCancelled("+imageTag+") == true");
+        return true;
     }
 
-    boolean checkCancelled(ImageReceiver imageReceiver) {
-        boolean isCanceled = false;
-        synchronized (mCancelledReceivers) {
-            Iterator<WeakReference<ImageReceiver>> iterator = mCancelledReceivers.iterator();
-            while (iterator.hasNext()) {
-                WeakReference<ImageReceiver> reference = iterator.next();
-                if (reference.get() == null) {
-                    iterator.remove();
-                    continue;
-                }
-                if(reference.get() == imageReceiver) {
-                    isCanceled = true;
-                }
+    /**
+     * Store a loaded image in memory and hand it to all the receivers waiting for it.
+     * @param imageTag the tag of the image
+     * @param bitmap the decoded image
+     */
+    void onImageLoaded(String imageTag, Bitmap bitmap) {
+        sMemoryCache.put(imageTag, bitmap);
+        Tools.runOnUiThread(()->{
+            List<ImageReceiver> receivers;
+            synchronized (mPendingRequests) {
+                receivers = mPendingRequests.remove(imageTag);
             }
+            if(receivers == null) return;
+            for(ImageReceiver receiver : receivers) receiver.onImageAvailable(bitmap);
+        });
+    }
+
+    /**
+     * Forget a request that failed, so that the next request for the image tries again.
+     * @param imageTag the tag of the image
+     */
+    void onImageFailed(String imageTag) {
+        synchronized (mPendingRequests) {
+            mPendingRequests.remove(imageTag);
         }
-        if(isCanceled) Log.i("IconCache", "checkCancelled("+imageReceiver.hashCode()+") == true");
-        return isCanceled;
+    }
+
+    /** @return the amount of requests answered from memory */
+    public static int getMemoryHitCount() {
+        return sMemoryCache.hitCount();
+    }
+
+    /** @return the amount of requests that had to go to the disk or the network */
+    public static int getMemoryMissCount() {
+        return sMemoryCache.missCount();
+    }
+
+    /** @return the amount of requests that joined a load already in progress */
+    public static int getDedupedRequestCount() {
+        return sDedupedRequestCount.get();
     }
 
     /**
@@ -3,19 +3,24 @@ package net.kdt.pojavlaunch.modloaders.modpacks.imagecache;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
-import net.kdt.pojavlaunch.Tools;
-
 import java.io.File;
 
 public class ReadFromDiskTask implements Runnable {
+    // The decoder needs a scratch buffer for every decode, reuse one per loader thread
+    private static final ThreadLocal<byte[]> sDecodeBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
     final ModIconCache iconCache;
-    final ImageReceiver imageReceiver;
+    final String cacheTag;
     final File cacheFile;
     final String imageUrl;
 
-    ReadFromDiskTask(ModIconCache iconCache, ImageReceiver imageReceiver, String cacheTag, String imageUrl) {
+    ReadFromDiskTask(ModIconCache iconCache, String cacheTag, String imageUrl) {
         this.iconCache = iconCache;
-        this.imageReceiver = imageReceiver;
+        this.cacheTag = cacheTag;
         this.cacheFile = new File(iconCache.cachePath, cacheTag+".ca");
         this.imageUrl = imageUrl;
     }
@@ -26,30 +31,30 @@ public class ReadFromDiskTask implements Runnable {
 
     @Override
     public void run() {
-        if(cacheFile.isDirectory()) {
+        if(cacheFile.isDirectory() || taskCancelled()) {
+            iconCache.onImageFailed(cacheTag);
             return;
         }
         if(cacheFile.canRead()) {
-            IconCacheJanitor.waitForJanitorToFinish();
-            Bitmap bitmap = BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inTempStorage = sDecodeBuffer.get();
+            Bitmap bitmap = BitmapFactory.decodeFile(cacheFile.getAbsolutePath(), options);
             if(bitmap != null) {
-                Tools.runOnUiThread(()->{
-                    if(taskCancelled()) {
-                        bitmap.recycle(); // do not leak the bitmap if the task got cancelled right at the end
-                        return;
-                    }
-                    imageReceiver.onImageAvailable(bitmap);
-                });
+                IconCacheJanitor.recordAccess(cacheFile);
+                // Even if the receivers are gone, the icon goes to the memory cache for the next time
+                iconCache.onImageLoaded(cacheTag, bitmap);
                 return;
             }
         }
         if(iconCache.cachePath.canWrite() &&
                 !taskCancelled()) { // don't run the download task if the task got canceled
             runDownloadTask();
+        }else {
+            iconCache.onImageFailed(cacheTag);
         }
     }
     @SuppressWarnings("BooleanMethodAlwaysInverted")
     public boolean taskCancelled() {
-        return iconCache.checkCancelled(imageReceiver);
+        return iconCache.checkCancelled(cacheTag);
     }
 }
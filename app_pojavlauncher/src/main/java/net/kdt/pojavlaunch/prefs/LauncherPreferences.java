@@ -66,6 +66,8 @@ public class LauncherPreferences {
     
     public static boolean PREF_VERIFY_MANIFEST = true;
     public static String PREF_DOWNLOAD_SOURCE = "default";
+    public static int PREF_DOWNLOAD_MAX_THREADS = 16;
+    public static boolean PREF_DOWNLOAD_RACE_MIRRORS = true;
     public static boolean PREF_SKIP_NOTIFICATION_PERMISSION_CHECK = false;
     public static boolean PREF_VSYNC_IN_ZINK = true;
 
@@ -112,6 +114,8 @@ public class LauncherPreferences {
         PREF_ZINK_PREFER_SYSTEM_DRIVER = DEFAULT_PREF.getBoolean("zinkPreferSystemDriver", false);
         PREF_DOWNLOAD_SOURCE = DEFAULT_PREF.getString("downloadSource", "default");
         PREF_VERIFY_MANIFEST = DEFAULT_PREF.getBoolean("verifyManifest", true);
+        PREF_DOWNLOAD_MAX_THREADS = DEFAULT_PREF.getInt("downloadMaxThreads", 16);
+        PREF_DOWNLOAD_RACE_MIRRORS = DEFAULT_PREF.getBoolean("downloadRaceMirrors", true);
         PREF_SKIP_NOTIFICATION_PERMISSION_CHECK = DEFAULT_PREF.getBoolean(PREF_KEY_SKIP_NOTIFICATION_CHECK, false);
         PREF_VSYNC_IN_ZINK = DEFAULT_PREF.getBoolean("vsync_in_zink", true);
 
@@ -6,11 +6,19 @@ import androidx.preference.Preference;
 
 import net.kdt.pojavlaunch.R;
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.prefs.CustomSeekBarPreference;
+import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+import net.kdt.pojavlaunch.utils.DownloadConcurrencyController;
 
 public class LauncherPreferenceMiscellaneousFragment extends LauncherPreferenceFragment {
     @Override
     public void onCreatePreferences(Bundle b, String str) {
+        int downloadMaxThreads = LauncherPreferences.PREF_DOWNLOAD_MAX_THREADS;
         addPreferencesFromResource(R.xml.pref_misc);
+        CustomSeekBarPreference downloadThreadsSeek = requirePreference("downloadMaxThreads",
+                CustomSeekBarPreference.class);
+        downloadThreadsSeek.setRange(DownloadConcurrencyController.MIN_DOWNLOAD_THREADS, 32);
+        downloadThreadsSeek.setValue(downloadMaxThreads);
         Preference driverPreference = requirePreference("zinkPreferSystemDriver");
         if(!Tools.checkVulkanSupport(driverPreference.getContext().getPackageManager())) {
             driverPreference.setVisible(false);
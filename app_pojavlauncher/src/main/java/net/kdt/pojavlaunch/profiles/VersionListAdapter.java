@@ -11,14 +11,22 @@ import android.widget.TextView;
 import net.kdt.pojavlaunch.JMinecraftVersionList;
 import net.kdt.pojavlaunch.R;
 import net.kdt.pojavlaunch.Tools;
-import net.kdt.pojavlaunch.utils.FilteredSubList;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class VersionListAdapter extends BaseExpandableListAdapter implements ExpandableListAdapter {
-    
+    private static final int TYPE_RELEASE = 0;
+    private static final int TYPE_SNAPSHOT = 1;
+    private static final int TYPE_OLD_BETA = 2;
+    private static final int TYPE_OLD_ALPHA = 3;
+    // The groups of the last version list, which doesn't change while the launcher runs
+    private static JMinecraftVersionList.Version[] sGroupedVersionList;
+    private static List<JMinecraftVersionList.Version>[] sTypeGroups;
+
     private final LayoutInflater mLayoutInflater;
 
     private final String[] mGroups;
@@ -31,10 +39,11 @@ public class VersionListAdapter extends BaseExpandableListAdapter implements Exp
         mHideCustomVersions = hideCustomVersions;
         mLayoutInflater = (LayoutInflater) ctx.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 
-        List<JMinecraftVersionList.Version> releaseList = new FilteredSubList<>(versionList, item -> item.type.equals("release"));
-        List<JMinecraftVersionList.Version> snapshotList = new FilteredSubList<>(versionList, item -> item.type.equals("snapshot"));
-        List<JMinecraftVersionList.Version> betaList = new FilteredSubList<>(versionList, item -> item.type.equals("old_beta"));
-        List<JMinecraftVersionList.Version> alphaList = new FilteredSubList<>(versionList, item -> item.type.equals("old_alpha"));
+        List<JMinecraftVersionList.Version>[] typeGroups = getTypeGroups(versionList);
+        List<JMinecraftVersionList.Version> releaseList = typeGroups[TYPE_RELEASE];
+        List<JMinecraftVersionList.Version> snapshotList = typeGroups[TYPE_SNAPSHOT];
+        List<JMinecraftVersionList.Version> betaList = typeGroups[TYPE_OLD_BETA];
+        List<JMinecraftVersionList.Version> alphaList = typeGroups[TYPE_OLD_ALPHA];
 
         // Query installed versions
         mInstalledVersions = new File(Tools.DIR_GAME_NEW + "/versions").list();
@@ -128,6 +137,27 @@ public class VersionListAdapter extends BaseExpandableListAdapter implements Exp
         return groupPosition == mSnapshotListPosition;
     }
 
+    /** Sort the versions by type, in a single pass, once per version list */
+    @SuppressWarnings("unchecked")
+    private static synchronized List<JMinecraftVersionList.Version>[] getTypeGroups(JMinecraftVersionList.Version[] versionList) {
+        if(versionList == sGroupedVersionList) return sTypeGroups;
+        List<JMinecraftVersionList.Version>[] typeGroups = new List[4];
+        for(int i = 0; i < typeGroups.length; i++) typeGroups[i] = new ArrayList<>();
+        for(JMinecraftVersionList.Version version : versionList) {
+            if(version.type == null) continue;
+            switch (version.type) {
+                case "release": typeGroups[TYPE_RELEASE].add(version); break;
+                case "snapshot": typeGroups[TYPE_SNAPSHOT].add(version); break;
+                case "old_beta": typeGroups[TYPE_OLD_BETA].add(version); break;
+                case "old_alpha": typeGroups[TYPE_OLD_ALPHA].add(version); break;
+            }
+        }
+        for(int i = 0; i < typeGroups.length; i++) typeGroups[i] = Collections.unmodifiableList(typeGroups[i]);
+        sGroupedVersionList = versionList;
+        sTypeGroups = typeGroups;
+        return typeGroups;
+    }
+
     private boolean areInstalledVersionsAvailable(){
         if(mHideCustomVersions) return false;
         return !(mInstalledVersions == null || mInstalledVersions.length == 0);
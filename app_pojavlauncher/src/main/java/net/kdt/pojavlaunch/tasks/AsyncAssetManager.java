@@ -8,17 +8,22 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.kdt.mcgui.ProgressLayout;
 
 import net.kdt.pojavlaunch.Tools;
 import net.kdt.pojavlaunch.multirt.MultiRTUtils;
+import net.kdt.pojavlaunch.utils.ZipExtractor;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.ZipFile;
 
 public class AsyncAssetManager {
 
@@ -78,23 +83,36 @@ public class AsyncAssetManager {
     public static void unpackComponents(Context ctx){
         ProgressLayout.setProgress(ProgressLayout.EXTRACT_COMPONENTS, 0);
         sExecutorService.execute(() -> {
+            ZipFile apkFile = openApk(ctx);
             try {
-                unpackComponent(ctx, "caciocavallo", false);
-                unpackComponent(ctx, "caciocavallo17", false);
+                unpackComponent(ctx, apkFile, "caciocavallo", false);
+                unpackComponent(ctx, apkFile, "caciocavallo17", false);
                 // Since the Java module system doesn't allow multiple JARs to declare the same module,
                 // we repack them to a single file here
-                unpackComponent(ctx, "lwjgl3", false);
-                unpackComponent(ctx, "security", true);
-                unpackComponent(ctx, "arc_dns_injector", true);
-                unpackComponent(ctx, "forge_installer", true);
+                unpackComponent(ctx, apkFile, "lwjgl3", false);
+                unpackComponent(ctx, apkFile, "security", true);
+                unpackComponent(ctx, apkFile, "arc_dns_injector", true);
+                unpackComponent(ctx, apkFile, "forge_installer", true);
             } catch (IOException e) {
                 Log.e("AsyncAssetManager", "Failed o unpack components !",e );
+            } finally {
+                IOUtils.closeQuietly(apkFile);
             }
             ProgressLayout.clearProgress(ProgressLayout.EXTRACT_COMPONENTS);
         });
     }
 
-    private static void unpackComponent(Context ctx, String component, boolean privateDirectory) throws IOException {
+    /** Open the APK, to extract the assets straight from it */
+    private static @Nullable ZipFile openApk(Context ctx) {
+        try {
+            return new ZipFile(ctx.getApplicationInfo().sourceDir);
+        } catch (IOException e) {
+            Log.w("AsyncAssetManager", "Failed to open the APK, falling back to the asset manager", e);
+            return null;
+        }
+    }
+
+    private static void unpackComponent(Context ctx, @Nullable ZipFile apkFile, String component, boolean privateDirectory) throws IOException {
         AssetManager am = ctx.getAssets();
         String rootDir = privateDirectory ? Tools.DIR_DATA : Tools.DIR_GAME_HOME;
 
@@ -107,10 +125,7 @@ public class AsyncAssetManager {
             versionFile.getParentFile().mkdir();
 
             Log.i("UnpackPrep", component + ": Pack was installed manually, or does not exist, unpacking new...");
-            String[] fileList = am.list("components/" + component);
-            for(String s : fileList) {
-                Tools.copyAssetFile(ctx, "components/" + component + "/" + s, rootDir + "/" + component, true);
-            }
+            extractComponent(ctx, apkFile, component, rootDir);
         } else {
             FileInputStream fis = new FileInputStream(versionFile);
             String release1 = Tools.read(is);
@@ -121,13 +136,22 @@ public class AsyncAssetManager {
                 }
                 versionFile.getParentFile().mkdir();
 
-                String[] fileList = am.list("components/" + component);
-                for (String fileName : fileList) {
-                    Tools.copyAssetFile(ctx, "components/" + component + "/" + fileName, rootDir + "/" + component, true);
-                }
+                extractComponent(ctx, apkFile, component, rootDir);
             } else {
                 Log.i("UnpackPrep", component + ": Pack is up-to-date with the launcher, continuing...");
             }
         }
     }
+
+    private static void extractComponent(Context ctx, @Nullable ZipFile apkFile, String component, String rootDir) throws IOException {
+        if(apkFile != null && ZipExtractor.extract(apkFile, "assets/components/" + component + "/",
+                new File(rootDir, component), null, null) > 0) {
+            return;
+        }
+        // The assets aren't stored in the base APK, copy them one by one
+        String[] fileList = ctx.getAssets().list("components/" + component);
+        for (String fileName : fileList) {
+            Tools.copyAssetFile(ctx, "components/" + component + "/" + fileName, rootDir + "/" + component, true);
+        }
+    }
 }
@@ -1,87 +1,126 @@
 package net.kdt.pojavlaunch.tasks;
 
 import static net.kdt.pojavlaunch.PojavApplication.sExecutorService;
-import static net.kdt.pojavlaunch.utils.DownloadUtils.downloadString;
 
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import com.google.gson.JsonIOException;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 import com.google.gson.stream.JsonReader;
 
 import net.kdt.pojavlaunch.JMinecraftVersionList;
 import net.kdt.pojavlaunch.Tools;
 import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+import net.kdt.pojavlaunch.utils.HttpUtils;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-
-/** Class getting the version list, and that's all really */
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class getting the version list, and that's all really.
+ * The list is kept as a binary snapshot, which gets delivered right away, then revalidated
+ * with a conditional request. It only gets downloaded and parsed again if it changed.
+ */
 public class AsyncVersionList {
+    private static final String TAG = "AsyncVersionList";
+    /** How long the snapshot is used without asking the server whether the list changed */
+    private static final long REVALIDATE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
 
-    public void getVersionList(@Nullable VersionDoneListener listener, boolean secondPass){
+    public void getVersionList(@Nullable VersionDoneListener listener){
         sExecutorService.execute(() -> {
-            File versionFile = new File(Tools.DIR_DATA + "/version_list.json");
-            JMinecraftVersionList versionList = null;
-            try{
-                if(!versionFile.exists() || (System.currentTimeMillis() > versionFile.lastModified() + 86400000 )){
-                    versionList = downloadVersionList(LauncherPreferences.PREF_VERSION_REPOS);
-                }
-            }catch (Exception e){
-                Log.e("AsyncVersionList", "Refreshing version list failed :" + e);
-                e.printStackTrace();
+            File snapshotFile = new File(Tools.DIR_DATA, "version_list.bin");
+            VersionManifestSnapshot snapshot = VersionManifestSnapshot.read(snapshotFile);
+            if(snapshot == null) snapshot = migrateLegacyVersionList(snapshotFile);
+            if(snapshot != null) {
+                if(listener != null) listener.onVersionDone(snapshot.versionList);
+                if(System.currentTimeMillis() < snapshotFile.lastModified() + REVALIDATE_INTERVAL_MILLIS) return;
             }
 
-            // Fallback when no network or not needed
-            if (versionList == null) {
-                try {
-                    versionList = Tools.GLOBAL_GSON.fromJson(new JsonReader(new FileReader(versionFile)), JMinecraftVersionList.class);
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (JsonIOException | JsonSyntaxException e) {
-                    e.printStackTrace();
-                    versionFile.delete();
-                    if(!secondPass)
-                        getVersionList(listener, true);
-                }
+            VersionManifestSnapshot newSnapshot = null;
+            try{
+                newSnapshot = downloadVersionList(LauncherPreferences.PREF_VERSION_REPOS, snapshot, snapshotFile);
+            }catch (IOException | JsonParseException e){
+                Log.e(TAG, "Refreshing version list failed", e);
             }
 
-            if(listener != null)
-                listener.onVersionDone(versionList);
+            // Without a snapshot the listener wasn't called yet, so it has to know about the failure
+            if(listener != null && (newSnapshot != null || snapshot == null))
+                listener.onVersionDone(newSnapshot != null ? newSnapshot.versionList : null);
         });
     }
 
-
+    /**
+     * Request the version list, conditionally if there is a snapshot, and store the new snapshot
+     * @return the new snapshot, or null if the list didn't change
+     */
     @SuppressWarnings("SameParameterValue")
-    private JMinecraftVersionList downloadVersionList(String mirror){
-        JMinecraftVersionList list = null;
-        try{
-            Log.i("ExtVL", "Syncing to external: " + mirror);
-            String jsonString = downloadString(mirror);
-            list = Tools.GLOBAL_GSON.fromJson(jsonString, JMinecraftVersionList.class);
-            Log.i("ExtVL","Downloaded the version list, len=" + list.versions.length);
-
-            // Then save the version list
-            //TODO make it not save at times ?
-            FileOutputStream fos = new FileOutputStream(Tools.DIR_DATA + "/version_list.json");
-            fos.write(jsonString.getBytes());
-            fos.close();
-
-
+    private static @Nullable VersionManifestSnapshot downloadVersionList(String mirror, @Nullable VersionManifestSnapshot snapshot,
+                                                                         File snapshotFile) throws IOException {
+        Log.i("ExtVL", "Syncing to external: " + mirror);
+        HttpURLConnection connection = HttpUtils.openJson(mirror, null);
+        if(snapshot != null) {
+            if(snapshot.etag != null) connection.setRequestProperty("If-None-Match", snapshot.etag);
+            if(snapshot.lastModified != null) connection.setRequestProperty("If-Modified-Since", snapshot.lastModified);
+        }
+        if(snapshot != null && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            HttpUtils.release(connection);
+            if(!snapshotFile.setLastModified(System.currentTimeMillis()))
+                Log.w(TAG, "Failed to update the version list check time");
+            return null;
+        }
+        HttpUtils.checkResponse(connection);
+        JMinecraftVersionList versionList;
+        try (Reader reader = new InputStreamReader(HttpUtils.getInputStream(connection), StandardCharsets.UTF_8)) {
+            versionList = Tools.GLOBAL_GSON.fromJson(new JsonReader(reader), JMinecraftVersionList.class);
+        }
+        if(versionList == null || versionList.versions == null) throw new IOException("Empty version list");
+        Log.i("ExtVL","Downloaded the version list, len=" + versionList.versions.length);
+
+        VersionManifestSnapshot newSnapshot = new VersionManifestSnapshot(versionList,
+                connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        try {
+            newSnapshot.write(snapshotFile);
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to save the version list snapshot", e);
+        }
+        return newSnapshot;
+    }
 
-        }catch (IOException e){
-            Log.e("AsyncVersionList", e.toString());
+    /** Turn the JSON version list saved by older launcher versions into a snapshot */
+    private static @Nullable VersionManifestSnapshot migrateLegacyVersionList(File snapshotFile) {
+        File legacyFile = new File(Tools.DIR_DATA, "version_list.json");
+        if(!legacyFile.isFile()) return null;
+        VersionManifestSnapshot snapshot = null;
+        try (JsonReader jsonReader = new JsonReader(new FileReader(legacyFile))) {
+            JMinecraftVersionList versionList = Tools.GLOBAL_GSON.fromJson(jsonReader, JMinecraftVersionList.class);
+            if(versionList != null && versionList.versions != null) {
+                snapshot = new VersionManifestSnapshot(versionList, null, null);
+                snapshot.write(snapshotFile);
+                // Keep the age of the old list, so that it gets refreshed as planned
+                //noinspection ResultOfMethodCallIgnored
+                snapshotFile.setLastModified(legacyFile.lastModified());
+            }
+        }catch (IOException | JsonParseException e) {
+            Log.w(TAG, "Failed to migrate the old version list", e);
         }
-        return list;
+        //noinspection ResultOfMethodCallIgnored
+        legacyFile.delete();
+        return snapshot;
     }
 
     /** Basic listener, acting as a callback */
     public interface VersionDoneListener{
+        /**
+         * Called with the saved version list first if there is one, and a second time if the
+         * list changed on the server. Called with null if no list is available at all.
+         */
         void onVersionDone(JMinecraftVersionList versions);
     }
 
@@ -0,0 +1,308 @@
+package net.kdt.pojavlaunch.tasks;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.utils.FileUtils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The on-disk state of a game version install: the resolved download task list, and which of
+ * the tasks already completed. If the launcher gets killed in the middle of an install, the next
+ * install of the same version only runs the remaining tasks, without processing the metadata
+ * (asset index, libraries...) and checking every file again.
+ * The journal is only trusted if none of the metadata files it was built from changed since.
+ * Completions are appended as single records carrying their own checksum, so a crash loses at
+ * most the last few of them, and the corresponding tasks simply run again. A torn record is cut
+ * off when the journal gets loaded, before anything else is appended to it.
+ */
+class InstallJournal {
+    private static final String TAG = "InstallJournal";
+    private static final int JOURNAL_MAGIC = 0x50564a4e; // "PVJN"
+    private static final int JOURNAL_VERSION = 2;
+    private static final int COMPLETION_RECORD_LENGTH = 8;
+
+    private final File mJournalFile;
+    private final List<MetadataFile> mMetadataFiles;
+    private final List<Entry> mEntries;
+    private final boolean mCheckSha1;
+    private final String mSourceJarPath;
+    private final BitSet mCompleted;
+    private DataOutputStream mCompletionStream;
+
+    private InstallJournal(File journalFile, List<MetadataFile> metadataFiles, List<Entry> entries,
+                           boolean checkSha1, @Nullable String sourceJarPath, BitSet completed) {
+        this.mJournalFile = journalFile;
+        this.mMetadataFiles = metadataFiles;
+        this.mEntries = entries;
+        this.mCheckSha1 = checkSha1;
+        this.mSourceJarPath = sourceJarPath;
+        this.mCompleted = completed;
+    }
+
+    static File getJournalFile(String versionName) {
+        return new File(Tools.DIR_DATA, "install_journals" + File.separator
+                + versionName.replace(File.separatorChar, '_') + ".bin");
+    }
+
+    /**
+     * Load the journal of an unfinished install.
+     * @param versionName the version ID
+     * @param checkSha1 the current state of the library checksum setting, which changes the task list
+     * @return the journal, or null if there is none or if it is outdated
+     */
+    static @Nullable InstallJournal load(String versionName, boolean checkSha1) {
+        File journalFile = getJournalFile(versionName);
+        if(!journalFile.isFile()) return null;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if(inputStream.readInt() != JOURNAL_MAGIC || inputStream.readInt() != JOURNAL_VERSION) {
+                throw new IOException("Unknown journal format");
+            }
+            boolean journalCheckSha1 = inputStream.readBoolean();
+            String sourceJarPath = inputStream.readBoolean() ? inputStream.readUTF() : null;
+            int metadataCount = inputStream.readInt();
+            List<MetadataFile> metadataFiles = new ArrayList<>(metadataCount);
+            for(int i = 0; i < metadataCount; i++) {
+                metadataFiles.add(new MetadataFile(new File(inputStream.readUTF()), inputStream.readBoolean(),
+                        inputStream.readLong(), inputStream.readLong()));
+            }
+            int entryCount = inputStream.readInt();
+            List<Entry> entries = new ArrayList<>(entryCount);
+            for(int i = 0; i < entryCount; i++) {
+                File path = new File(inputStream.readUTF());
+                String url = inputStream.readUTF();
+                String sha1 = inputStream.readBoolean() ? inputStream.readUTF() : null;
+                entries.add(new Entry(path, inputStream.readInt(), inputStream.readInt(), url, sha1,
+                        inputStream.readLong(), inputStream.readBoolean()));
+            }
+            // Everything past the task list is completion records
+            byte[] completionRecords = IOUtils.toByteArray(inputStream);
+            long headerLength = journalFile.length() - completionRecords.length;
+            BitSet completed = new BitSet(entryCount);
+            int recordCount = readCompletions(completionRecords, entryCount, completed);
+            long validLength = headerLength + (long) recordCount * COMPLETION_RECORD_LENGTH;
+            if(validLength != journalFile.length()) {
+                // Cut off the torn tail, or the next records would be appended after it
+                Log.i(TAG, "Dropping a torn completion record from the journal of "+versionName);
+                try (RandomAccessFile journalAccess = new RandomAccessFile(journalFile, "rw")) {
+                    journalAccess.setLength(validLength);
+                }
+            }
+            InstallJournal journal = new InstallJournal(journalFile, metadataFiles, entries,
+                    journalCheckSha1, sourceJarPath, completed);
+            if(!journal.isUpToDate(checkSha1)) {
+                Log.i(TAG, "Install journal for "+versionName+" is outdated");
+                delete(versionName);
+                return null;
+            }
+            return journal;
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to read the install journal for "+versionName, e);
+            delete(versionName);
+            return null;
+        }
+    }
+
+    /**
+     * Write a new journal for an install that is about to start.
+     * @param versionName the version ID
+     * @param metadataFiles the metadata files the task list was resolved from
+     * @param entries the resolved task list
+     * @param checkSha1 the current state of the library checksum setting
+     * @param sourceJarFile the client JAR picked during the inheritance process, or null
+     * @return the new journal, ready to record completions
+     * @throws IOException if the journal can't be written
+     */
+    static InstallJournal create(String versionName, List<MetadataFile> metadataFiles, List<Entry> entries,
+                                 boolean checkSha1, @Nullable File sourceJarFile) throws IOException {
+        File journalFile = getJournalFile(versionName);
+        FileUtils.ensureParentDirectory(journalFile);
+        File tempFile = new File(journalFile.getAbsolutePath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            outputStream.writeInt(JOURNAL_MAGIC);
+            outputStream.writeInt(JOURNAL_VERSION);
+            outputStream.writeBoolean(checkSha1);
+            outputStream.writeBoolean(sourceJarFile != null);
+            if(sourceJarFile != null) outputStream.writeUTF(sourceJarFile.getAbsolutePath());
+            outputStream.writeInt(metadataFiles.size());
+            for(MetadataFile metadataFile : metadataFiles) {
+                outputStream.writeUTF(metadataFile.file.getAbsolutePath());
+                outputStream.writeBoolean(metadataFile.versionJson);
+                outputStream.writeLong(metadataFile.length);
+                outputStream.writeLong(metadataFile.lastModified);
+            }
+            outputStream.writeInt(entries.size());
+            for(Entry entry : entries) {
+                outputStream.writeUTF(entry.path.getAbsolutePath());
+                outputStream.writeUTF(entry.url);
+                outputStream.writeBoolean(entry.sha1 != null);
+                if(entry.sha1 != null) outputStream.writeUTF(entry.sha1);
+                outputStream.writeInt(entry.downloadClass);
+                outputStream.writeInt(entry.priority);
+                outputStream.writeLong(entry.size);
+                outputStream.writeBoolean(entry.skipIfFailed);
+            }
+        }
+        if(!tempFile.renameTo(journalFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to move the install journal into place");
+        }
+        return new InstallJournal(journalFile, metadataFiles, entries, checkSha1,
+                sourceJarFile != null ? sourceJarFile.getAbsolutePath() : null, new BitSet(entries.size()));
+    }
+
+    /**
+     * Read the completion records, up to the first one that is incomplete or damaged
+     * @return the amount of valid records
+     */
+    private static int readCompletions(byte[] completionRecords, int entryCount, BitSet completed) {
+        ByteBuffer recordBuffer = ByteBuffer.wrap(completionRecords);
+        int recordCount = 0;
+        while(recordBuffer.remaining() >= COMPLETION_RECORD_LENGTH) {
+            int index = recordBuffer.getInt();
+            int checksum = recordBuffer.getInt();
+            if(checksum != computeChecksum(index) || index < 0 || index >= entryCount) break;
+            completed.set(index);
+            recordCount++;
+        }
+        return recordCount;
+    }
+
+    private static int computeChecksum(int index) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(ByteBuffer.allocate(4).putInt(index).array());
+        return (int) crc32.getValue();
+    }
+
+    /** Delete the journal of a version, once its install completed */
+    static void delete(String versionName) {
+        File journalFile = getJournalFile(versionName);
+        if(journalFile.exists() && !journalFile.delete()) Log.w(TAG, "Failed to delete "+journalFile);
+    }
+
+    private boolean isUpToDate(boolean checkSha1) {
+        if(checkSha1 != mCheckSha1) return false;
+        for(MetadataFile metadataFile : mMetadataFiles) {
+            if(!metadataFile.isUnchanged()) return false;
+        }
+        return true;
+    }
+
+    List<MetadataFile> getMetadataFiles() {
+        return mMetadataFiles;
+    }
+
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    boolean isCompleted(int index) {
+        return mCompleted.get(index);
+    }
+
+    @Nullable File getSourceJarFile() {
+        return mSourceJarPath != null ? new File(mSourceJarPath) : null;
+    }
+
+    /**
+     * Record that a task completed and its file was verified. Call flush() to make the record
+     * reach the disk.
+     * @param index the index of the task in the entry list
+     */
+    synchronized void markCompleted(int index) {
+        if(mCompleted.get(index)) return;
+        mCompleted.set(index);
+        try {
+            if(mCompletionStream == null) {
+                mCompletionStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+            }
+            mCompletionStream.writeInt(index);
+            mCompletionStream.writeInt(computeChecksum(index));
+        }catch (IOException e) {
+            // Not fatal, the task will just run again on the next attempt
+            Log.w(TAG, "Failed to record a completion", e);
+        }
+    }
+
+    synchronized void flush() {
+        if(mCompletionStream == null) return;
+        try {
+            mCompletionStream.flush();
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to flush the install journal", e);
+        }
+    }
+
+    synchronized void close() {
+        if(mCompletionStream == null) return;
+        try {
+            mCompletionStream.close();
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to close the install journal", e);
+        }
+        mCompletionStream = null;
+    }
+
+    /** A metadata file (version JSON, asset index...) that the task list was resolved from */
+    static class MetadataFile {
+        final File file;
+        final boolean versionJson;
+        final long length;
+        final long lastModified;
+
+        MetadataFile(File file, boolean versionJson) {
+            this(file, versionJson, file.length(), file.lastModified());
+        }
+
+        private MetadataFile(File file, boolean versionJson, long length, long lastModified) {
+            this.file = file;
+            this.versionJson = versionJson;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        boolean isUnchanged() {
+            return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /** A resolved download task */
+    static class Entry {
+        final File path;
+        final int downloadClass;
+        final int priority;
+        final String url;
+        final String sha1;
+        final long size;
+        final boolean skipIfFailed;
+
+        Entry(File path, int downloadClass, int priority, String url, @Nullable String sha1,
+              long size, boolean skipIfFailed) {
+            this.path = path;
+            this.downloadClass = downloadClass;
+            this.priority = priority;
+            this.url = url;
+            this.sha1 = sha1;
+            this.size = size;
+            this.skipIfFailed = skipIfFailed;
+        }
+    }
+}
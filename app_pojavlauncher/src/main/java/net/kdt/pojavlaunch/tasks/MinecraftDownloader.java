@@ -10,17 +10,20 @@ import androidx.annotation.Nullable;
 
 import com.kdt.mcgui.ProgressLayout;
 
-import net.kdt.pojavlaunch.JAssetInfo;
-import net.kdt.pojavlaunch.JAssets;
+import net.kdt.pojavlaunch.JAssetIndex;
 import net.kdt.pojavlaunch.JMinecraftVersionList;
 import net.kdt.pojavlaunch.JRE17Util;
+import net.kdt.pojavlaunch.LaunchPlan;
 import net.kdt.pojavlaunch.R;
 import net.kdt.pojavlaunch.Tools;
 import net.kdt.pojavlaunch.mirrors.DownloadMirror;
 import net.kdt.pojavlaunch.mirrors.MirrorTamperedException;
+import net.kdt.pojavlaunch.utils.DownloadConcurrencyController;
 import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+import net.kdt.pojavlaunch.utils.DownloadScheduler;
 import net.kdt.pojavlaunch.utils.DownloadUtils;
 import net.kdt.pojavlaunch.utils.FileUtils;
+import net.kdt.pojavlaunch.utils.FileVerificationIndex;
 import net.kdt.pojavlaunch.value.DependentLibrary;
 import net.kdt.pojavlaunch.value.MinecraftClientInfo;
 import net.kdt.pojavlaunch.value.MinecraftLibraryArtifact;
@@ -28,10 +31,8 @@ import net.kdt.pojavlaunch.value.MinecraftLibraryArtifact;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -39,10 +40,15 @@ import java.util.concurrent.atomic.AtomicReference;
 public class MinecraftDownloader {
     public static final String MINECRAFT_RES = "https://resources.download.minecraft.net/";
     private AtomicReference<Exception> mDownloaderThreadException;
-    private ArrayList<DownloaderTask> mScheduledDownloadTasks;
+    private DownloadScheduler mDownloadScheduler;
     private AtomicLong mDownloadFileCounter;
     private AtomicLong mDownloadSizeCounter;
     private long mDownloadFileCount;
+    private DownloadConcurrencyController mConcurrencyController;
+    private ArrayList<InstallJournal.Entry> mJournalEntries;
+    private ArrayList<InstallJournal.MetadataFile> mJournalMetadata;
+    private InstallJournal mInstallJournal;
+    private volatile boolean mFilesChanged; // Whether any game file got downloaded, now or by an interrupted install
     private File mSourceJarFile; // The source client JAR picked during the inheritance process
     private File mTargetJarFile; // The destination client JAR to which the source will be copied to.
 
@@ -82,44 +88,120 @@ public class MinecraftDownloader {
         ProgressLayout.setProgress(ProgressLayout.DOWNLOAD_MINECRAFT, 0, R.string.newdl_starting);
 
         mTargetJarFile = createGameJarPath(versionName);
-        mScheduledDownloadTasks = new ArrayList<>();
+        mDownloadScheduler = new DownloadScheduler();
         mDownloadFileCounter = new AtomicLong(0);
         mDownloadSizeCounter = new AtomicLong(0);
         mDownloaderThreadException = new AtomicReference<>(null);
-
-        if(!downloadAndProcessMetadata(activity, verInfo, versionName)) {
-            throw new RuntimeException(activity.getString(R.string.exception_failed_to_unpack_jre17));
+        mJournalEntries = new ArrayList<>();
+        mJournalMetadata = new ArrayList<>();
+
+        mInstallJournal = resumeFromJournal(activity, verInfo, versionName);
+        mFilesChanged = mInstallJournal != null;
+        if(mInstallJournal == null) {
+            if(!downloadAndProcessMetadata(activity, verInfo, versionName)) {
+                throw new RuntimeException(activity.getString(R.string.exception_failed_to_unpack_jre17));
+            }
+            mInstallJournal = createJournal(versionName);
         }
 
-        ArrayBlockingQueue<Runnable> taskQueue =
-                new ArrayBlockingQueue<>(mScheduledDownloadTasks.size(), false);
-        ThreadPoolExecutor downloaderPool =
-                new ThreadPoolExecutor(4, 4, 500, TimeUnit.MILLISECONDS, taskQueue);
+        DownloadConcurrencyController downloaderPool = DownloadConcurrencyController.createDefault(4);
+        mConcurrencyController = downloaderPool;
 
-        // I have tried pre-filling the queue directly instead of doing this, but it didn't work.
-        // What a shame.
-        for(DownloaderTask scheduledTask : mScheduledDownloadTasks) downloaderPool.execute(scheduledTask);
+        // The pool queue is FIFO, so submitting the tasks in the scheduler's order is enough
+        // to have the critical and large downloads start first.
+        for(DownloadScheduler.Task scheduledTask : mDownloadScheduler.getOrderedTasks()) downloaderPool.execute(scheduledTask);
         downloaderPool.shutdown();
 
+        long downloadStartTime = System.currentTimeMillis();
         try {
             while (mDownloaderThreadException.get() == null &&
                     !downloaderPool.awaitTermination(33, TimeUnit.MILLISECONDS)) {
                 long dlFileCounter = mDownloadFileCounter.get();
+                long dlSizeCounter = mDownloadSizeCounter.get();
                 int progress = (int)((dlFileCounter * 100L) / mDownloadFileCount);
+                long elapsedTime = System.currentTimeMillis() - downloadStartTime;
+                double bytesPerSecond = elapsedTime > 0 ? dlSizeCounter * 1000d / elapsedTime : 0;
+                long remainingSeconds = mDownloadScheduler.estimateRemainingSeconds(
+                        downloaderPool.getThreadLimit(), dlSizeCounter, bytesPerSecond, elapsedTime);
                 ProgressLayout.setProgress(ProgressLayout.DOWNLOAD_MINECRAFT, progress,
                         R.string.newdl_downloading_game_files, dlFileCounter,
-                        mDownloadFileCount, (double)mDownloadSizeCounter.get() / (1024d * 1024d));
+                        mDownloadFileCount, (double)dlSizeCounter / (1024d * 1024d),
+                        downloaderPool.getThreadLimit(), Math.max(0, remainingSeconds));
+                if(mInstallJournal != null) mInstallJournal.flush();
             }
             Exception thrownException = mDownloaderThreadException.get();
             if(thrownException != null) {
                 throw thrownException;
             } else {
                 ensureJarFileCopy();
+                // Everything is in place, the next install of this version checks all files again
+                if(mInstallJournal != null) mInstallJournal.close();
+                InstallJournal.delete(versionName);
+                // The launch plans may refer to a classpath without the new files
+                if(mFilesChanged) LaunchPlan.invalidateAll();
             }
         }catch (InterruptedException e) {
             // Interrupted while waiting, which means that the download was cancelled.
             // Kill all downloading threads immediately, and ignore any exceptions thrown by them
             downloaderPool.shutdownNow();
+        }finally {
+            FileVerificationIndex.getInstance().flush();
+            if(mInstallJournal != null) mInstallJournal.close();
+        }
+    }
+
+    /**
+     * Schedule the remaining downloads of an interrupted install of this version, if there was one.
+     * @param activity Activity, used for automatic installation of JRE 17 if needed
+     * @param verInfo The JMinecraftVersionList.Version from the version list, if available
+     * @param versionName The version ID (necessary)
+     * @return the install journal, or null if the install has to start from the metadata
+     * @throws IOException if a version JSON can't be read
+     */
+    private InstallJournal resumeFromJournal(Activity activity, JMinecraftVersionList.Version verInfo, String versionName) throws IOException {
+        InstallJournal journal = InstallJournal.load(versionName, LauncherPreferences.PREF_CHECK_LIBRARY_SHA);
+        if(journal == null) return null;
+        // The version may have been updated since the journal was written
+        if(verInfo != null && verInfo.sha1 != null && LauncherPreferences.PREF_VERIFY_MANIFEST
+                && !FileVerificationIndex.getInstance().isVerified(createGameJsonPath(verInfo.id), verInfo.sha1)) {
+            InstallJournal.delete(versionName);
+            return null;
+        }
+        // The version JSONs are small, the JRE checks still need to run on them
+        for(InstallJournal.MetadataFile metadataFile : journal.getMetadataFiles()) {
+            if(activity == null || !metadataFile.versionJson) continue;
+            JMinecraftVersionList.Version version = Tools.GLOBAL_GSON.fromJson(Tools.read(metadataFile.file),
+                    JMinecraftVersionList.Version.class);
+            if(!JRE17Util.installNewJreIfNeeded(activity, version)) {
+                throw new RuntimeException(activity.getString(R.string.exception_failed_to_unpack_jre17));
+            }
+        }
+        List<InstallJournal.Entry> entries = journal.getEntries();
+        mDownloadScheduler.ensureCapacity(entries.size());
+        for(int i = 0; i < entries.size(); i++) {
+            mDownloadFileCount++;
+            if(journal.isCompleted(i)) {
+                mDownloadFileCounter.incrementAndGet();
+                continue;
+            }
+            InstallJournal.Entry entry = entries.get(i);
+            FileUtils.ensureParentDirectory(entry.path);
+            mDownloadScheduler.add(new DownloaderTask(i, entry));
+        }
+        mSourceJarFile = journal.getSourceJarFile();
+        Log.i("NewMCDownloader", "Resuming the install of " + versionName + ": "
+                + mDownloadScheduler.size() + "/" + entries.size() + " tasks left");
+        return journal;
+    }
+
+    private InstallJournal createJournal(String versionName) {
+        try {
+            return InstallJournal.create(versionName, mJournalMetadata, mJournalEntries,
+                    LauncherPreferences.PREF_CHECK_LIBRARY_SHA, mSourceJarFile);
+        }catch (IOException e) {
+            // Not fatal, the install just won't be resumable
+            Log.w("NewMCDownloader", "Failed to create the install journal", e);
+            return null;
         }
     }
 
@@ -151,11 +233,11 @@ public class MinecraftDownloader {
             return targetFile;
         FileUtils.ensureParentDirectory(targetFile);
         try {
-            DownloadUtils.ensureSha1(targetFile, LauncherPreferences.PREF_VERIFY_MANIFEST ? verInfo.sha1 : null, () -> {
+            DownloadUtils.ensureSha1(targetFile, LauncherPreferences.PREF_VERIFY_MANIFEST ? verInfo.sha1 : null, (String sha1) -> {
                 ProgressLayout.setProgress(ProgressLayout.DOWNLOAD_MINECRAFT, 0,
                         R.string.newdl_downloading_metadata, targetFile.getName());
-                DownloadMirror.downloadFileMirrored(DownloadMirror.DOWNLOAD_CLASS_METADATA, verInfo.url, targetFile);
-                return null;
+                DownloadMirror.downloadFileMirrored(DownloadMirror.DOWNLOAD_CLASS_METADATA, verInfo.url, targetFile,
+                        null, null, sha1);
             });
         }catch (DownloadUtils.SHA1VerificationException e) {
             if(DownloadMirror.isMirrored()) throw new MirrorTamperedException();
@@ -164,18 +246,19 @@ public class MinecraftDownloader {
         return targetFile;
     }
 
-    private JAssets downloadAssetsIndex(JMinecraftVersionList.Version verInfo) throws IOException{
+    private JAssetIndex downloadAssetsIndex(JMinecraftVersionList.Version verInfo) throws IOException{
         JMinecraftVersionList.AssetIndex assetIndex = verInfo.assetIndex;
         if(assetIndex == null || verInfo.assets == null) return null;
         File targetFile = new File(Tools.ASSETS_PATH, "indexes"+ File.separator + verInfo.assets + ".json");
         FileUtils.ensureParentDirectory(targetFile);
-        DownloadUtils.ensureSha1(targetFile, assetIndex.sha1, ()-> {
+        DownloadUtils.ensureSha1(targetFile, assetIndex.sha1, (String sha1)-> {
             ProgressLayout.setProgress(ProgressLayout.DOWNLOAD_MINECRAFT, 0,
                     R.string.newdl_downloading_metadata, targetFile.getName());
-            DownloadMirror.downloadFileMirrored(DownloadMirror.DOWNLOAD_CLASS_METADATA, assetIndex.url, targetFile);
-            return null;
+            DownloadMirror.downloadFileMirrored(DownloadMirror.DOWNLOAD_CLASS_METADATA, assetIndex.url, targetFile,
+                    null, null, sha1);
         });
-        return Tools.GLOBAL_GSON.fromJson(Tools.read(targetFile), JAssets.class);
+        mJournalMetadata.add(new InstallJournal.MetadataFile(targetFile, false));
+        return JAssetIndex.parse(targetFile);
     }
     
     private MinecraftClientInfo getClientInfo(JMinecraftVersionList.Version verInfo) {
@@ -202,12 +285,13 @@ public class MinecraftDownloader {
         } else {
             throw new IOException("Unable to read Version JSON for version " + versionName);
         }
+        mJournalMetadata.add(new InstallJournal.MetadataFile(versionJsonFile, true));
 
         if(activity != null && !JRE17Util.installNewJreIfNeeded(activity, verInfo)){
             return false;
         }
 
-        JAssets assets = downloadAssetsIndex(verInfo);
+        JAssetIndex assets = downloadAssetsIndex(verInfo);
         if(assets != null) scheduleAssetDownloads(assets);
 
 
@@ -227,16 +311,17 @@ public class MinecraftDownloader {
     }
 
     private void growDownloadList(int addedElementCount) {
-        mScheduledDownloadTasks.ensureCapacity(mScheduledDownloadTasks.size() + addedElementCount);
+        mDownloadScheduler.ensureCapacity(mDownloadScheduler.size() + addedElementCount);
     }
 
-    private void scheduleDownload(File targetFile, int downloadClass, String url, String sha1,
+    private void scheduleDownload(File targetFile, int downloadClass, int priority, String url, String sha1,
                                   long size, boolean skipIfFailed) throws IOException {
         FileUtils.ensureParentDirectory(targetFile);
         mDownloadFileCount++;
-        mScheduledDownloadTasks.add(
-                new DownloaderTask(targetFile, downloadClass, url, sha1, size, skipIfFailed)
-        );
+        InstallJournal.Entry entry = new InstallJournal.Entry(targetFile, downloadClass, priority, url, sha1,
+                size, skipIfFailed);
+        mJournalEntries.add(entry);
+        mDownloadScheduler.add(new DownloaderTask(mJournalEntries.size() - 1, entry));
     }
 
     private void scheduleLibraryDownloads(DependentLibrary[] dependentLibraries) throws IOException {
@@ -272,33 +357,47 @@ public class MinecraftDownloader {
             if(!LauncherPreferences.PREF_CHECK_LIBRARY_SHA) sha1 = null;
             scheduleDownload(new File(Tools.DIR_HOME_LIBRARY, libArtifactPath),
                     DownloadMirror.DOWNLOAD_CLASS_LIBRARIES,
+                    DownloadScheduler.PRIORITY_LIBRARY,
                     url, sha1, size, skipIfFailed
             );
         }
     }
     
-    private void scheduleAssetDownloads(JAssets assets) throws IOException {
-        Map<String, JAssetInfo> assetObjects = assets.objects;
-        if(assetObjects == null) return;
-        Set<String> assetNames = assetObjects.keySet();
-        growDownloadList(assetNames.size());
-        for(String asset : assetNames) {
-            JAssetInfo assetInfo = assetObjects.get(asset);
-            if(assetInfo == null) continue;
+    private void scheduleAssetDownloads(JAssetIndex assets) throws IOException {
+        int assetCount = assets.getCount();
+        growDownloadList(assetCount);
+        FileVerificationIndex verificationIndex = FileVerificationIndex.getInstance();
+        byte[] assetHashes = assets.getHashArray();
+        String basePath = assets.mapToResources ? Tools.OBSOLETE_RESOURCES_PATH : Tools.ASSETS_PATH;
+        for(int i = 0; i < assetCount; i++) {
             File targetFile;
-            String hashedPath = assetInfo.hash.substring(0, 2) + File.separator + assetInfo.hash;
-            String basePath = assets.mapToResources ? Tools.OBSOLETE_RESOURCES_PATH : Tools.ASSETS_PATH;
+            String hash = null, hashedPath = null;
             if(assets.virtual || assets.mapToResources) {
-                targetFile = new File(basePath, asset);
+                targetFile = new File(basePath, assets.getName(i));
             } else {
+                hash = assets.getHash(i);
+                hashedPath = hash.substring(0, 2) + File.separator + hash;
                 targetFile = new File(basePath, "objects" + File.separator + hashedPath);
             }
-            String sha1 = LauncherPreferences.PREF_CHECK_LIBRARY_SHA ? assetInfo.hash : null;
+            // Most assets are usually there already. Compare with the raw hash bytes, so that
+            // these don't need any strings, journal entry or task.
+            if(LauncherPreferences.PREF_CHECK_LIBRARY_SHA
+                    && verificationIndex.isVerified(targetFile, assetHashes, assets.getHashOffset(i))) {
+                mDownloadFileCount++;
+                mDownloadFileCounter.incrementAndGet();
+                continue;
+            }
+            if(hash == null) {
+                hash = assets.getHash(i);
+                hashedPath = hash.substring(0, 2) + File.separator + hash;
+            }
+            String sha1 = LauncherPreferences.PREF_CHECK_LIBRARY_SHA ? hash : null;
             scheduleDownload(targetFile,
                     DownloadMirror.DOWNLOAD_CLASS_ASSETS,
+                    DownloadScheduler.PRIORITY_ASSET,
                     MINECRAFT_RES + hashedPath,
                     sha1,
-                    assetInfo.size,
+                    assets.getSize(i),
                     false);
         }
     }
@@ -312,6 +411,7 @@ public class MinecraftDownloader {
         File destination = new File(Tools.DIR_GAME_NEW, loggingFileProperties.id);
         scheduleDownload(destination,
                 DownloadMirror.DOWNLOAD_CLASS_LIBRARIES,
+                DownloadScheduler.PRIORITY_CRITICAL,
                 loggingFileProperties.url,
                 loggingFileProperties.sha1,
                 loggingFileProperties.size,
@@ -325,6 +425,7 @@ public class MinecraftDownloader {
         growDownloadList(1);
         scheduleDownload(clientJar,
                 DownloadMirror.DOWNLOAD_CLASS_LIBRARIES,
+                DownloadScheduler.PRIORITY_CRITICAL,
                 minecraftClientInfo.url,
                 clientSha1,
                 minecraftClientInfo.size,
@@ -342,23 +443,26 @@ public class MinecraftDownloader {
         return tlb;
     }
 
-    private final class DownloaderTask implements Runnable, Tools.DownloaderFeedback {
+    private final class DownloaderTask implements DownloadScheduler.Task, Tools.DownloaderFeedback {
+        private final int mJournalIndex;
         private final File mTargetPath;
         private final String mTargetUrl;
         private String mTargetSha1;
         private final int mDownloadClass;
+        private final int mPriority;
         private final boolean mSkipIfFailed;
         private int mLastCurr;
         private final long mDownloadSize;
 
-        DownloaderTask(File targetPath, int downloadClass, String targetUrl, String targetSha1,
-                       long downloadSize, boolean skipIfFailed) {
-            this.mTargetPath = targetPath;
-            this.mTargetUrl = targetUrl;
-            this.mTargetSha1 = targetSha1;
-            this.mDownloadClass = downloadClass;
-            this.mDownloadSize = downloadSize;
-            this.mSkipIfFailed = skipIfFailed;
+        DownloaderTask(int journalIndex, InstallJournal.Entry entry) {
+            this.mJournalIndex = journalIndex;
+            this.mTargetPath = entry.path;
+            this.mTargetUrl = entry.url;
+            this.mTargetSha1 = entry.sha1;
+            this.mDownloadClass = entry.downloadClass;
+            this.mPriority = entry.priority;
+            this.mDownloadSize = entry.size;
+            this.mSkipIfFailed = entry.skipIfFailed;
         }
 
         @Override
@@ -382,7 +486,7 @@ public class MinecraftDownloader {
         }
         
         private void verifyFileSha1() throws Exception {
-            if(mTargetPath.isFile() && mTargetPath.canRead() && Tools.compareSHA1(mTargetPath, mTargetSha1)) {
+            if(mTargetPath.canRead() && FileVerificationIndex.getInstance().verify(mTargetPath, mTargetSha1)) {
                 finishWithoutDownloading();
             } else {
                 // Rely on the download function to throw an IOE in case if the file is not
@@ -393,11 +497,22 @@ public class MinecraftDownloader {
         
         private void downloadFile() throws Exception {
             try {
-                DownloadUtils.ensureSha1(mTargetPath, mTargetSha1, () -> {
-                    DownloadMirror.downloadFileMirrored(mDownloadClass, mTargetUrl, mTargetPath,
-                            getLocalBuffer(), this);
-                    return null;
+                DownloadUtils.ensureSha1(mTargetPath, mTargetSha1, (String sha1) -> {
+                    // Don't count the bytes of a previous failed attempt twice
+                    mDownloadSizeCounter.addAndGet(-mLastCurr);
+                    mLastCurr = 0;
+                    long startTime = System.nanoTime();
+                    try {
+                        DownloadMirror.downloadFileMirrored(mDownloadClass, mTargetUrl, mTargetPath,
+                                getLocalBuffer(), this, sha1, mDownloadSize);
+                    }catch (IOException e) {
+                        mConcurrencyController.recordFailure();
+                        throw e;
+                    }
+                    mConcurrencyController.recordSuccess(mLastCurr, System.nanoTime() - startTime);
+                    mFilesChanged = true;
                 });
+                markCompleted();
             }catch (Exception e) {
                 if(!mSkipIfFailed) throw e;
             }
@@ -405,10 +520,25 @@ public class MinecraftDownloader {
         }
 
         private void finishWithoutDownloading() {
+            markCompleted();
             mDownloadFileCounter.incrementAndGet();
             mDownloadSizeCounter.addAndGet(mDownloadSize);
         }
 
+        private void markCompleted() {
+            if(mInstallJournal != null) mInstallJournal.markCompleted(mJournalIndex);
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public long getSize() {
+            return mDownloadSize;
+        }
+
         @Override
         public void updateProgress(int curr, int max) {
            mDownloadSizeCounter.addAndGet(curr - mLastCurr);
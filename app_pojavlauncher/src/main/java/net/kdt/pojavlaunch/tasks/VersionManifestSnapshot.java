@@ -0,0 +1,133 @@
+package net.kdt.pojavlaunch.tasks;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.JMinecraftVersionList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local copy of the version manifest, in a compact binary form that loads a lot faster than the
+ * JSON, along with the validators the server sent for it, for revalidating it with a conditional
+ * request. Only the fields of the manifest entries that the launcher uses are kept.
+ * The modification time of the file is the last time the manifest was checked with the server.
+ */
+class VersionManifestSnapshot {
+    private static final String TAG = "VersionManifestSnapshot";
+    private static final int SNAPSHOT_MAGIC = 0x5056564D; // "PVVM"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    final JMinecraftVersionList versionList;
+    final @Nullable String etag;
+    final @Nullable String lastModified;
+
+    VersionManifestSnapshot(JMinecraftVersionList versionList, @Nullable String etag, @Nullable String lastModified) {
+        this.versionList = versionList;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Read a snapshot. Unreadable snapshots are deleted.
+     * @param snapshotFile the snapshot file
+     * @return the snapshot, or null if there is no usable one
+     */
+    static @Nullable VersionManifestSnapshot read(File snapshotFile) {
+        if(!snapshotFile.isFile()) return null;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if(inputStream.readInt() != SNAPSHOT_MAGIC || inputStream.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            String etag = readString(inputStream);
+            String lastModified = readString(inputStream);
+            JMinecraftVersionList versionList = new JMinecraftVersionList();
+            int latestCount = inputStream.readInt();
+            versionList.latest = new HashMap<>(latestCount);
+            for(int i = 0; i < latestCount; i++) {
+                versionList.latest.put(inputStream.readUTF(), readString(inputStream));
+            }
+            versionList.versions = new JMinecraftVersionList.Version[inputStream.readInt()];
+            for(int i = 0; i < versionList.versions.length; i++) {
+                String id = readString(inputStream);
+                String sha1 = readString(inputStream);
+                String url = readString(inputStream);
+                String releaseTime = readString(inputStream);
+                String time = readString(inputStream);
+                String type = readString(inputStream);
+                versionList.versions[i] = new JMinecraftVersionList.Version(id, sha1, url, null, null, null,
+                        null, null, null, null, null, null, null,
+                        0, releaseTime, time, type);
+            }
+            return new VersionManifestSnapshot(versionList, etag, lastModified);
+        }catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable version list snapshot", e);
+            //noinspection ResultOfMethodCallIgnored
+            snapshotFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Write the snapshot, replacing the previous one only once it is complete
+     * @param snapshotFile the snapshot file
+     * @throws IOException if the snapshot can't be written
+     */
+    void write(File snapshotFile) throws IOException {
+        File tempFile = new File(snapshotFile.getAbsolutePath() + ".tmp" + Thread.currentThread().getId());
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            outputStream.writeInt(SNAPSHOT_MAGIC);
+            outputStream.writeInt(SNAPSHOT_VERSION);
+            writeString(outputStream, etag);
+            writeString(outputStream, lastModified);
+            Map<String, String> latest = versionList.latest;
+            if(latest == null) {
+                outputStream.writeInt(0);
+            }else {
+                outputStream.writeInt(latest.size());
+                for(Map.Entry<String, String> latestEntry : latest.entrySet()) {
+                    outputStream.writeUTF(latestEntry.getKey());
+                    writeString(outputStream, latestEntry.getValue());
+                }
+            }
+            JMinecraftVersionList.Version[] versions = versionList.versions;
+            outputStream.writeInt(versions.length);
+            for(JMinecraftVersionList.Version version : versions) {
+                writeString(outputStream, version.id);
+                writeString(outputStream, version.sha1);
+                writeString(outputStream, version.url);
+                writeString(outputStream, version.releaseTime);
+                writeString(outputStream, version.time);
+                writeString(outputStream, version.type);
+            }
+        }catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        }
+        if(!tempFile.renameTo(snapshotFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Failed to replace the version list snapshot");
+        }
+    }
+
+    private static @Nullable String readString(DataInputStream inputStream) throws IOException {
+        return inputStream.readBoolean() ? inputStream.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream outputStream, @Nullable String string) throws IOException {
+        outputStream.writeBoolean(string != null);
+        if(string != null) outputStream.writeUTF(string);
+    }
+}
@@ -0,0 +1,220 @@
+package net.kdt.pojavlaunch.utils;
+
+import android.util.Log;
+
+import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A download thread pool that adapts its parallelism to the network it runs on.
+ * Download tasks report their transfers through recordSuccess()/recordFailure(). Once per
+ * sampling window, the controller compares the measured goodput with the previous window and
+ * climbs towards the best thread count (additive increase), while backing off quickly
+ * (multiplicative decrease) when errors show up.
+ */
+public class DownloadConcurrencyController {
+    public static final int MIN_DOWNLOAD_THREADS = 2;
+    private static final String TAG = "DownloadConcurrency";
+    /** Minimal duration of a sampling window */
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(750);
+    /** Maximal duration of a sampling window, even if only a few transfers finished during it */
+    private static final long MAX_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    /** The cost of a request expressed in bytes, so that tiny assets also count as useful work */
+    private static final long REQUEST_COST_BYTES = 32 * 1024;
+    private static final double ERROR_RATE_BACKOFF = 0.1;
+    private static final double SCORE_IMPROVED = 1.05;
+    private static final double SCORE_DEGRADED = 0.9;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMinThreads;
+    private final int mMaxThreads;
+    private volatile int mThreadLimit;
+
+    // Statistics of the current window, guarded by "this"
+    private long mWindowStart;
+    private long mWindowBytes;
+    private int mWindowCompletions;
+    private int mWindowFailures;
+    private long mWindowLatencyNanos;
+    // Results of the previous window
+    private double mPreviousScore = -1;
+    private double mPreviousLatency = -1;
+    private int mDirection = 1;
+    /** Reason of the last decision, for the log */
+    private String mLastDecision;
+
+    /**
+     * Create a new controller with its own thread pool.
+     * @param minThreads the lowest amount of parallel downloads
+     * @param maxThreads the highest amount of parallel downloads
+     * @param initialThreads the amount of parallel downloads to start with
+     */
+    public DownloadConcurrencyController(int minThreads, int maxThreads, int initialThreads) {
+        this(minThreads, maxThreads, initialThreads, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Create a new controller with its own thread pool.
+     * @param minThreads the lowest amount of parallel downloads
+     * @param maxThreads the highest amount of parallel downloads
+     * @param initialThreads the amount of parallel downloads to start with
+     * @param workQueue the unbounded queue holding the tasks waiting for a thread
+     */
+    public DownloadConcurrencyController(int minThreads, int maxThreads, int initialThreads, BlockingQueue<Runnable> workQueue) {
+        if(minThreads < 1 || maxThreads < minThreads) throw new IllegalArgumentException("Invalid thread bounds");
+        mMinThreads = minThreads;
+        mMaxThreads = maxThreads;
+        mThreadLimit = clamp(initialThreads);
+        // The queue must be unbounded for the core pool size to be the effective parallelism
+        mExecutor = new ThreadPoolExecutor(mThreadLimit, mThreadLimit, 500, TimeUnit.MILLISECONDS,
+                workQueue);
+        mWindowStart = System.nanoTime();
+    }
+
+    /**
+     * Create a new controller using the bounds set in the launcher preferences.
+     * @param initialThreads the amount of parallel downloads to start with
+     */
+    public static DownloadConcurrencyController createDefault(int initialThreads) {
+        int maxThreads = Math.max(MIN_DOWNLOAD_THREADS, LauncherPreferences.PREF_DOWNLOAD_MAX_THREADS);
+        return new DownloadConcurrencyController(MIN_DOWNLOAD_THREADS, maxThreads, initialThreads);
+    }
+
+    /**
+     * Create a new controller using the bounds set in the launcher preferences, which runs the
+     * waiting tasks in the DownloadScheduler order instead of the submission order. Use this when
+     * tasks keep getting submitted while the downloads are already running.
+     * @param initialThreads the amount of parallel downloads to start with
+     */
+    public static DownloadConcurrencyController createPrioritized(int initialThreads) {
+        int maxThreads = Math.max(MIN_DOWNLOAD_THREADS, LauncherPreferences.PREF_DOWNLOAD_MAX_THREADS);
+        return new DownloadConcurrencyController(MIN_DOWNLOAD_THREADS, maxThreads, initialThreads,
+                new PriorityBlockingQueue<>(64, DownloadScheduler.RUNNABLE_ORDER));
+    }
+
+    public void execute(Runnable runnable) {
+        mExecutor.execute(runnable);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return mExecutor.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /** @return the amount of downloads currently allowed to run in parallel */
+    public int getThreadLimit() {
+        return mThreadLimit;
+    }
+
+    /**
+     * Report a successful transfer.
+     * @param bytes the amount of bytes transferred
+     * @param latencyNanos the time the whole transfer took
+     */
+    public void recordSuccess(long bytes, long latencyNanos) {
+        synchronized (this) {
+            mWindowBytes += bytes;
+            mWindowCompletions++;
+            mWindowLatencyNanos += latencyNanos;
+        }
+        evaluateIfNeeded();
+    }
+
+    /** Report a failed transfer (connection error, bad status, hash mismatch...) */
+    public void recordFailure() {
+        synchronized (this) {
+            mWindowFailures++;
+        }
+        evaluateIfNeeded();
+    }
+
+    private void evaluateIfNeeded() {
+        int newLimit;
+        String decision;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long windowLength = now - mWindowStart;
+            int samples = mWindowCompletions + mWindowFailures;
+            if(windowLength < WINDOW_NANOS) return;
+            // Wait for enough samples to have a meaningful measurement, unless it takes too long
+            if(samples < mThreadLimit && windowLength < MAX_WINDOW_NANOS) return;
+            newLimit = decide(windowLength, samples);
+            decision = mLastDecision;
+            mWindowStart = now;
+            mWindowBytes = 0;
+            mWindowCompletions = 0;
+            mWindowFailures = 0;
+            mWindowLatencyNanos = 0;
+        }
+        applyLimit(newLimit, decision);
+    }
+
+    private int decide(long windowLength, int samples) {
+        int limit = mThreadLimit;
+        if(samples == 0) {
+            // Nothing finished for a long time: the transfers are huge or the network stalled
+            mLastDecision = "hold (no samples)";
+            return limit;
+        }
+        double errorRate = (double) mWindowFailures / samples;
+        double score = (mWindowBytes + mWindowCompletions * REQUEST_COST_BYTES) / (windowLength / 1e9);
+        double latency = mWindowCompletions == 0 ? -1 : (double) mWindowLatencyNanos / mWindowCompletions;
+        int newLimit;
+        if(errorRate > ERROR_RATE_BACKOFF) {
+            newLimit = limit / 2;
+            mDirection = 1;
+            mLastDecision = String.format(Locale.ROOT, "backoff (%.0f%% errors)", errorRate * 100);
+        } else if(mPreviousScore < 0 || score > mPreviousScore * SCORE_IMPROVED) {
+            // Either the first measurement or the last step helped: keep going
+            newLimit = limit + mDirection;
+            mLastDecision = mDirection > 0 ? "increase" : "decrease";
+        } else if(score < mPreviousScore * SCORE_DEGRADED
+                || (latency > 0 && mPreviousLatency > 0 && latency > mPreviousLatency * 2)) {
+            // The last step hurt: step back and explore the other way
+            mDirection = -mDirection;
+            newLimit = limit + mDirection;
+            mLastDecision = "reverse";
+        } else {
+            newLimit = limit;
+            mLastDecision = "hold";
+        }
+        Log.i(TAG, String.format(Locale.ROOT, "threads=%d score=%.0f B/s latency=%.1f ms errors=%.0f%% -> %s",
+                limit, score, latency / 1e6, errorRate * 100, mLastDecision));
+        mPreviousScore = score;
+        mPreviousLatency = latency;
+        return newLimit;
+    }
+
+    private synchronized void applyLimit(int newLimit, String decision) {
+        newLimit = clamp(newLimit);
+        if(newLimit == mThreadLimit || mExecutor.isShutdown() && mExecutor.isTerminated()) return;
+        Log.i(TAG, "Download threads " + mThreadLimit + " -> " + newLimit + ": " + decision);
+        // The core size must never be above the maximum size, so order the updates accordingly
+        if(newLimit > mThreadLimit) {
+            mExecutor.setMaximumPoolSize(newLimit);
+            mExecutor.setCorePoolSize(newLimit);
+        }else {
+            mExecutor.setCorePoolSize(newLimit);
+            mExecutor.setMaximumPoolSize(newLimit);
+        }
+        mThreadLimit = newLimit;
+    }
+
+    private int clamp(int threads) {
+        return Math.max(mMinThreads, Math.min(mMaxThreads, threads));
+    }
+}
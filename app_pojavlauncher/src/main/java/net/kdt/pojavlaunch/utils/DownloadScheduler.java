@@ -0,0 +1,117 @@
+package net.kdt.pojavlaunch.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders download tasks to minimize the total install time.
+ * Tasks are started by class first (critical artifacts, then libraries, then assets) and by
+ * decreasing size within a class. Starting the large files early keeps them from becoming the
+ * tail of the install, while the many small files fill the gaps between them at the end
+ * ("longest processing time first" scheduling).
+ */
+public class DownloadScheduler {
+    /** Files that the game can't start without and that are usually large (client JAR, logging config) */
+    public static final int PRIORITY_CRITICAL = 0;
+    public static final int PRIORITY_LIBRARY = 1;
+    public static final int PRIORITY_ASSET = 2;
+    /** The cost of a request expressed in bytes, used when estimating the critical path */
+    private static final long REQUEST_COST_BYTES = 32 * 1024;
+
+    public static final Comparator<Task> TASK_ORDER = (a, b) -> {
+        int priorityOrder = Integer.compare(a.getPriority(), b.getPriority());
+        if(priorityOrder != 0) return priorityOrder;
+        return Long.compare(b.getSize(), a.getSize());
+    };
+
+    /** The same order as TASK_ORDER, for executor queues. Tasks of other types go last. */
+    public static final Comparator<Runnable> RUNNABLE_ORDER = (a, b) -> {
+        boolean aScheduled = a instanceof Task, bScheduled = b instanceof Task;
+        if(aScheduled && bScheduled) return TASK_ORDER.compare((Task) a, (Task) b);
+        return Boolean.compare(bScheduled, aScheduled);
+    };
+
+    private final ArrayList<Task> mTasks = new ArrayList<>();
+    private long mTotalBytes;
+    private int mCachedLaneCount = -1;
+    private long mCachedCriticalPath;
+
+    public void add(Task task) {
+        mTasks.add(task);
+        mTotalBytes += Math.max(0, task.getSize());
+    }
+
+    public void ensureCapacity(int capacity) {
+        mTasks.ensureCapacity(capacity);
+    }
+
+    public int size() {
+        return mTasks.size();
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Sort the tasks in their execution order.
+     * @return the sorted task list, to be submitted in order into a FIFO executor
+     */
+    public synchronized List<Task> getOrderedTasks() {
+        Collections.sort(mTasks, TASK_ORDER);
+        mCachedLaneCount = -1;
+        return mTasks;
+    }
+
+    /**
+     * Estimate the critical path of the install: the amount of work (in bytes, including a fixed
+     * cost per request) on the busiest download lane when the ordered tasks are spread over the
+     * given amount of parallel lanes. No schedule can finish before this lane does.
+     * @param laneCount the amount of parallel downloads
+     * @return the amount of work on the busiest lane, in bytes
+     */
+    public synchronized long estimateCriticalPathBytes(int laneCount) {
+        if(laneCount == mCachedLaneCount) return mCachedCriticalPath;
+        PriorityQueue<long[]> lanes = new PriorityQueue<>(laneCount, (a, b) -> Long.compare(a[0], b[0]));
+        for(int i = 0; i < laneCount; i++) lanes.add(new long[]{0});
+        long criticalPath = 0;
+        for(Task task : mTasks) {
+            // The next task always goes on the lane that becomes free first
+            long[] lane = lanes.poll();
+            //noinspection ConstantConditions
+            lane[0] += Math.max(0, task.getSize()) + REQUEST_COST_BYTES;
+            criticalPath = Math.max(criticalPath, lane[0]);
+            lanes.add(lane);
+        }
+        mCachedLaneCount = laneCount;
+        mCachedCriticalPath = criticalPath;
+        return criticalPath;
+    }
+
+    /**
+     * Estimate the remaining install time.
+     * @param laneCount the current amount of parallel downloads
+     * @param bytesDone the amount of bytes downloaded (or verified) so far
+     * @param bytesPerSecond the measured aggregate download speed
+     * @param elapsedMillis the time elapsed since the downloads started
+     * @return the estimated remaining time in seconds, or -1 if it can't be estimated yet
+     */
+    public long estimateRemainingSeconds(int laneCount, long bytesDone, double bytesPerSecond, long elapsedMillis) {
+        if(bytesPerSecond <= 0 || laneCount <= 0) return -1;
+        double laneSpeed = bytesPerSecond / laneCount;
+        double criticalPathSeconds = estimateCriticalPathBytes(laneCount) / laneSpeed - elapsedMillis / 1000d;
+        double bandwidthSeconds = Math.max(0, mTotalBytes - bytesDone) / bytesPerSecond;
+        return Math.round(Math.max(0, Math.max(criticalPathSeconds, bandwidthSeconds)));
+    }
+
+    /** A download task that can be ordered by the scheduler */
+    public interface Task extends Runnable {
+        /** @return the task class, one of the PRIORITY_ constants */
+        int getPriority();
+        /** @return the expected size of the download, or 0 if unknown */
+        long getSize();
+    }
+}
@@ -7,44 +7,35 @@ import androidx.annotation.Nullable;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.*;
+import java.security.MessageDigest;
 import java.util.concurrent.Callable;
 
 import net.kdt.pojavlaunch.*;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.*;
 
 @SuppressWarnings("IOStreamConstructor")
 public class DownloadUtils {
-    public static final String USER_AGENT = Tools.APP_NAME;
+    public static final String USER_AGENT = HttpUtils.USER_AGENT;
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    private static final int RESUME_ATTEMPTS = 5;
 
     public static void download(String url, OutputStream os) throws IOException {
         download(new URL(url), os);
     }
 
     public static void download(URL url, OutputStream os) throws IOException {
-        InputStream is = null;
+        HttpURLConnection conn = HttpUtils.open(url);
         try {
-            // System.out.println("Connecting: " + url.toString());
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestProperty("User-Agent", USER_AGENT);
-            conn.setConnectTimeout(10000);
-            conn.setDoInput(true);
-            conn.connect();
-            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Server returned HTTP " + conn.getResponseCode()
-                        + ": " + conn.getResponseMessage());
+            HttpUtils.checkResponse(conn);
+            try (InputStream is = conn.getInputStream()) {
+                IOUtils.copy(is, os);
             }
-            is = conn.getInputStream();
-            IOUtils.copy(is, os);
         } catch (IOException e) {
+            conn.disconnect();
             throw new IOException("Unable to download from " + url, e);
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
@@ -63,26 +54,163 @@ public class DownloadUtils {
     }
 
     public static void downloadFileMonitored(String urlInput, File outputFile, @Nullable byte[] buffer,
-                                             Tools.DownloaderFeedback monitor) throws IOException {
+                                             @Nullable Tools.DownloaderFeedback monitor) throws IOException {
+        downloadFileMonitored(urlInput, outputFile, buffer, monitor, null);
+    }
+
+    /**
+     * Download a file, computing its SHA-1 hash while it is being written to the disk. The data is
+     * streamed into a ".part" file which is moved into place only after the hash was verified,
+     * so a failed or tampered download never replaces the output file.
+     * If the connection drops, the download is resumed with a Range request when the server
+     * supports it. The validator of large files is persisted, so that their download can also be
+     * resumed by a later call.
+     * Large files are downloaded over several connections at once when the server supports it,
+     * see SegmentedDownload.
+     * @param urlInput the URL to download from
+     * @param outputFile the destination file
+     * @param buffer the download buffer, or null to allocate a new one
+     * @param monitor the progress monitor, or null if not used
+     * @param sha1 the expected SHA-1 hash, or null to skip verification
+     * @throws SHA1VerificationException if the downloaded data does not match the hash
+     * @throws IOException if the download fails
+     */
+    public static void downloadFileMonitored(String urlInput, File outputFile, @Nullable byte[] buffer,
+                                             @Nullable Tools.DownloaderFeedback monitor, @Nullable String sha1) throws IOException {
         FileUtils.ensureParentDirectory(outputFile);
+        if (buffer == null) buffer = new byte[65535];
+        MessageDigest messageDigest = sha1 != null ? DigestUtils.getSha1Digest() : null;
+        PartialDownload partialDownload = new PartialDownload(outputFile, urlInput);
 
-        HttpURLConnection conn = (HttpURLConnection) new URL(urlInput).openConnection();
-        InputStream readStr = conn.getInputStream();
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            int current;
-            int overall = 0;
-            int length = conn.getContentLength();
+        long offset = partialDownload.loadResumableLength();
+        if (offset > 0 && messageDigest != null) {
+            try {
+                partialDownload.hashExistingPart(messageDigest, buffer, offset);
+            } catch (IOException e) {
+                partialDownload.discard();
+                messageDigest.reset();
+                offset = 0;
+            }
+        }
 
-            if (buffer == null) buffer = new byte[65535];
+        int attempt = 0;
+        while (true) {
+            try {
+                // A failed segmented download is retried as a single stream
+                offset = downloadPart(urlInput, partialDownload, offset, buffer, monitor, messageDigest, attempt == 0);
+                break;
+            } catch (ResumableException e) {
+                // Only retry right away if some data made it through, otherwise the server is
+                // probably unreachable and the caller should decide what to do
+                offset = e.resumeOffset;
+                if (!e.madeProgress || ++attempt >= RESUME_ATTEMPTS) throw e.getCause();
+                Log.i("DownloadUtils", "Resuming " + urlInput + " at " + offset, e.getCause());
+            }
+        }
 
-            while ((current = readStr.read(buffer)) != -1) {
-                overall += current;
-                fos.write(buffer, 0, current);
-                monitor.updateProgress(overall, length);
+        if (messageDigest != null) {
+            String actualSha1 = new String(Hex.encodeHex(messageDigest.digest()));
+            if (!actualSha1.equalsIgnoreCase(sha1)) {
+                partialDownload.discard();
+                throw new SHA1VerificationException("SHA1 mismatch for " + urlInput
+                        + ": expected " + sha1 + ", got " + actualSha1);
             }
-            conn.disconnect();
         }
+        moveIntoPlace(partialDownload.partFile, outputFile);
+        partialDownload.finish();
+        if (sha1 != null) FileVerificationIndex.getInstance().markVerified(outputFile, sha1);
+    }
+
+    /**
+     * Download the file (or its remainder) into the part file.
+     * @return the final length of the part file
+     * @throws ResumableException if the transfer got interrupted after a response was received
+     */
+    private static long downloadPart(String urlInput, PartialDownload partialDownload, long offset, byte[] buffer,
+                                     @Nullable Tools.DownloaderFeedback monitor,
+                                     @Nullable MessageDigest messageDigest, boolean allowSegments) throws IOException {
+        HttpURLConnection conn = HttpUtils.open(urlInput);
+        boolean completed = false;
+        try {
+            partialDownload.applyResumeHeaders(conn, offset);
+            int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // Either a fresh download, or the server ignored our range/the file changed
+                offset = 0;
+                if (messageDigest != null) messageDigest.reset();
+                partialDownload.saveValidator(conn, conn.getContentLength());
+                if (allowSegments && SegmentedDownload.isEligible(conn, partialDownload)) {
+                    // The connection now belongs to the segmented download
+                    completed = true;
+                    return downloadSegmented(urlInput, partialDownload, conn, buffer, monitor, messageDigest);
+                }
+            } else if (responseCode == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // Our part file is longer than what the server has, throw it away
+                partialDownload.discard();
+                if (messageDigest != null) messageDigest.reset();
+                throw new ResumableException(new IOException("Server rejected the resume range"), 0, true);
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                HttpUtils.checkResponse(conn);
+            }
 
+            long contentLength = conn.getContentLength();
+            int length = contentLength < 0 ? -1 : (int) (offset + contentLength);
+            long startOffset = offset;
+            try (InputStream readStr = conn.getInputStream();
+                 FileOutputStream fos = new FileOutputStream(partialDownload.partFile, offset > 0)) {
+                int current;
+                while ((current = readStr.read(buffer)) != -1) {
+                    fos.write(buffer, 0, current);
+                    offset += current;
+                    if (messageDigest != null) messageDigest.update(buffer, 0, current);
+                    if (monitor != null) monitor.updateProgress((int) offset, length);
+                }
+            } catch (IOException e) {
+                if (!partialDownload.hasValidator()) {
+                    // Without a validator we can't ever safely resume this
+                    partialDownload.discard();
+                    if (messageDigest != null) messageDigest.reset();
+                    throw new ResumableException(e, 0, false);
+                }
+                throw new ResumableException(e, offset, offset > startOffset);
+            }
+            if (contentLength >= 0 && offset - startOffset != contentLength) {
+                throw new ResumableException(new EOFException("Connection closed before the end of the file"),
+                        offset, offset > startOffset);
+            }
+            completed = true;
+            return offset;
+        } finally {
+            // Keep fully read connections alive for the next download
+            if (!completed) conn.disconnect();
+        }
+    }
+
+    private static long downloadSegmented(String urlInput, PartialDownload partialDownload, HttpURLConnection conn,
+                                          byte[] buffer, @Nullable Tools.DownloaderFeedback monitor,
+                                          @Nullable MessageDigest messageDigest) throws IOException {
+        long length = conn.getContentLength();
+        // A preallocated part file has holes in it, so it must never be resumed as-is
+        partialDownload.finish();
+        try {
+            new SegmentedDownload(urlInput, partialDownload, length).download(conn, monitor);
+        } catch (IOException e) {
+            partialDownload.discard();
+            // Don't retry if the download got cancelled
+            if (Thread.currentThread().isInterrupted()) throw e;
+            throw new ResumableException(e, 0, true);
+        }
+        // The ranges arrive out of order, so hash the file once it is complete
+        if (messageDigest != null) partialDownload.hashExistingPart(messageDigest, buffer, length);
+        return length;
+    }
+
+    private static void moveIntoPlace(File sourceFile, File targetFile) throws IOException {
+        if (sourceFile.renameTo(targetFile)) return;
+        // Some filesystems refuse to rename over an existing file
+        if (targetFile.delete() && sourceFile.renameTo(targetFile)) return;
+        sourceFile.delete();
+        throw new IOException("Failed to move " + sourceFile.getName() + " to " + targetFile.getAbsolutePath());
     }
 
     public static <T> T downloadStringCached(String url, String cacheName, ParseCallback<T> parseCallback) throws IOException, ParseException{
@@ -132,7 +260,7 @@ public class DownloadUtils {
     }
 
     private static boolean verifyFile(File file, String sha1) {
-        return file.exists() && Tools.compareSHA1(file, sha1);
+        return FileVerificationIndex.getInstance().verify(file, sha1);
     }
 
     public static <T> T ensureSha1(File outputFile, @Nullable String sha1, Callable<T> downloadFunction) throws IOException {
@@ -151,6 +279,42 @@ public class DownloadUtils {
         return result;
     }
 
+    /**
+     * Same as ensureSha1(File, String, Callable), but for download functions that verify the hash
+     * while downloading (see downloadFileMonitored()). The downloaded file is never read again:
+     * a mismatch is reported by the download function itself, and only causes a new attempt.
+     * @param outputFile the destination file
+     * @param sha1 the expected SHA-1 hash, or null to skip verification
+     * @param downloadFunction the function performing the verified download
+     * @throws SHA1VerificationException if all download attempts failed verification
+     * @throws IOException if the download fails
+     */
+    public static void ensureSha1(File outputFile, @Nullable String sha1, VerifyingDownloadFunction downloadFunction) throws IOException {
+        if(sha1 == null) {
+            downloadFunction.download(null);
+            return;
+        }
+        if(verifyFile(outputFile, sha1)) return;
+        for(int attempts = 0; attempts < 5; attempts++) {
+            try {
+                downloadFunction.download(sha1);
+                return;
+            }catch (SHA1VerificationException e) {
+                Log.w("DownloadUtils", "Download attempt "+(attempts + 1)+" failed verification", e);
+            }
+        }
+        throw new SHA1VerificationException("SHA1 verifcation failed after 5 download attempts");
+    }
+
+    public interface VerifyingDownloadFunction {
+        /**
+         * Download the file, verifying it against the hash while downloading.
+         * @param sha1 the expected SHA-1 hash, or null if the file should not be verified
+         * @throws SHA1VerificationException if the downloaded file doesn't match the hash
+         */
+        void download(@Nullable String sha1) throws IOException;
+    }
+
     public interface ParseCallback<T> {
         T process(String input) throws ParseException;
     }
@@ -160,6 +324,23 @@ public class DownloadUtils {
         }
     }
 
+    /** Wrapper telling the download loop how far an interrupted transfer went */
+    private static class ResumableException extends IOException {
+        final long resumeOffset;
+        final boolean madeProgress;
+
+        ResumableException(IOException cause, long resumeOffset, boolean madeProgress) {
+            super(cause);
+            this.resumeOffset = resumeOffset;
+            this.madeProgress = madeProgress;
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
     public static class SHA1VerificationException extends IOException {
         public SHA1VerificationException(String message) {
             super(message);
@@ -0,0 +1,332 @@
+package net.kdt.pojavlaunch.utils;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.Tools;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of the files that were already verified against their SHA-1 hash.
+ * A file is only hashed again when its size or modification time differ from the ones
+ * recorded during the last successful verification.
+ * The index is stored as an append-only journal where every record carries its own checksum,
+ * so a record torn by a crash is simply dropped (and the file gets hashed again) on the next load.
+ */
+public class FileVerificationIndex {
+    private static final String TAG = "FileVerificationIndex";
+    private static final int INDEX_MAGIC = 0x50564958; // "PVIX"
+    private static final int INDEX_VERSION = 1;
+    private static final int SHA1_LENGTH = 20;
+    private static FileVerificationIndex sInstance;
+
+    private final File mIndexFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private DataOutputStream mJournalStream;
+    private int mJournalRecordCount;
+
+    /**
+     * Get the launcher-wide verification index, loading it from disk if necessary.
+     * @return the shared index instance
+     */
+    public static synchronized FileVerificationIndex getInstance() {
+        if(sInstance == null) {
+            sInstance = new FileVerificationIndex(new File(Tools.DIR_DATA, "verification_index.bin"));
+        }
+        return sInstance;
+    }
+
+    private FileVerificationIndex(File indexFile) {
+        mIndexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Check whether a file matches a SHA-1 hash. The file is read only if the index does not
+     * have an up-to-date record for it.
+     * @param file the file to check
+     * @param sha1 the expected SHA-1 hash, as a hex string
+     * @return true if the file exists and matches the hash
+     */
+    public boolean verify(File file, String sha1) {
+        if(!file.isFile()) return false;
+        if(isVerified(file, sha1)) return true;
+        String actualSha1;
+        try {
+            actualSha1 = computeSha1(file);
+        }catch (IOException e) {
+            // Same behaviour as Tools.compareSHA1(), but don't store the fake match
+            Log.i(TAG, "Fake-matching a hash due to a read error", e);
+            return true;
+        }
+        if(!actualSha1.equalsIgnoreCase(sha1)) return false;
+        markVerified(file, actualSha1);
+        return true;
+    }
+
+    /**
+     * Check whether the index has an up-to-date record that says that the file matches the hash.
+     * This function never reads the file itself.
+     * @param file the file to check
+     * @param sha1 the expected SHA-1 hash, as a hex string
+     * @return true if the file was verified before and did not change since
+     */
+    public boolean isVerified(File file, String sha1) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(file.getAbsolutePath());
+        }
+        if(entry == null) return false;
+        return entry.matches(file.length(), file.lastModified(), sha1);
+    }
+
+    /**
+     * Same as isVerified(File, String), for a hash that is already decoded.
+     * @param file the file to check
+     * @param hashes the array that holds the expected SHA-1 hash
+     * @param offset the offset of the hash in the array
+     * @return true if the file was verified before and did not change since
+     */
+    public boolean isVerified(File file, byte[] hashes, int offset) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(file.getAbsolutePath());
+        }
+        if(entry == null) return false;
+        return entry.matches(file.length(), file.lastModified(), hashes, offset);
+    }
+
+    /**
+     * Record that a file has been verified. Must only be called after the content of the
+     * file has actually been checked against the hash.
+     * @param file the verified file
+     * @param sha1 the SHA-1 hash of the file, as a hex string
+     */
+    public void markVerified(File file, String sha1) {
+        byte[] hash = decodeSha1(sha1);
+        if(hash == null) return;
+        String path = file.getAbsolutePath();
+        Entry entry = new Entry(file.length(), file.lastModified(), hash);
+        synchronized (this) {
+            mEntries.put(path, entry);
+            appendRecord(path, entry);
+        }
+    }
+
+    /**
+     * Forget about a file, for example if it is about to be replaced.
+     * @param file the file to remove from the index
+     */
+    public synchronized void invalidate(File file) {
+        String path = file.getAbsolutePath();
+        if(mEntries.remove(path) == null) return;
+        // A record with an empty hash acts as a tombstone
+        appendRecord(path, new Entry(-1, -1, new byte[SHA1_LENGTH]));
+    }
+
+    /**
+     * Write all pending records to the disk. Records that were not flushed are lost if the
+     * launcher gets killed, which only means that these files will get hashed again.
+     */
+    public synchronized void flush() {
+        if(mJournalStream == null) return;
+        try {
+            mJournalStream.flush();
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to flush the verification index", e);
+            closeJournal();
+        }
+    }
+
+    private static String computeSha1(File file) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return new String(Hex.encodeHex(DigestUtils.sha1(inputStream)));
+        }
+    }
+
+    private static @Nullable byte[] decodeSha1(String sha1) {
+        if(sha1 == null || sha1.length() != SHA1_LENGTH * 2) return null;
+        try {
+            return Hex.decodeHex(sha1.toCharArray());
+        }catch (DecoderException e) {
+            return null;
+        }
+    }
+
+    private void load() {
+        boolean needsCompaction = false;
+        if(mIndexFile.isFile()) {
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+                if(inputStream.readInt() != INDEX_MAGIC || inputStream.readInt() != INDEX_VERSION) {
+                    throw new IOException("Unknown index format");
+                }
+                needsCompaction = !readRecords(inputStream);
+            }catch (IOException e) {
+                Log.w(TAG, "Failed to read the verification index, starting over", e);
+                mEntries.clear();
+                needsCompaction = true;
+            }
+        }
+        // Rewrite the journal if it was damaged or if it mostly contains outdated records
+        if(needsCompaction || mJournalRecordCount > mEntries.size() * 2 + 64) {
+            compact();
+        }
+    }
+
+    /**
+     * Read all records from the journal.
+     * @return false if the journal has a torn or corrupted tail, true otherwise
+     */
+    private boolean readRecords(DataInputStream inputStream) throws IOException {
+        CRC32 crc32 = new CRC32();
+        byte[] recordBuffer = new byte[0];
+        while(true) {
+            // A clean end of the journal can only happen right before the start of a record
+            int firstByte = inputStream.read();
+            if(firstByte == -1) return true;
+            int recordLength;
+            try {
+                recordLength = (firstByte << 24) | (inputStream.readUnsignedByte() << 16)
+                        | (inputStream.readUnsignedByte() << 8) | inputStream.readUnsignedByte();
+                if(recordLength <= 0 || recordLength > 65536) return false;
+                if(recordBuffer.length < recordLength) recordBuffer = new byte[recordLength];
+                inputStream.readFully(recordBuffer, 0, recordLength);
+                crc32.reset();
+                crc32.update(recordBuffer, 0, recordLength);
+                if((int) crc32.getValue() != inputStream.readInt()) return false;
+            }catch (EOFException e) {
+                return false;
+            }
+            DataInputStream recordStream = new DataInputStream(new ByteArrayInputStream(recordBuffer, 0, recordLength));
+            String path = recordStream.readUTF();
+            long size = recordStream.readLong();
+            long lastModified = recordStream.readLong();
+            byte[] hash = new byte[SHA1_LENGTH];
+            recordStream.readFully(hash);
+            mJournalRecordCount++;
+            if(size < 0) mEntries.remove(path);
+            else mEntries.put(path, new Entry(size, lastModified, hash));
+        }
+    }
+
+    /** Rewrite the whole journal with only the live records, then atomically replace the old one */
+    private void compact() {
+        closeJournal();
+        File tempFile = new File(mIndexFile.getAbsolutePath() + ".tmp");
+        if(!FileUtils.ensureParentDirectorySilently(tempFile)) return;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(INDEX_MAGIC);
+            outputStream.writeInt(INDEX_VERSION);
+            for(Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                writeRecord(outputStream, mapEntry.getKey(), mapEntry.getValue());
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to compact the verification index", e);
+            tempFile.delete();
+            return;
+        }
+        if(!tempFile.renameTo(mIndexFile)) {
+            Log.w(TAG, "Failed to replace the verification index");
+            tempFile.delete();
+            return;
+        }
+        mJournalRecordCount = mEntries.size();
+    }
+
+    private void appendRecord(String path, Entry entry) {
+        try {
+            if(mJournalStream == null) openJournal();
+            writeRecord(mJournalStream, path, entry);
+            mJournalRecordCount++;
+        }catch (IOException e) {
+            // The in-memory index still works, we just lose persistence for this session
+            Log.w(TAG, "Failed to append to the verification index", e);
+            closeJournal();
+        }
+    }
+
+    private void openJournal() throws IOException {
+        boolean newFile = !mIndexFile.exists();
+        FileUtils.ensureParentDirectory(mIndexFile);
+        mJournalStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mIndexFile, true)));
+        if(newFile) {
+            mJournalStream.writeInt(INDEX_MAGIC);
+            mJournalStream.writeInt(INDEX_VERSION);
+        }
+    }
+
+    private void closeJournal() {
+        if(mJournalStream == null) return;
+        try {
+            mJournalStream.close();
+        }catch (IOException e) {
+            Log.w(TAG, "Failed to close the verification index", e);
+        }
+        mJournalStream = null;
+    }
+
+    private static void writeRecord(DataOutputStream outputStream, String path, Entry entry) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(path.length() + 64);
+        DataOutputStream recordStream = new DataOutputStream(recordBytes);
+        recordStream.writeUTF(path);
+        recordStream.writeLong(entry.size);
+        recordStream.writeLong(entry.lastModified);
+        recordStream.write(entry.sha1);
+        byte[] record = recordBytes.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(record);
+        outputStream.writeInt(record.length);
+        outputStream.write(record);
+        outputStream.writeInt((int) crc32.getValue());
+    }
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final byte[] sha1;
+
+        Entry(long size, long lastModified, byte[] sha1) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+
+        boolean matches(long size, long lastModified, String sha1) {
+            if(this.size != size || this.lastModified != lastModified) return false;
+            byte[] expectedHash = decodeSha1(sha1);
+            return expectedHash != null && Arrays.equals(this.sha1, expectedHash);
+        }
+
+        boolean matches(long size, long lastModified, byte[] hashes, int offset) {
+            if(this.size != size || this.lastModified != lastModified) return false;
+            for(int i = 0; i < SHA1_LENGTH; i++) {
+                if(this.sha1[i] != hashes[offset + i]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package net.kdt.pojavlaunch.utils;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.BuildConfig;
+import net.kdt.pojavlaunch.Tools;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The single entry point for all the HTTP connections made by the launcher.
+ * Every connection gets the same User-Agent and timeouts, and goes through the platform
+ * keep-alive pool, so requests to the same host reuse the same TLS connection.
+ * For a connection to go back into the pool its response body must be read until the end
+ * and closed; use release() when a body is not needed, and only call disconnect() on failures.
+ */
+public class HttpUtils {
+    public static final String USER_AGENT = Tools.APP_NAME + "/" + BuildConfig.VERSION_NAME;
+    public static final int CONNECT_TIMEOUT = 10000;
+    public static final int READ_TIMEOUT = 30000;
+    /** Idle connections kept alive per host. The default of 5 is too low for our download pools. */
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+
+    /**
+     * Size the platform keep-alive pool. The properties are only read when the pool gets created,
+     * so this must run before the first connection of the process is made.
+     */
+    public static void configureConnectionPool() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+    }
+
+    /**
+     * Open a connection with the launcher-wide settings.
+     * @param url the URL to connect to
+     * @return the configured, not yet connected, connection
+     * @throws IOException if the URL is invalid or not a HTTP(S) URL
+     */
+    public static HttpURLConnection open(String url) throws IOException {
+        return open(new URL(url));
+    }
+
+    /**
+     * Open a connection with the launcher-wide settings.
+     * @param url the URL to connect to
+     * @return the configured, not yet connected, connection
+     * @throws IOException if the URL is not a HTTP(S) URL
+     */
+    public static HttpURLConnection open(URL url) throws IOException {
+        URLConnection urlConnection = url.openConnection();
+        if(!(urlConnection instanceof HttpURLConnection)) throw new IOException("Not a HTTP URL: "+url);
+        HttpURLConnection connection = (HttpURLConnection) urlConnection;
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setInstanceFollowRedirects(true);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /**
+     * Open a connection for a JSON API endpoint. The response may be gzip-compressed, so
+     * it must be read through getInputStream() or readString().
+     * @param url the URL of the endpoint
+     * @param headers additional headers, or null
+     * @return the configured, not yet connected, connection
+     * @throws IOException if the URL is invalid or not a HTTP(S) URL
+     */
+    public static HttpURLConnection openJson(String url, @Nullable Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = open(url);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                if(header.getValue() == null) continue;
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Check that the connection got a successful (2xx) response.
+     * @param connection the connection to check
+     * @throws IOException if the server returned an error. The connection is released.
+     */
+    public static void checkResponse(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        if(responseCode >= 200 && responseCode < 300) return;
+        String message = connection.getResponseMessage();
+        release(connection);
+        throw new HttpException(responseCode, "Server returned HTTP " + responseCode + ": " + message
+                + " (" + connection.getURL() + ")");
+    }
+
+    /**
+     * Get the response body of a connection, transparently decoding gzip.
+     * @param connection the connection
+     * @return the body stream
+     * @throws IOException if the connection fails
+     */
+    public static InputStream getInputStream(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getInputStream();
+        if("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            return new GZIPInputStream(inputStream);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Read the whole response body as an UTF-8 string, failing on non-2xx responses.
+     * The connection goes back into the keep-alive pool afterwards.
+     * @param connection the connection
+     * @return the response body
+     * @throws IOException if the request or the read fails
+     */
+    public static String readString(HttpURLConnection connection) throws IOException {
+        checkResponse(connection);
+        try (InputStream inputStream = getInputStream(connection)) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Consume and close whatever is left of the response, so that the underlying connection
+     * can be reused for the next request.
+     * @param connection the connection to release
+     */
+    public static void release(HttpURLConnection connection) {
+        try {
+            InputStream stream = connection.getResponseCode() >= 400
+                    ? connection.getErrorStream()
+                    : connection.getInputStream();
+            if(stream != null) {
+                byte[] skipBuffer = new byte[4096];
+                //noinspection StatementWithEmptyBody
+                while(stream.read(skipBuffer) != -1);
+                stream.close();
+            }
+        }catch (IOException e) {
+            // Can't be reused, just drop it
+            connection.disconnect();
+        }
+    }
+
+    /** Thrown when a server returns a non-successful status code */
+    public static class HttpException extends IOException {
+        public final int responseCode;
+
+        public HttpException(int responseCode, String message) {
+            super(message);
+            this.responseCode = responseCode;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.kdt.pojavlaunch.utils;
+
+import static net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory.nextBoolean;
+import static net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory.nextInt;
+import static net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory.nextString;
+import static net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory.readList;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.kdt.pojavlaunch.customcontrols.ControlData;
+import net.kdt.pojavlaunch.customcontrols.ControlDrawerData;
+import net.kdt.pojavlaunch.customcontrols.ControlJoystickData;
+import net.kdt.pojavlaunch.customcontrols.CustomControls;
+import net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory.ReadingAdapter;
+import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftAuthenticationDatabase;
+import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftLauncherProfiles;
+import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftLauncherSettings;
+import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftProfile;
+import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftResolution;
+import net.kdt.pojavlaunch.value.launcherprofiles.MinecraftSelectedUser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming adapters for the files the launcher keeps for itself: the launcher profiles and the
+ * control layouts. They work like the ones of {@link MetadataTypeAdapterFactory}, but these models
+ * depend on Android classes, so they are kept apart from the plain metadata models.
+ */
+public class LauncherDataTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        TypeAdapter<?> adapter;
+        if(rawType == MinecraftLauncherProfiles.class) {
+            adapter = new LauncherProfilesAdapter(gson, (TypeAdapter<MinecraftLauncherProfiles>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == MinecraftProfile.class) {
+            adapter = new ProfileAdapter(gson, (TypeAdapter<MinecraftProfile>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == CustomControls.class) {
+            adapter = new CustomControlsAdapter(gson, (TypeAdapter<CustomControls>) gson.getDelegateAdapter(this, type));
+        }else {
+            return null;
+        }
+        return (TypeAdapter<T>) adapter;
+    }
+
+    private static class LauncherProfilesAdapter extends ReadingAdapter<MinecraftLauncherProfiles> {
+        private final TypeAdapter<MinecraftProfile> mProfileAdapter;
+        private final TypeAdapter<Map<String, MinecraftAuthenticationDatabase>> mAuthenticationAdapter;
+        private final TypeAdapter<MinecraftLauncherSettings> mSettingsAdapter;
+        private final TypeAdapter<MinecraftSelectedUser> mSelectedUserAdapter;
+
+        LauncherProfilesAdapter(Gson gson, TypeAdapter<MinecraftLauncherProfiles> writeDelegate) {
+            super(writeDelegate);
+            mProfileAdapter = gson.getAdapter(MinecraftProfile.class);
+            mAuthenticationAdapter = gson.getAdapter(new TypeToken<Map<String, MinecraftAuthenticationDatabase>>() {});
+            mSettingsAdapter = gson.getAdapter(MinecraftLauncherSettings.class);
+            mSelectedUserAdapter = gson.getAdapter(MinecraftSelectedUser.class);
+        }
+
+        @Override
+        MinecraftLauncherProfiles readObject(JsonReader in) throws IOException {
+            MinecraftLauncherProfiles launcherProfiles = new MinecraftLauncherProfiles();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "profiles": launcherProfiles.profiles = readProfiles(in); break;
+                    case "profilesWereMigrated": launcherProfiles.profilesWereMigrated = nextBoolean(in); break;
+                    case "clientToken": launcherProfiles.clientToken = nextString(in); break;
+                    case "authenticationDatabase": launcherProfiles.authenticationDatabase = mAuthenticationAdapter.read(in); break;
+                    case "settings": launcherProfiles.settings = mSettingsAdapter.read(in); break;
+                    case "analyticsFailcount": launcherProfiles.analyticsFailcount = nextInt(in); break;
+                    case "selectedUser": launcherProfiles.selectedUser = mSelectedUserAdapter.read(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return launcherProfiles;
+        }
+
+        /** The profiles keep the order of the file, like with the default map adapter */
+        private Map<String, MinecraftProfile> readProfiles(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Map<String, MinecraftProfile> profiles = new LinkedHashMap<>();
+            in.beginObject();
+            while(in.hasNext()) {
+                String key = in.nextName();
+                profiles.put(key, mProfileAdapter.read(in));
+            }
+            in.endObject();
+            return profiles;
+        }
+    }
+
+    private static class ProfileAdapter extends ReadingAdapter<MinecraftProfile> {
+        private final TypeAdapter<MinecraftResolution[]> mResolutionAdapter;
+
+        ProfileAdapter(Gson gson, TypeAdapter<MinecraftProfile> writeDelegate) {
+            super(writeDelegate);
+            mResolutionAdapter = gson.getAdapter(MinecraftResolution[].class);
+        }
+
+        @Override
+        MinecraftProfile readObject(JsonReader in) throws IOException {
+            MinecraftProfile profile = new MinecraftProfile();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name": profile.name = nextString(in); break;
+                    case "type": profile.type = nextString(in); break;
+                    case "created": profile.created = nextString(in); break;
+                    case "lastUsed": profile.lastUsed = nextString(in); break;
+                    case "icon": profile.icon = nextString(in); break;
+                    case "lastVersionId": profile.lastVersionId = nextString(in); break;
+                    case "gameDir": profile.gameDir = nextString(in); break;
+                    case "javaDir": profile.javaDir = nextString(in); break;
+                    case "javaArgs": profile.javaArgs = nextString(in); break;
+                    case "logConfig": profile.logConfig = nextString(in); break;
+                    case "logConfigIsXML": profile.logConfigIsXML = nextBoolean(in); break;
+                    case "pojavRendererName": profile.pojavRendererName = nextString(in); break;
+                    case "controlFile": profile.controlFile = nextString(in); break;
+                    case "resolution": profile.resolution = mResolutionAdapter.read(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return profile;
+        }
+    }
+
+    /** The buttons themselves have a lot of defaults set by their constructors, so they stay reflective */
+    private static class CustomControlsAdapter extends ReadingAdapter<CustomControls> {
+        private final TypeAdapter<ControlData> mControlAdapter;
+        private final TypeAdapter<ControlDrawerData> mDrawerAdapter;
+        private final TypeAdapter<ControlJoystickData> mJoystickAdapter;
+
+        CustomControlsAdapter(Gson gson, TypeAdapter<CustomControls> writeDelegate) {
+            super(writeDelegate);
+            mControlAdapter = gson.getAdapter(ControlData.class);
+            mDrawerAdapter = gson.getAdapter(ControlDrawerData.class);
+            mJoystickAdapter = gson.getAdapter(ControlJoystickData.class);
+        }
+
+        @Override
+        CustomControls readObject(JsonReader in) throws IOException {
+            List<ControlData> controls = null;
+            List<ControlDrawerData> drawers = null;
+            List<ControlJoystickData> joysticks = null;
+            Integer version = null;
+            Float scaledAt = null;
+            while(in.hasNext()) {
+                String name = in.nextName();
+                if(in.peek() == JsonToken.NULL) {
+                    // Keep the defaults of the layout, the lists must never be null
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "version": version = in.nextInt(); break;
+                    case "scaledAt": scaledAt = (float) in.nextDouble(); break;
+                    case "mControlDataList": controls = readList(in, mControlAdapter); break;
+                    case "mDrawerDataList": drawers = readList(in, mDrawerAdapter); break;
+                    case "mJoystickDataList": joysticks = readList(in, mJoystickAdapter); break;
+                    default: in.skipValue();
+                }
+            }
+            CustomControls layout = new CustomControls(
+                    controls != null ? controls : new ArrayList<>(),
+                    drawers != null ? drawers : new ArrayList<>(),
+                    joysticks != null ? joysticks : new ArrayList<>());
+            if(version != null) layout.version = version;
+            if(scaledAt != null) layout.scaledAt = scaledAt;
+            return layout;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package net.kdt.pojavlaunch.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import net.kdt.pojavlaunch.JMinecraftVersionList;
+import net.kdt.pojavlaunch.JMinecraftVersionList.Arguments.ArgValue.ArgRules;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.CurseManifest;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.ModrinthIndex;
+import net.kdt.pojavlaunch.modloaders.modpacks.models.ModrinthIndex.ModrinthIndexFile;
+import net.kdt.pojavlaunch.value.DependentLibrary;
+import net.kdt.pojavlaunch.value.MinecraftClientInfo;
+import net.kdt.pojavlaunch.value.MinecraftLibraryArtifact;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming adapters for the metadata models that get parsed the most: the version manifest, the
+ * version JSONs with their libraries and the modpack manifests. These are read field by field
+ * instead of going through reflection. The small nested objects that only appear once per file are
+ * still handled by the default adapters, and so is the writing, which the launcher never does on a
+ * hot path.
+ * This factory only depends on plain model classes, so that it can also be used outside of Android.
+ * The launcher's own files are handled by {@link LauncherDataTypeAdapterFactory}.
+ */
+public class MetadataTypeAdapterFactory implements TypeAdapterFactory {
+    static final TypeToken<Map<String, String>> STRING_MAP_TYPE = new TypeToken<Map<String, String>>() {};
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        TypeAdapter<?> adapter;
+        if(rawType == JMinecraftVersionList.class) {
+            adapter = new VersionListAdapter(gson, (TypeAdapter<JMinecraftVersionList>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == JMinecraftVersionList.Version.class) {
+            adapter = new VersionAdapter(gson, (TypeAdapter<JMinecraftVersionList.Version>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == DependentLibrary.class) {
+            adapter = new LibraryAdapter(gson, (TypeAdapter<DependentLibrary>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == MinecraftClientInfo.class) {
+            adapter = new ClientInfoAdapter((TypeAdapter<MinecraftClientInfo>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == CurseManifest.class) {
+            adapter = new CurseManifestAdapter(gson, (TypeAdapter<CurseManifest>) gson.getDelegateAdapter(this, type));
+        }else if(rawType == ModrinthIndex.class) {
+            adapter = new ModrinthIndexAdapter(gson, (TypeAdapter<ModrinthIndex>) gson.getDelegateAdapter(this, type));
+        }else {
+            return null;
+        }
+        return (TypeAdapter<T>) adapter;
+    }
+
+    static String nextString(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    static int nextInt(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+
+    static long nextLong(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextLong();
+    }
+
+    static boolean nextBoolean(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        return in.nextBoolean();
+    }
+
+    /** Read an array of objects with the given adapter, or null if the value is null */
+    static <E> List<E> readList(JsonReader in, TypeAdapter<E> elementAdapter) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<E> elements = new ArrayList<>();
+        in.beginArray();
+        while(in.hasNext()) elements.add(elementAdapter.read(in));
+        in.endArray();
+        return elements;
+    }
+
+    /** Base for the adapters that only read by hand, writing is left to the reflective adapter */
+    abstract static class ReadingAdapter<T> extends TypeAdapter<T> {
+        private final TypeAdapter<T> mWriteDelegate;
+
+        ReadingAdapter(TypeAdapter<T> writeDelegate) {
+            this.mWriteDelegate = writeDelegate;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            mWriteDelegate.write(out, value);
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            in.beginObject();
+            T value = readObject(in);
+            in.endObject();
+            return value;
+        }
+
+        /** Read the fields of the object, the reader is already inside of it */
+        abstract T readObject(JsonReader in) throws IOException;
+    }
+
+    private static class VersionListAdapter extends ReadingAdapter<JMinecraftVersionList> {
+        private final TypeAdapter<Map<String, String>> mLatestAdapter;
+        private final TypeAdapter<JMinecraftVersionList.Version> mVersionAdapter;
+
+        VersionListAdapter(Gson gson, TypeAdapter<JMinecraftVersionList> writeDelegate) {
+            super(writeDelegate);
+            mLatestAdapter = gson.getAdapter(STRING_MAP_TYPE);
+            mVersionAdapter = gson.getAdapter(JMinecraftVersionList.Version.class);
+        }
+
+        @Override
+        JMinecraftVersionList readObject(JsonReader in) throws IOException {
+            JMinecraftVersionList versionList = new JMinecraftVersionList();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "latest": versionList.latest = mLatestAdapter.read(in); break;
+                    case "versions":
+                        List<JMinecraftVersionList.Version> versions = readList(in, mVersionAdapter);
+                        if(versions != null) versionList.versions = versions.toArray(new JMinecraftVersionList.Version[0]);
+                        break;
+                    default: in.skipValue();
+                }
+            }
+            return versionList;
+        }
+    }
+
+    private static class VersionAdapter extends ReadingAdapter<JMinecraftVersionList.Version> {
+        private final TypeAdapter<JMinecraftVersionList.Arguments> mArgumentsAdapter;
+        private final TypeAdapter<JMinecraftVersionList.AssetIndex> mAssetIndexAdapter;
+        private final TypeAdapter<JMinecraftVersionList.JavaVersionInfo> mJavaVersionAdapter;
+        private final TypeAdapter<JMinecraftVersionList.LoggingConfig> mLoggingAdapter;
+        private final TypeAdapter<DependentLibrary> mLibraryAdapter;
+        private final TypeAdapter<MinecraftClientInfo> mClientInfoAdapter;
+
+        VersionAdapter(Gson gson, TypeAdapter<JMinecraftVersionList.Version> writeDelegate) {
+            super(writeDelegate);
+            mArgumentsAdapter = gson.getAdapter(JMinecraftVersionList.Arguments.class);
+            mAssetIndexAdapter = gson.getAdapter(JMinecraftVersionList.AssetIndex.class);
+            mJavaVersionAdapter = gson.getAdapter(JMinecraftVersionList.JavaVersionInfo.class);
+            mLoggingAdapter = gson.getAdapter(JMinecraftVersionList.LoggingConfig.class);
+            mLibraryAdapter = gson.getAdapter(DependentLibrary.class);
+            mClientInfoAdapter = gson.getAdapter(MinecraftClientInfo.class);
+        }
+
+        @Override
+        JMinecraftVersionList.Version readObject(JsonReader in) throws IOException {
+            String id = null, sha1 = null, url = null, assets = null, inheritsFrom = null, mainClass = null,
+                    minecraftArguments = null, releaseTime = null, time = null, type = null;
+            JMinecraftVersionList.Arguments arguments = null;
+            JMinecraftVersionList.AssetIndex assetIndex = null;
+            JMinecraftVersionList.JavaVersionInfo javaVersion = null;
+            JMinecraftVersionList.LoggingConfig logging = null;
+            Map<String, MinecraftClientInfo> downloads = null;
+            DependentLibrary[] libraries = null;
+            int minimumLauncherVersion = 0;
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": id = nextString(in); break;
+                    case "sha1": sha1 = nextString(in); break;
+                    case "url": url = nextString(in); break;
+                    case "arguments": arguments = mArgumentsAdapter.read(in); break;
+                    case "assetIndex": assetIndex = mAssetIndexAdapter.read(in); break;
+                    case "assets": assets = nextString(in); break;
+                    case "downloads": downloads = readDownloads(in); break;
+                    case "inheritsFrom": inheritsFrom = nextString(in); break;
+                    case "javaVersion": javaVersion = mJavaVersionAdapter.read(in); break;
+                    case "libraries":
+                        List<DependentLibrary> libraryList = readList(in, mLibraryAdapter);
+                        if(libraryList != null) libraries = libraryList.toArray(new DependentLibrary[0]);
+                        break;
+                    case "logging": logging = mLoggingAdapter.read(in); break;
+                    case "mainClass": mainClass = nextString(in); break;
+                    case "minecraftArguments": minecraftArguments = nextString(in); break;
+                    case "minimumLauncherVersion": minimumLauncherVersion = nextInt(in); break;
+                    case "releaseTime": releaseTime = nextString(in); break;
+                    case "time": time = nextString(in); break;
+                    case "type": type = nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return new JMinecraftVersionList.Version(id, sha1, url, arguments, assetIndex, assets, downloads,
+                    inheritsFrom, javaVersion, libraries, logging, mainClass, minecraftArguments,
+                    minimumLauncherVersion, releaseTime, time, type);
+        }
+
+        private Map<String, MinecraftClientInfo> readDownloads(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Map<String, MinecraftClientInfo> downloads = new HashMap<>();
+            in.beginObject();
+            while(in.hasNext()) {
+                String name = in.nextName();
+                downloads.put(name, mClientInfoAdapter.read(in));
+            }
+            in.endObject();
+            return downloads;
+        }
+    }
+
+    private static class LibraryAdapter extends ReadingAdapter<DependentLibrary> {
+        private final TypeAdapter<ArgRules> mRulesAdapter;
+
+        LibraryAdapter(Gson gson, TypeAdapter<DependentLibrary> writeDelegate) {
+            super(writeDelegate);
+            mRulesAdapter = gson.getAdapter(ArgRules.class);
+        }
+
+        @Override
+        DependentLibrary readObject(JsonReader in) throws IOException {
+            DependentLibrary library = new DependentLibrary();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name": library.name = nextString(in); break;
+                    case "url": library.url = nextString(in); break;
+                    case "downloads": library.downloads = readDownloads(in); break;
+                    case "rules":
+                        List<ArgRules> rules = readList(in, mRulesAdapter);
+                        if(rules != null) library.rules = rules.toArray(new ArgRules[0]);
+                        break;
+                    default: in.skipValue();
+                }
+            }
+            return library;
+        }
+
+        /** Only the main artifact is used, the classifiers are skipped */
+        private static DependentLibrary.LibraryDownloads readDownloads(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            MinecraftLibraryArtifact artifact = null;
+            in.beginObject();
+            while(in.hasNext()) {
+                if(in.nextName().equals("artifact") && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    artifact = new MinecraftLibraryArtifact();
+                    in.beginObject();
+                    while(in.hasNext()) {
+                        String name = in.nextName();
+                        if(name.equals("path")) artifact.path = nextString(in);
+                        else if(!readClientInfoField(in, name, artifact)) in.skipValue();
+                    }
+                    in.endObject();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new DependentLibrary.LibraryDownloads(artifact);
+        }
+    }
+
+    private static class ClientInfoAdapter extends ReadingAdapter<MinecraftClientInfo> {
+        ClientInfoAdapter(TypeAdapter<MinecraftClientInfo> writeDelegate) {
+            super(writeDelegate);
+        }
+
+        @Override
+        MinecraftClientInfo readObject(JsonReader in) throws IOException {
+            MinecraftClientInfo clientInfo = new MinecraftClientInfo();
+            while(in.hasNext()) {
+                if(!readClientInfoField(in, in.nextName(), clientInfo)) in.skipValue();
+            }
+            return clientInfo;
+        }
+    }
+
+    private static class CurseManifestAdapter extends ReadingAdapter<CurseManifest> {
+        private final TypeAdapter<CurseManifest.CurseMinecraft> mMinecraftAdapter;
+        private final TypeAdapter<CurseManifest.CurseFile> mFileAdapter;
+
+        CurseManifestAdapter(Gson gson, TypeAdapter<CurseManifest> writeDelegate) {
+            super(writeDelegate);
+            mMinecraftAdapter = gson.getAdapter(CurseManifest.CurseMinecraft.class);
+            mFileAdapter = new CurseFileAdapter(gson.getAdapter(CurseManifest.CurseFile.class));
+        }
+
+        @Override
+        CurseManifest readObject(JsonReader in) throws IOException {
+            CurseManifest manifest = new CurseManifest();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name": manifest.name = nextString(in); break;
+                    case "version": manifest.version = nextString(in); break;
+                    case "author": manifest.author = nextString(in); break;
+                    case "manifestType": manifest.manifestType = nextString(in); break;
+                    case "manifestVersion": manifest.manifestVersion = nextInt(in); break;
+                    case "files":
+                        List<CurseManifest.CurseFile> files = readList(in, mFileAdapter);
+                        if(files != null) manifest.files = files.toArray(new CurseManifest.CurseFile[0]);
+                        break;
+                    case "minecraft": manifest.minecraft = mMinecraftAdapter.read(in); break;
+                    case "overrides": manifest.overrides = nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return manifest;
+        }
+    }
+
+    private static class CurseFileAdapter extends ReadingAdapter<CurseManifest.CurseFile> {
+        CurseFileAdapter(TypeAdapter<CurseManifest.CurseFile> writeDelegate) {
+            super(writeDelegate);
+        }
+
+        @Override
+        CurseManifest.CurseFile readObject(JsonReader in) throws IOException {
+            CurseManifest.CurseFile file = new CurseManifest.CurseFile();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "projectID": file.projectID = nextLong(in); break;
+                    case "fileID": file.fileID = nextLong(in); break;
+                    case "required": file.required = nextBoolean(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return file;
+        }
+    }
+
+    private static class ModrinthIndexAdapter extends ReadingAdapter<ModrinthIndex> {
+        private final TypeAdapter<Map<String, String>> mDependenciesAdapter;
+        private final TypeAdapter<ModrinthIndexFile> mFileAdapter;
+
+        ModrinthIndexAdapter(Gson gson, TypeAdapter<ModrinthIndex> writeDelegate) {
+            super(writeDelegate);
+            mDependenciesAdapter = gson.getAdapter(STRING_MAP_TYPE);
+            mFileAdapter = new ModrinthFileAdapter(gson.getAdapter(ModrinthIndexFile.class));
+        }
+
+        @Override
+        ModrinthIndex readObject(JsonReader in) throws IOException {
+            String game = null, versionId = null, name = null, summary = null;
+            ModrinthIndexFile[] files = null;
+            Map<String, String> dependencies = null;
+            int formatVersion = 0;
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "format_version": formatVersion = nextInt(in); break;
+                    case "game": game = nextString(in); break;
+                    case "version_id": versionId = nextString(in); break;
+                    case "name": name = nextString(in); break;
+                    case "summary": summary = nextString(in); break;
+                    case "files":
+                        List<ModrinthIndexFile> fileList = readList(in, mFileAdapter);
+                        if(fileList != null) files = fileList.toArray(new ModrinthIndexFile[0]);
+                        break;
+                    case "dependencies": dependencies = mDependenciesAdapter.read(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return new ModrinthIndex(formatVersion, game, versionId, name, summary, files, dependencies);
+        }
+    }
+
+    private static class ModrinthFileAdapter extends ReadingAdapter<ModrinthIndexFile> {
+        ModrinthFileAdapter(TypeAdapter<ModrinthIndexFile> writeDelegate) {
+            super(writeDelegate);
+        }
+
+        @Override
+        ModrinthIndexFile readObject(JsonReader in) throws IOException {
+            String path = null;
+            String[] downloads = null;
+            ModrinthIndexFile.ModrinthIndexFileHashes hashes = null;
+            ModrinthIndexFile.ModrinthIndexFileEnv env = null;
+            int fileSize = 0;
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "path": path = nextString(in); break;
+                    case "downloads": downloads = readStringArray(in); break;
+                    case "file_size": fileSize = nextInt(in); break;
+                    case "hashes": hashes = readHashes(in); break;
+                    case "env": env = readEnv(in); break;
+                    default: in.skipValue();
+                }
+            }
+            return new ModrinthIndexFile(path, downloads, fileSize, hashes, env);
+        }
+
+        private static String[] readStringArray(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            List<String> strings = new ArrayList<>();
+            in.beginArray();
+            while(in.hasNext()) strings.add(nextString(in));
+            in.endArray();
+            return strings.toArray(new String[0]);
+        }
+
+        private static ModrinthIndexFile.ModrinthIndexFileHashes readHashes(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String sha1 = null, sha512 = null;
+            in.beginObject();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "sha1": sha1 = nextString(in); break;
+                    case "sha512": sha512 = nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new ModrinthIndexFile.ModrinthIndexFileHashes(sha1, sha512);
+        }
+
+        private static ModrinthIndexFile.ModrinthIndexFileEnv readEnv(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String client = null, server = null;
+            in.beginObject();
+            while(in.hasNext()) {
+                switch (in.nextName()) {
+                    case "client": client = nextString(in); break;
+                    case "server": server = nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new ModrinthIndexFile.ModrinthIndexFileEnv(client, server);
+        }
+    }
+
+    /** @return false if the field isn't one of MinecraftClientInfo, in which case it wasn't read */
+    private static boolean readClientInfoField(JsonReader in, String name, MinecraftClientInfo clientInfo) throws IOException {
+        switch (name) {
+            case "sha1": clientInfo.sha1 = nextString(in); return true;
+            case "size": clientInfo.size = nextInt(in); return true;
+            case "url": clientInfo.url = nextString(in); return true;
+            default: return false;
+        }
+    }
+}
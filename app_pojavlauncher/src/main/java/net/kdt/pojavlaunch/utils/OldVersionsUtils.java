@@ -4,8 +4,6 @@ import android.util.Log;
 
 import net.kdt.pojavlaunch.JMinecraftVersionList;
 import net.kdt.pojavlaunch.Tools;
-import net.kdt.pojavlaunch.extra.ExtraConstants;
-import net.kdt.pojavlaunch.extra.ExtraCore;
 
 import java.text.ParseException;
 import java.util.Date;
@@ -14,28 +12,27 @@ import java.util.Date;
 public class OldVersionsUtils {
     /** Lower minecraft versions fare better with opengl 1
      * @param version The version about to be launched
+     * @return the OpenGL version to expose to the game, for ExtraConstants.OPEN_GL_VERSION
      */
-    public static void selectOpenGlVersion(JMinecraftVersionList.Version version){
+    public static String getOpenGlVersion(JMinecraftVersionList.Version version){
         // 1309989600 is 2011-07-07  2011-07-07T22:00:00+00:00
         String creationTime = version.time;
         if(!Tools.isValidString(creationTime)){
-            ExtraCore.setValue(ExtraConstants.OPEN_GL_VERSION, "2");
-            return;
+            return "2";
         }
 
         try {
            Date creationDate = DateUtils.parseReleaseDate(creationTime);
             if(creationDate == null) {
                 Log.e("GL_SELECT", "Failed to parse version date");
-                ExtraCore.setValue(ExtraConstants.OPEN_GL_VERSION, "2");
-                return;
+                return "2";
             }
             String openGlVersion =  DateUtils.dateBefore(creationDate, 2011, 6, 8) ? "1" : "2";
             Log.i("GL_SELECT", openGlVersion);
-            ExtraCore.setValue(ExtraConstants.OPEN_GL_VERSION, openGlVersion);
+            return openGlVersion;
         }catch (ParseException exception){
             Log.e("GL_SELECT", exception.toString());
-            ExtraCore.setValue(ExtraConstants.OPEN_GL_VERSION, "2");
+            return "2";
         }
     }
 }
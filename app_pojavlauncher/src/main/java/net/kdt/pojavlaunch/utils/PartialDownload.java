@@ -0,0 +1,158 @@
+package net.kdt.pojavlaunch.utils;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * The on-disk state of an unfinished download: the ".part" file with the bytes received so far,
+ * and a ".part.meta" file storing the validator (ETag/Last-Modified) the server sent for it.
+ * The validator is what allows resuming the download with a Range request later, even after
+ * the launcher got restarted.
+ */
+class PartialDownload {
+    /** Files smaller than this are not worth persisting a validator for */
+    static final long RESUME_THRESHOLD = 1024 * 1024;
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    final File partFile;
+    private final File mMetaFile;
+    private final String mUrl;
+    private String mEtag;
+    private String mLastModified;
+
+    PartialDownload(File outputFile, String url) {
+        this.partFile = new File(outputFile.getAbsolutePath() + ".part");
+        this.mMetaFile = new File(outputFile.getAbsolutePath() + ".part.meta");
+        this.mUrl = url;
+    }
+
+    /**
+     * Load the validator of a previous attempt, and check if the existing part file can be
+     * resumed.
+     * @return the amount of bytes that can be kept, 0 if the download has to start over
+     */
+    long loadResumableLength() {
+        if(!partFile.isFile() || !mMetaFile.isFile()) {
+            discard();
+            return 0;
+        }
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(mMetaFile)) {
+            properties.load(inputStream);
+        }catch (IOException e) {
+            Log.w("PartialDownload", "Failed to read download metadata", e);
+            discard();
+            return 0;
+        }
+        if(!mUrl.equals(properties.getProperty(KEY_URL))) {
+            discard();
+            return 0;
+        }
+        mEtag = properties.getProperty(KEY_ETAG);
+        mLastModified = properties.getProperty(KEY_LAST_MODIFIED);
+        if(!hasValidator()) {
+            discard();
+            return 0;
+        }
+        return partFile.length();
+    }
+
+    boolean hasValidator() {
+        return mEtag != null || mLastModified != null;
+    }
+
+    /**
+     * Add the headers needed to resume the download from the given offset. Thanks to If-Range,
+     * the server sends the whole file again if it changed since the previous attempt.
+     */
+    void applyResumeHeaders(HttpURLConnection connection, long offset) {
+        if(offset <= 0 || !hasValidator()) return;
+        connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        connection.setRequestProperty("If-Range", mEtag != null ? mEtag : mLastModified);
+    }
+
+    /**
+     * Add the headers needed to request a single range of the file. Thanks to If-Range, the
+     * server sends the whole file instead of the range if it changed since the validator was saved.
+     * @param start the first byte of the range
+     * @param endInclusive the last byte of the range
+     */
+    void applyRangeHeaders(HttpURLConnection connection, long start, long endInclusive) {
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + endInclusive);
+        if(hasValidator()) connection.setRequestProperty("If-Range", mEtag != null ? mEtag : mLastModified);
+    }
+
+    /**
+     * Store the validator of a fresh response, so that the download can be resumed if it
+     * gets interrupted.
+     * @param connection the connection that got a full (200) response
+     * @param contentLength the size of the file, used to skip persisting state for small files
+     */
+    void saveValidator(HttpURLConnection connection, long contentLength) {
+        mEtag = sanitizeEtag(connection.getHeaderField("ETag"));
+        mLastModified = connection.getHeaderField("Last-Modified");
+        if(contentLength >= 0 && contentLength < RESUME_THRESHOLD) {
+            // Still keep the values in memory for in-process retries
+            mMetaFile.delete();
+            return;
+        }
+        if(!hasValidator()) return;
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, mUrl);
+        if(mEtag != null) properties.setProperty(KEY_ETAG, mEtag);
+        if(mLastModified != null) properties.setProperty(KEY_LAST_MODIFIED, mLastModified);
+        try (OutputStream outputStream = new FileOutputStream(mMetaFile)) {
+            properties.store(outputStream, null);
+        }catch (IOException e) {
+            Log.w("PartialDownload", "Failed to write download metadata", e);
+        }
+    }
+
+    /**
+     * Feed the bytes that were already downloaded into the digest, so that the hash covers the
+     * whole file once the download is resumed.
+     */
+    void hashExistingPart(MessageDigest messageDigest, byte[] buffer, long length) throws IOException {
+        try (InputStream inputStream = new FileInputStream(partFile)) {
+            long remaining = length;
+            int read;
+            while(remaining > 0 && (read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                messageDigest.update(buffer, 0, read);
+                remaining -= read;
+            }
+            if(remaining != 0) throw new IOException("Part file shrunk while being read");
+        }
+    }
+
+    /** Remove the metadata file, once the part file got moved into place */
+    void finish() {
+        mMetaFile.delete();
+    }
+
+    /** Remove all the state for this download */
+    void discard() {
+        partFile.delete();
+        mMetaFile.delete();
+        mEtag = null;
+        mLastModified = null;
+    }
+
+    private static @Nullable String sanitizeEtag(@Nullable String etag) {
+        // Weak validators can't be used with If-Range
+        if(etag == null || etag.startsWith("W/")) return null;
+        return etag;
+    }
+}
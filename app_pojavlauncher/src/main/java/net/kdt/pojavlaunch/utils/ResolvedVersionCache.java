@@ -0,0 +1,78 @@
+package net.kdt.pojavlaunch.utils;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.JMinecraftVersionList;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the versions resolved by Tools.getVersionInfo(), so that the JSON files of a version and
+ * of its parent are only parsed and merged again when one of them changes on the disk.
+ * The cached objects are handed to every caller, so they must be treated as read-only.
+ */
+public class ResolvedVersionCache {
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+
+    private ResolvedVersionCache() {}
+
+    /**
+     * Get a resolved version, if none of the files it was made from changed since.
+     * @param key the version ID, and the way it was resolved
+     * @return the resolved version, or null if it has to be resolved again
+     */
+    public static @Nullable JMinecraftVersionList.Version get(String key) {
+        Entry entry;
+        synchronized (sEntries) {
+            entry = sEntries.get(key);
+        }
+        if(entry == null) return null;
+        for(SourceFile sourceFile : entry.sourceFiles) {
+            if(sourceFile.hasChanged()) return null;
+        }
+        return entry.version;
+    }
+
+    /**
+     * Store a resolved version
+     * @param key the version ID, and the way it was resolved
+     * @param version the resolved version
+     * @param sourceFiles the files of the inheritance chain, captured before they were read
+     */
+    public static void put(String key, JMinecraftVersionList.Version version, List<SourceFile> sourceFiles) {
+        Entry entry = new Entry(version, sourceFiles.toArray(new SourceFile[0]));
+        synchronized (sEntries) {
+            sEntries.put(key, entry);
+        }
+    }
+
+    /** The state of a version JSON file at the time it was read */
+    public static class SourceFile {
+        private final File mFile;
+        private final long mLastModified;
+        private final long mLength;
+
+        public SourceFile(File file) {
+            this.mFile = file;
+            this.mLastModified = file.lastModified();
+            this.mLength = file.length();
+        }
+
+        boolean hasChanged() {
+            return mFile.lastModified() != mLastModified || mFile.length() != mLength;
+        }
+    }
+
+    private static class Entry {
+        final JMinecraftVersionList.Version version;
+        final SourceFile[] sourceFiles;
+
+        Entry(JMinecraftVersionList.Version version, SourceFile[] sourceFiles) {
+            this.version = version;
+            this.sourceFiles = sourceFiles;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package net.kdt.pojavlaunch.utils;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.Tools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a single large file over several connections at once. The file is preallocated, and
+ * split into byte ranges that get written in place with positional writes as they arrive.
+ * A worker that runs out of ranges takes over the second half of the largest range still being
+ * downloaded, and a range that stops receiving data gets its connection dropped and re-requested,
+ * so a single slow connection can't hold back the whole file.
+ */
+class SegmentedDownload {
+    /** Files smaller than this are downloaded with a single connection */
+    static final long SEGMENT_THRESHOLD = 8 * 1024 * 1024;
+    private static final String TAG = "SegmentedDownload";
+    private static final int MAX_SEGMENTS = 4;
+    /** Ranges smaller than twice this size are not split anymore */
+    private static final long MIN_SPLIT_SIZE = 512 * 1024;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int MAX_SEGMENT_FAILURES = 8;
+    private static final ThreadPoolExecutor sSegmentExecutor = new ThreadPoolExecutor(0, 16,
+            10, TimeUnit.SECONDS, new SynchronousQueue<>());
+
+    private final String mUrl;
+    private final PartialDownload mPartialDownload;
+    private final long mLength;
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Segment> mPendingSegments = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private volatile IOException mError;
+    private FileChannel mChannel;
+
+    SegmentedDownload(String url, PartialDownload partialDownload, long length) {
+        this.mUrl = url;
+        this.mPartialDownload = partialDownload;
+        this.mLength = length;
+    }
+
+    /**
+     * Check if a fresh (200) response can be continued as a segmented download.
+     * @param connection the connection that got the response
+     * @param partialDownload the state of the download, holding the validator of the response
+     * @return true if the file is large enough and the server supports ranges on it
+     */
+    static boolean isEligible(HttpURLConnection connection, PartialDownload partialDownload) {
+        return connection.getContentLength() >= SEGMENT_THRESHOLD
+                && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))
+                // Without a validator, we can't make sure that every range comes from the same file
+                && partialDownload.hasValidator();
+    }
+
+    /**
+     * Download the whole file into the part file.
+     * @param firstConnection the connection that got the full response, which is used for the first range
+     * @param monitor the progress monitor, or null if not used
+     * @throws IOException if any range fails too many times. The part file is left incomplete.
+     */
+    void download(HttpURLConnection firstConnection, @Nullable Tools.DownloaderFeedback monitor) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(mPartialDownload.partFile, "rw")) {
+            randomAccessFile.setLength(mLength);
+            mChannel = randomAccessFile.getChannel();
+
+            long segmentSize = Math.max(MIN_SPLIT_SIZE * 2, (mLength + MAX_SEGMENTS - 1) / MAX_SEGMENTS);
+            for(long start = 0; start < mLength; start += segmentSize) {
+                Segment segment = new Segment(start, Math.min(start + segmentSize, mLength));
+                mSegments.add(segment);
+                if(start != 0) mPendingSegments.add(segment);
+            }
+            Segment firstSegment = mSegments.get(0);
+            firstSegment.initialConnection = firstConnection;
+
+            CountDownLatch workersDone = startWorkers(firstSegment, firstConnection);
+            try {
+                while(!workersDone.await(250, TimeUnit.MILLISECONDS)) {
+                    if(monitor != null) monitor.updateProgress((int) mWritten.get(), (int) mLength);
+                    if(mError != null) {
+                        disconnectAll();
+                    }else {
+                        dropStalledConnections();
+                    }
+                }
+            }catch (InterruptedException e) {
+                fail(new InterruptedIOException("Segmented download interrupted"));
+                disconnectAll();
+                Thread.currentThread().interrupt();
+            }
+            if(mError != null) throw mError;
+            if(mWritten.get() != mLength) throw new EOFException("Segmented download ended early");
+            if(monitor != null) monitor.updateProgress((int) mLength, (int) mLength);
+        }
+    }
+
+    private CountDownLatch startWorkers(Segment firstSegment, HttpURLConnection firstConnection) throws IOException {
+        int workerCount = Math.min(MAX_SEGMENTS, mSegments.size());
+        CountDownLatch workersDone = new CountDownLatch(workerCount);
+        for(int i = 0; i < workerCount; i++) {
+            Segment initialSegment = i == 0 ? firstSegment : null;
+            try {
+                sSegmentExecutor.execute(() -> runWorker(initialSegment, workersDone));
+            }catch (RejectedExecutionException e) {
+                // Too many segmented downloads going on already, continue with fewer workers
+                workersDone.countDown();
+                if(i == 0) {
+                    firstConnection.disconnect();
+                    throw new IOException("No thread available for the segmented download", e);
+                }
+            }
+        }
+        return workersDone;
+    }
+
+    private void runWorker(@Nullable Segment segment, CountDownLatch workersDone) {
+        byte[] buffer = new byte[65536];
+        try {
+            while(mError == null) {
+                if(segment == null) segment = mPendingSegments.poll();
+                if(segment == null) segment = splitLargestSegment();
+                if(segment == null) return;
+                try {
+                    fetchSegment(segment, buffer);
+                    segment = null;
+                }catch (IOException e) {
+                    if(mError != null) return;
+                    if(mFailures.incrementAndGet() > MAX_SEGMENT_FAILURES) {
+                        fail(e);
+                        return;
+                    }
+                    // Try the rest of the same range again, with a new connection
+                    Log.i(TAG, "Retrying range at "+segment.position+" of "+mUrl, e);
+                }
+            }
+        }finally {
+            workersDone.countDown();
+        }
+    }
+
+    private void fetchSegment(Segment segment, byte[] buffer) throws IOException {
+        HttpURLConnection connection;
+        long requestedEnd;
+        boolean fullResponse;
+        synchronized (segment) {
+            if(segment.position >= segment.end) return;
+            connection = segment.initialConnection;
+            segment.initialConnection = null;
+            fullResponse = connection != null;
+            if(fullResponse) {
+                requestedEnd = mLength;
+            }else {
+                requestedEnd = segment.end;
+                connection = HttpUtils.open(mUrl);
+                mPartialDownload.applyRangeHeaders(connection, segment.position, requestedEnd - 1);
+            }
+            segment.activeConnection = connection;
+            segment.lastProgress = System.nanoTime();
+        }
+        boolean finished = false;
+        boolean drained = false;
+        try {
+            HttpUtils.checkResponse(connection);
+            if(!fullResponse && connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                // The file changed on the server, the ranges we already have are useless
+                IOException exception = new IOException("Server stopped honoring ranges for "+mUrl);
+                fail(exception);
+                throw exception;
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                int read;
+                while((read = inputStream.read(buffer)) != -1) {
+                    synchronized (segment) {
+                        int writable = (int) Math.min(read, segment.end - segment.position);
+                        if(writable > 0) {
+                            writeFully(ByteBuffer.wrap(buffer, 0, writable), segment.position);
+                            segment.position += writable;
+                            mWritten.addAndGet(writable);
+                        }
+                        segment.lastProgress = System.nanoTime();
+                        if(segment.position >= segment.end) {
+                            finished = true;
+                            // If the range didn't get split, the response body is fully read
+                            drained = segment.end == requestedEnd && read == writable;
+                            break;
+                        }
+                    }
+                }
+            }
+            if(!finished) throw new EOFException("Connection closed before the end of the range");
+        }finally {
+            synchronized (segment) {
+                segment.activeConnection = null;
+            }
+            if(drained) HttpUtils.release(connection);
+            else connection.disconnect();
+        }
+    }
+
+    private void writeFully(ByteBuffer byteBuffer, long position) throws IOException {
+        while(byteBuffer.hasRemaining()) {
+            position += mChannel.write(byteBuffer, position);
+        }
+    }
+
+    /**
+     * Give the second half of the largest remaining range to an idle worker.
+     * @return the new range, or null if no range is worth splitting
+     */
+    private @Nullable Segment splitLargestSegment() {
+        synchronized (mSegments) {
+            Segment largest = null;
+            long largestRemaining = MIN_SPLIT_SIZE * 2;
+            for(Segment segment : mSegments) {
+                long remaining;
+                synchronized (segment) {
+                    remaining = segment.end - segment.position;
+                }
+                if(remaining >= largestRemaining) {
+                    largest = segment;
+                    largestRemaining = remaining;
+                }
+            }
+            if(largest == null) return null;
+            Segment newSegment;
+            synchronized (largest) {
+                long remaining = largest.end - largest.position;
+                if(remaining < MIN_SPLIT_SIZE * 2) return null;
+                long middle = largest.position + remaining / 2;
+                newSegment = new Segment(middle, largest.end);
+                largest.end = middle;
+            }
+            mSegments.add(newSegment);
+            return newSegment;
+        }
+    }
+
+    private void dropStalledConnections() {
+        long now = System.nanoTime();
+        synchronized (mSegments) {
+            for(Segment segment : mSegments) {
+                HttpURLConnection connection;
+                synchronized (segment) {
+                    connection = segment.activeConnection;
+                    if(connection == null || now - segment.lastProgress < STALL_NANOS) continue;
+                    segment.lastProgress = now;
+                }
+                Log.i(TAG, "Range at "+segment.position+" of "+mUrl+" stalled, reconnecting");
+                // Makes the blocked read fail, the worker then requests the rest of the range again
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void disconnectAll() {
+        synchronized (mSegments) {
+            for(Segment segment : mSegments) {
+                HttpURLConnection connection;
+                synchronized (segment) {
+                    connection = segment.activeConnection;
+                }
+                if(connection != null) connection.disconnect();
+            }
+        }
+    }
+
+    private synchronized void fail(IOException exception) {
+        if(mError == null) mError = exception;
+    }
+
+    /** A byte range of the file. The end can shrink while the range is downloaded, when it gets split. */
+    private static class Segment {
+        long position;
+        long end;
+        long lastProgress;
+        HttpURLConnection initialConnection;
+        HttpURLConnection activeConnection;
+
+        Segment(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+    }
+}
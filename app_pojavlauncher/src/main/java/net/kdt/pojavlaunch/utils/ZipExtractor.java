@@ -0,0 +1,227 @@
+package net.kdt.pojavlaunch.utils;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts ZIP files with several threads. Archives made of thousands of small files are
+ * dominated by file system operations rather than by decompression, so the directory tree is
+ * created once before the extraction starts, and the files are written in parallel, with
+ * large buffers and their final size allocated up front.
+ * Entries trying to escape the destination directory are rejected.
+ */
+public class ZipExtractor {
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int WORKER_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor sExtractionExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        sExtractionExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private ZipExtractor() {}
+
+    /**
+     * Extract the files in a ZipFile inside of a given directory to a given destination directory.
+     * The filter is called for each entry on the calling thread, in archive order, before any file
+     * is written.
+     * @param zipFile the ZipFile to extract files from
+     * @param directory the directory to extract the files from
+     * @param destination the destination directory to extract the files into
+     * @param entryFilter the filter deciding which files get extracted, or null to extract all of them
+     * @param progressListener the listener receiving the amount of extracted files, or null.
+     *                         It gets called from the extraction threads.
+     * @return the amount of extracted files
+     * @throws IOException if an entry has an unsafe path, or if the extraction failed
+     */
+    public static int extract(ZipFile zipFile, String directory, File destination,
+                              @Nullable ZipUtils.EntryFilter entryFilter,
+                              @Nullable ProgressListener progressListener) throws IOException {
+        List<ExtractionJob> jobs = new ArrayList<>();
+        Set<File> directories = new HashSet<>();
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        int dirLength = directory.length();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            String entryName = zipEntry.getName();
+            if (!entryName.startsWith(directory) || zipEntry.isDirectory()) continue;
+
+            String relativePath = entryName.substring(dirLength);
+            if (relativePath.startsWith("/")) relativePath = relativePath.substring(1);
+            if (!isSafePath(relativePath)) {
+                throw new IOException("Refusing to extract an entry outside of the destination: " + entryName);
+            }
+            if (entryFilter != null && !entryFilter.shouldExtract(zipEntry, relativePath)) continue;
+
+            File entryDestination = new File(destination, relativePath);
+            directories.add(entryDestination.getParentFile());
+            jobs.add(new ExtractionJob(zipEntry, entryDestination));
+        }
+        if (jobs.isEmpty()) return 0;
+
+        createDirectories(directories);
+        // Start with the largest files, so that the workers finish at about the same time
+        Collections.sort(jobs, (a, b) -> Long.compare(b.zipEntry.getSize(), a.zipEntry.getSize()));
+        runJobs(zipFile, jobs, progressListener);
+        return jobs.size();
+    }
+
+    /**
+     * Check that a path stays inside of the directory it is resolved against.
+     * @param relativePath a path from a ZIP entry
+     * @return false if the path is absolute or goes up the directory tree
+     */
+    static boolean isSafePath(String relativePath) {
+        if (relativePath.isEmpty() || relativePath.startsWith("/") || relativePath.indexOf('\0') != -1) return false;
+        for (String pathSegment : relativePath.split("[/\\\\]")) {
+            if (pathSegment.equals("..")) return false;
+        }
+        return true;
+    }
+
+    private static void createDirectories(Set<File> directories) throws IOException {
+        List<File> sortedDirectories = new ArrayList<>(directories);
+        // Parents first, so that each mkdirs() call only creates one level
+        Collections.sort(sortedDirectories, (a, b) -> Integer.compare(a.getPath().length(), b.getPath().length()));
+        for (File directory : sortedDirectories) {
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Failed to create directory " + directory);
+            }
+        }
+    }
+
+    private static void runJobs(ZipFile zipFile, List<ExtractionJob> jobs,
+                                @Nullable ProgressListener progressListener) throws IOException {
+        ExtractionRun extractionRun = new ExtractionRun(zipFile, jobs, progressListener);
+        int workerCount = Math.min(WORKER_COUNT, jobs.size());
+        List<Future<?>> workers = new ArrayList<>(workerCount - 1);
+        IOException failure = null;
+        boolean interrupted = false;
+        try {
+            for (int i = 1; i < workerCount; i++) {
+                workers.add(sExtractionExecutor.submit(() -> {
+                    extractionRun.work();
+                    return null;
+                }));
+            }
+            // The calling thread takes part in the extraction as well
+            try {
+                extractionRun.work();
+            } catch (IOException e) {
+                failure = e;
+            }
+            // Wait for the other workers even after a failure or an interruption, so that nothing
+            // writes to the destination (or reads from the ZipFile) once this method returned
+            for (Future<?> worker : workers) {
+                while (true) {
+                    try {
+                        worker.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Make the workers stop after their current entry, and keep waiting
+                        interrupted = true;
+                        extractionRun.cancelled = true;
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            Throwable cause = e.getCause();
+                            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            extractionRun.cancelled = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (failure == null) failure = new InterruptedIOException("ZIP extraction interrupted");
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static class ExtractionRun {
+        final ZipFile zipFile;
+        final List<ExtractionJob> jobs;
+        final ProgressListener progressListener;
+        final AtomicInteger nextJob = new AtomicInteger();
+        final AtomicInteger extractedCount = new AtomicInteger();
+        volatile boolean cancelled;
+
+        ExtractionRun(ZipFile zipFile, List<ExtractionJob> jobs, @Nullable ProgressListener progressListener) {
+            this.zipFile = zipFile;
+            this.jobs = jobs;
+            this.progressListener = progressListener;
+        }
+
+        void work() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                int jobIndex;
+                while (!cancelled && (jobIndex = nextJob.getAndIncrement()) < jobs.size()) {
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("ZIP extraction interrupted");
+                    jobs.get(jobIndex).extract(zipFile, buffer);
+                    int extracted = extractedCount.incrementAndGet();
+                    if (progressListener != null) progressListener.onProgress(extracted, jobs.size());
+                }
+            } catch (IOException | RuntimeException e) {
+                // Stop the other workers, there is no point in extracting the rest
+                cancelled = true;
+                throw e;
+            }
+        }
+    }
+
+    private static class ExtractionJob {
+        final ZipEntry zipEntry;
+        final File destination;
+
+        ExtractionJob(ZipEntry zipEntry, File destination) {
+            this.zipEntry = zipEntry;
+            this.destination = destination;
+        }
+
+        void extract(ZipFile zipFile, byte[] buffer) throws IOException {
+            try (InputStream inputStream = zipFile.getInputStream(zipEntry);
+                 RandomAccessFile outputFile = new RandomAccessFile(destination, "rw")) {
+                long size = zipEntry.getSize();
+                // Reserve the space at once instead of growing the file with every write
+                outputFile.setLength(Math.max(size, 0));
+                long written = 0;
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputFile.write(buffer, 0, read);
+                    written += read;
+                }
+                if (written != size) outputFile.setLength(written);
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        /**
+         * @param extractedCount the amount of files extracted so far
+         * @param totalCount the amount of files to extract
+         */
+        void onProgress(int extractedCount, int totalCount);
+    }
+}
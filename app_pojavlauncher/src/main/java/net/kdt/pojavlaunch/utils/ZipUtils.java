@@ -1,13 +1,10 @@
 package net.kdt.pojavlaunch.utils;
 
-import org.apache.commons.io.IOUtils;
+import androidx.annotation.Nullable;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -39,31 +36,38 @@ public class ZipUtils {
      * @throws IOException if it was not possible to create a directory or file extraction failed
      */
     public static void extractZipFile(ZipFile zipFile, String directory, File destination) throws IOException {
+        extractZipFile(zipFile, directory, destination, null);
+    }
+
+    /**
+     * Extracts the files in a ZipFile inside of a given directory to a given destination directory,
+     * skipping the files rejected by a filter
+     *
+     * @param zipFile      The ZipFile to extract files from
+     * @param directory   The directory to extract the files from
+     * @param destination The destination directory to extract the files into
+     * @param entryFilter The filter deciding which files get extracted, or null to extract all of them
+     * @throws IOException if it was not possible to create a directory or file extraction failed
+     */
+    public static void extractZipFile(ZipFile zipFile, String directory, File destination,
+                                      @Nullable EntryFilter entryFilter) throws IOException {
         if (zipFile == null || destination == null || directory == null) {
             throw new NullPointerException("zipFile, directory, and destination cannot be null");
         }
 
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-
-        int dirLength = directory.length();
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry zipEntry = zipEntries.nextElement();
-            String entryName = zipEntry.getName();
-            if (!entryName.startsWith(directory) || zipEntry.isDirectory()) {
-                continue;
-            }
-
-            File entryDestination = new File(destination, entryName.substring(dirLength));
-            FileUtils.ensureParentDirectory(entryDestination);
-
-            if (zipEntry.isDirectory()) {
-                continue;
-            }
+        ZipExtractor.extract(zipFile, directory, destination, entryFilter, null);
+    }
 
-            try (InputStream inputStream = zipFile.getInputStream(zipEntry);
-                 OutputStream outputStream = new FileOutputStream(entryDestination)) {
-                IOUtils.copy(inputStream, outputStream);
-            }
-        }
+    /**
+     * Decides which entries of a ZIP file get extracted
+     */
+    public interface EntryFilter {
+        /**
+         * @param zipEntry     The entry about to be extracted
+         * @param relativePath The path of the entry relative to the extracted directory
+         * @return true to extract the entry, false to skip it
+         * @throws IOException to abort the extraction
+         */
+        boolean shouldExtract(ZipEntry zipEntry, String relativePath) throws IOException;
     }
 }
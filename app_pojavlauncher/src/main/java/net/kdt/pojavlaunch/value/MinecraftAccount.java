@@ -53,7 +53,7 @@ public class MinecraftAccount {
     }
     
     public String save(String outPath) throws IOException {
-        Tools.write(outPath, Tools.GLOBAL_GSON.toJson(this));
+        Tools.write(outPath, Tools.COMPACT_GSON.toJson(this));
         return username;
     }
     
@@ -62,7 +62,7 @@ public class MinecraftAccount {
     }
     
     public static MinecraftAccount parse(String content) throws JsonSyntaxException {
-        return Tools.GLOBAL_GSON.fromJson(content, MinecraftAccount.class);
+        return Tools.COMPACT_GSON.fromJson(content, MinecraftAccount.class);
     }
 
     public static MinecraftAccount load(String name) {
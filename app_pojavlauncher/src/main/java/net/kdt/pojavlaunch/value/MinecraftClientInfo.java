@@ -7,9 +7,11 @@ import java.util.Objects;
 @Keep
 public class MinecraftClientInfo {
 
-    private final String sha1;
-    private final int size;
-    private final String url;
+    public String sha1;
+    public int size;
+    public String url;
+
+    public MinecraftClientInfo() {}
 
     public MinecraftClientInfo(String sha1, int size, String url) {
         this.sha1 = sha1;
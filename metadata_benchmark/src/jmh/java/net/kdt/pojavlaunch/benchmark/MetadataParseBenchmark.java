@@ -0,0 +1,112 @@
+package net.kdt.pojavlaunch.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+import net.kdt.pojavlaunch.JAssetIndex;
+import net.kdt.pojavlaunch.JMinecraftVersionList;
+import net.kdt.pojavlaunch.utils.MetadataTypeAdapterFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse time of the metadata files with the streaming adapters, compared to the reflective Gson
+ * the launcher used before. Run with the gc profiler (the default of the jmh task) to also get
+ * the allocated bytes per parse. The fixtures are real Mojang files, see the fetchFixtures task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataParseBenchmark {
+    /** Configured like Tools.GLOBAL_GSON */
+    private Gson mStreamingGson;
+    /** Tools.GLOBAL_GSON before the streaming adapters */
+    private Gson mReflectiveGson;
+    private String mManifestJson;
+    private String mVersionJson;
+    private File mAssetIndexFile;
+
+    @Setup
+    public void setup() throws IOException {
+        String fixturesPath = System.getProperty("metadata.fixtures");
+        if(fixturesPath == null) throw new IllegalStateException("metadata.fixtures is not set");
+        File fixturesDir = new File(fixturesPath);
+        mStreamingGson = new GsonBuilder().registerTypeAdapterFactory(new MetadataTypeAdapterFactory())
+                .setPrettyPrinting().create();
+        mReflectiveGson = new GsonBuilder().setPrettyPrinting().create();
+        // The JSON files used to be read into strings before being parsed, so only the parsing is measured
+        mManifestJson = readFixture(new File(fixturesDir, "version_manifest_v2.json"));
+        mVersionJson = readFixture(new File(fixturesDir, "version.json"));
+        mAssetIndexFile = new File(fixturesDir, "asset_index.json");
+        if(!mAssetIndexFile.isFile()) throw new FileNotFoundException(mAssetIndexFile.getAbsolutePath());
+    }
+
+    private static String readFixture(File fixture) throws IOException {
+        return new String(Files.readAllBytes(fixture.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public JMinecraftVersionList versionManifestStreaming() {
+        return mStreamingGson.fromJson(mManifestJson, JMinecraftVersionList.class);
+    }
+
+    @Benchmark
+    public JMinecraftVersionList versionManifestReflective() {
+        return mReflectiveGson.fromJson(mManifestJson, JMinecraftVersionList.class);
+    }
+
+    @Benchmark
+    public JMinecraftVersionList.Version versionStreaming() {
+        return mStreamingGson.fromJson(mVersionJson, JMinecraftVersionList.Version.class);
+    }
+
+    @Benchmark
+    public JMinecraftVersionList.Version versionReflective() {
+        return mReflectiveGson.fromJson(mVersionJson, JMinecraftVersionList.Version.class);
+    }
+
+    /** The compact asset index, read straight from the file */
+    @Benchmark
+    public JAssetIndex assetIndexStreaming() throws IOException {
+        return JAssetIndex.parse(mAssetIndexFile);
+    }
+
+    /** The old asset index path: the file read into a string, then bound to a map */
+    @Benchmark
+    public ReflectiveAssets assetIndexReflective() throws IOException {
+        return mReflectiveGson.fromJson(readFixture(mAssetIndexFile), ReflectiveAssets.class);
+    }
+
+    /** Same shape as the JAssets model that JAssetIndex replaced */
+    public static class ReflectiveAssets {
+        @SerializedName("map_to_resources") public boolean mapToResources;
+        public Map<String, ReflectiveAssetInfo> objects;
+        public boolean virtual;
+    }
+
+    public static class ReflectiveAssetInfo {
+        public String hash;
+        public int size;
+    }
+}